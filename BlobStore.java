@@ -0,0 +1,339 @@
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+    Keeps records too large for bucket pages in a blob file next to the grid files
+
+    Blobs are written and read through one channel, each in an extent of the file rounded up to
+    BLOB_ALIGN bytes. Bucket entries reference a blob by its position and length, so the file holds
+    nothing but blob bytes and its free extents are rebuilt from the references in the grid when
+    the grid is loaded. Freed extents join their free neighbours and are reused best fit, blobs
+    that fit no free extent are appended at the end of the file.
+
+    With the write-ahead log enabled, extents freed since the last checkpoint may be referenced by
+    buckets that recovery restores, so they are only reused once releaseDeferred() is called after
+    the next checkpoint.
+
+    A store without a blob file keeps its blobs in a heap buffer, for grids held in memory only.
+ */
+public class BlobStore {
+    public static final int BLOB_ALIGN = 8;
+    public static final int REFERENCE_BYTES = 16; // position and length of a blob, as held by bucket entries
+
+    private final String blobName;
+    private RandomAccessFile blobFile;
+    private FileChannel blobChannel;
+    private volatile ByteBuffer blobBuffer; // blobs of a store without a blob file
+    private long end; // bytes of the file in extents, used or free
+    private long freeBytes;
+    private final TreeMap<Long, Long> freeExtents = new TreeMap<Long, Long>(); // position to length
+    private final TreeSet<long[]> freeBySize = new TreeSet<long[]>(new Comparator<long[]>() {
+        public int compare(long[] a, long[] b) { // [length, position], smallest first
+            return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+        }
+    });
+    private final List<long[]> deferred = new ArrayList<long[]>(); // [position, length] freed since the checkpoint
+    private boolean deferFrees;
+
+    public BlobStore(String blobName) {
+        this.blobName = blobName;
+    }
+
+    /*
+        Opens the long-lived channel on the blob file, all of its bytes taken as used until rebuild()
+     */
+    public void open() {
+        if (this.blobName == null) {
+            this.blobBuffer = ByteBuffer.allocate(0);
+            return;
+        }
+
+        try {
+            this.blobFile = new RandomAccessFile(this.blobName, "rw");
+            this.blobChannel = this.blobFile.getChannel();
+            this.end = this.blobFile.length();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: open()");
+        }
+    }
+
+    /*
+        Returns bytes of the blob file, used or free
+     */
+    public long getLength() {
+        return this.end;
+    }
+
+    public synchronized long getFreeBytes() {
+        return this.freeBytes;
+    }
+
+    /*
+        Rebuilds free extents as the gaps between given extents [position, length] in use,
+        truncating the file after the last of them
+     */
+    public synchronized void rebuild(List<long[]> used) {
+        long[][] extents = used.toArray(new long[used.size()][]);
+        java.util.Arrays.sort(extents, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        this.freeExtents.clear();
+        this.freeBySize.clear();
+        this.freeBytes = 0;
+
+        long position = 0;
+        for (long[] extent : extents) {
+            if (extent[0] > position) {
+                addFree(position, extent[0] - position);
+            }
+            position = Math.max(position, extent[0] + align(extent[1]));
+        }
+        this.end = position;
+        if (this.blobFile == null) {
+            return;
+        }
+
+        try {
+            this.blobFile.setLength(position);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: rebuild()");
+        }
+    }
+
+    /*
+        Writes remaining bytes of src to a new blob without consuming them
+        Returns position of the blob
+     */
+    public long write(ByteBuffer src) {
+        long position = allocate(align(src.remaining()));
+        if (this.blobName == null) {
+            writeBuffer(position, src);
+            return position;
+        }
+
+        try {
+            ByteBuffer blob = src.duplicate();
+            long offset = position;
+            while (blob.hasRemaining()) {
+                offset += this.blobChannel.write(blob, offset);
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: write()");
+            throw new IllegalStateException("Unable to write blob file " + this.blobName);
+        }
+
+        return position;
+    }
+
+    /*
+        Reads blob of given position and length into dst, which must have room for it
+     */
+    public void read(long position, long length, ByteBuffer dst) {
+        if (this.blobName == null) {
+            ByteBuffer blob = this.blobBuffer.duplicate();
+            blob.limit((int) (position + length));
+            blob.position((int) position);
+            dst.put(blob); // memcpy
+            return;
+        }
+
+        try {
+            ByteBuffer blob = dst.duplicate();
+            blob.limit(dst.position() + (int) length);
+            long offset = position;
+            while (blob.hasRemaining()) {
+                int nread = this.blobChannel.read(blob, offset);
+                if (nread < 0) {
+                    throw new IllegalStateException("Blob beyond end of blob file " + this.blobName);
+                }
+                offset += nread;
+            }
+            dst.position(blob.position());
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: read()");
+            throw new IllegalStateException("Unable to read blob file " + this.blobName);
+        }
+    }
+
+    /*
+        Frees blob of given position and length, deferred until releaseDeferred() if frees are deferred
+     */
+    public synchronized void free(long position, long length) {
+        if (this.deferFrees) {
+            this.deferred.add(new long[]{position, align(length)});
+            return;
+        }
+        release(position, align(length));
+    }
+
+    public synchronized void setDeferFrees(boolean deferFrees) {
+        this.deferFrees = deferFrees;
+        if (!deferFrees) {
+            releaseDeferred();
+        }
+    }
+
+    /*
+        Makes extents freed since frees were last released available for new blobs
+     */
+    public synchronized void releaseDeferred() {
+        for (long[] extent : this.deferred) {
+            release(extent[0], extent[1]);
+        }
+        this.deferred.clear();
+    }
+
+    /*
+        Forces written blobs to disk
+     */
+    public void force() {
+        if (this.blobName == null) {
+            return;
+        }
+
+        try {
+            this.blobChannel.force(false);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: force()");
+            throw new IllegalStateException("Unable to force blob file " + this.blobName);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (this.blobFile != null) {
+                this.blobFile.close();
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: close()");
+        }
+
+        this.blobFile = null;
+        this.blobChannel = null;
+        this.blobBuffer = null;
+    }
+
+    /*
+        Copies given bytes of src to given position of the heap buffer, growing it as needed
+     */
+    private synchronized void writeBuffer(long position, ByteBuffer src) {
+        long limit = position + src.remaining();
+        if (limit > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("Out of memory in writeBuffer()");
+        }
+
+        if (limit > this.blobBuffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE,
+                    Math.max(limit, 2L * this.blobBuffer.capacity())));
+            grown.put(this.blobBuffer.duplicate()); // memcpy
+            grown.clear(); // duplicates of the buffer start at position 0
+            this.blobBuffer = grown;
+        }
+
+        ByteBuffer dst = this.blobBuffer.duplicate();
+        dst.position((int) position);
+        dst.put(src.duplicate()); // memcpy
+    }
+
+    /*
+        Returns reference to blob of given position and length, as stored in bucket entries
+     */
+    public static ByteBuffer reference(long position, long length) {
+        ByteBuffer reference = ByteBuffer.allocate(REFERENCE_BYTES);
+        reference.putLong(0, position);
+        reference.putLong(8, length);
+        return reference;
+    }
+
+    /*
+        Returns blob position of a reference starting at the position of given buffer
+     */
+    public static long position(ByteBuffer reference) {
+        return reference.getLong(reference.position());
+    }
+
+    /*
+        Returns blob length of a reference starting at the position of given buffer
+     */
+    public static long length(ByteBuffer reference) {
+        return reference.getLong(reference.position() + 8);
+    }
+
+    private static long align(long length) {
+        return (length + BLOB_ALIGN - 1) / BLOB_ALIGN * BLOB_ALIGN;
+    }
+
+    /*
+        Returns position of an extent of given aligned length, best fit among free extents or
+        else at the end of the file
+     */
+    private synchronized long allocate(long length) {
+        long[] fit = this.freeBySize.ceiling(new long[]{length, Long.MIN_VALUE});
+        if (fit == null) {
+            long position = this.end;
+            this.end += length;
+            return position;
+        }
+
+        removeFree(fit[1], fit[0]);
+        if (fit[0] > length) {
+            addFree(fit[1] + length, fit[0] - length);
+        }
+        return fit[1];
+    }
+
+    /*
+        Returns extent to the free extents, joining free neighbours and dropping free extents at
+        the end of the file
+     */
+    private void release(long position, long length) {
+        Long next = this.freeExtents.get(position + length);
+        if (next != null) {
+            removeFree(position + length, next);
+            length += next;
+        }
+
+        Map.Entry<Long, Long> previous = this.freeExtents.lowerEntry(position);
+        if (previous != null && previous.getKey() + previous.getValue() == position) {
+            removeFree(previous.getKey(), previous.getValue());
+            position = previous.getKey();
+            length += previous.getValue();
+        }
+
+        if (position + length == this.end) {
+            this.end = position; // file tail is reused by the next append
+            return;
+        }
+        addFree(position, length);
+    }
+
+    private void addFree(long position, long length) {
+        this.freeExtents.put(position, length);
+        this.freeBySize.add(new long[]{length, position});
+        this.freeBytes += length;
+    }
+
+    private void removeFree(long position, long length) {
+        this.freeExtents.remove(position);
+        this.freeBySize.remove(new long[]{length, position});
+        this.freeBytes -= length;
+    }
+}
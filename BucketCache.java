@@ -0,0 +1,320 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+    Bounded cache of grid buckets in off-heap frames, read and written back with positional
+    reads and writes on the buckets file instead of mapping it
+
+    Frames are evicted with the CLOCK algorithm: a hand sweeps the frames, giving referenced
+    frames a second chance and evicting the first frame neither referenced nor pinned. Buckets
+    are pinned while a view of them is in use and marked dirty when changed, dirty buckets are
+    written back when evicted or flushed. A table of bucket addresses to frames is kept in
+    primitive arrays, so a lookup allocates nothing but the view it returns.
+
+    Views are released by identity through a per thread list of pinned views, so that callers
+    holding only the view can release it.
+ */
+public class BucketCache {
+    public static final int MIN_FRAMES = 16;
+
+    private static final long EMPTY = -1;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int nframes;
+    private final ByteBuffer arena; // all frames, allocated off heap once
+    private final ByteBuffer[] frames;
+    private final long[] addresses; // bucket address held by each frame, EMPTY if none
+    private final int[] pins;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    private final long[] keys; // open addressing table of bucket addresses, EMPTY if free
+    private final int[] values; // frame of each key
+    private final int mask;
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writebacks;
+    private final ThreadLocal<Pins> pinned = new ThreadLocal<Pins>();
+
+    public BucketCache(FileChannel channel, long pageSize, int nframes) {
+        if (nframes < MIN_FRAMES || pageSize * nframes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid argument in BucketCache()");
+        }
+
+        this.channel = channel;
+        this.pageSize = (int) pageSize;
+        this.nframes = nframes;
+        this.arena = ByteBuffer.allocateDirect(this.pageSize * nframes);
+        this.frames = new ByteBuffer[nframes];
+        this.addresses = new long[nframes];
+        this.pins = new int[nframes];
+        this.referenced = new boolean[nframes];
+        this.dirty = new boolean[nframes];
+
+        for (int frame = 0; frame < nframes; frame++) {
+            ByteBuffer view = this.arena.duplicate();
+            view.position(frame * this.pageSize);
+            view.limit((frame + 1) * this.pageSize);
+            this.frames[frame] = view.slice();
+            this.addresses[frame] = EMPTY;
+        }
+
+        int capacity = Integer.highestOneBit(nframes) * 4; // load factor at most one half
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    /*
+        Returns pinned view of bucket at given bucket address, reading it on a miss
+     */
+    public ByteBuffer pin(long baddr) {
+        int frame;
+
+        synchronized (this) {
+            frame = lookup(baddr);
+            if (frame >= 0) {
+                this.hits++;
+            } else {
+                this.misses++;
+                frame = evict();
+                read(frame, baddr);
+                this.addresses[frame] = baddr;
+                insert(baddr, frame);
+            }
+
+            this.pins[frame]++;
+            this.referenced[frame] = true;
+        }
+
+        ByteBuffer view = this.frames[frame].duplicate();
+        Pins list = this.pinned.get();
+        if (list == null) {
+            list = new Pins();
+            this.pinned.set(list);
+        }
+        list.add(view, frame);
+        return view;
+    }
+
+    /*
+        Releases view returned by pin(), views not pinned by this thread are ignored
+     */
+    public void unpin(ByteBuffer view) {
+        Pins list = this.pinned.get();
+        int frame = list == null ? -1 : list.remove(view);
+
+        if (frame >= 0) {
+            synchronized (this) {
+                this.pins[frame]--;
+            }
+        }
+    }
+
+    /*
+        Marks bucket at given bucket address changed, the bucket must be pinned
+     */
+    public synchronized void markDirty(long baddr) {
+        int frame = lookup(baddr);
+        if (frame >= 0) {
+            this.dirty[frame] = true;
+        }
+    }
+
+    /*
+        Writes back all dirty buckets
+     */
+    public synchronized void flush() {
+        for (int frame = 0; frame < this.nframes; frame++) {
+            if (this.dirty[frame]) {
+                write(frame);
+            }
+        }
+    }
+
+    /*
+        Writes back dirty buckets and releases the frames
+     */
+    public synchronized void close() {
+        flush();
+        BucketStore.unmap(this.arena);
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized long getWritebacks() {
+        return this.writebacks;
+    }
+
+    public int getFrames() {
+        return this.nframes;
+    }
+
+    /*
+        Returns free frame, evicting the first unpinned frame the hand finds not referenced
+     */
+    private int evict() {
+        for (int step = 0; step < 2 * this.nframes + 1; step++) {
+            int frame = this.hand;
+            this.hand = (this.hand + 1) % this.nframes;
+
+            if (this.addresses[frame] == EMPTY) {
+                return frame;
+            }
+            if (this.pins[frame] > 0) {
+                continue;
+            }
+            if (this.referenced[frame]) {
+                this.referenced[frame] = false; // second chance
+                continue;
+            }
+
+            if (this.dirty[frame]) {
+                write(frame);
+            }
+            remove(this.addresses[frame]);
+            this.addresses[frame] = EMPTY;
+            this.evictions++;
+            return frame;
+        }
+
+        throw new IllegalStateException("All bucket cache frames pinned in evict()");
+    }
+
+    private void read(int frame, long baddr) {
+        ByteBuffer dst = this.frames[frame].duplicate();
+        long position = baddr * this.pageSize;
+
+        try {
+            while (dst.hasRemaining()) {
+                int nread = this.channel.read(dst, position + dst.position());
+                if (nread < 0) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: read()");
+            throw new IllegalStateException("Unable to read bucket " + baddr);
+        }
+
+        while (dst.hasRemaining()) {
+            dst.put((byte) 0); // beyond the end of the file, as a fresh mapping reads
+        }
+    }
+
+    private void write(int frame) {
+        ByteBuffer src = this.frames[frame].duplicate();
+        long position = this.addresses[frame] * this.pageSize;
+
+        try {
+            while (src.hasRemaining()) {
+                this.channel.write(src, position + src.position());
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: write()");
+            throw new IllegalStateException("Unable to write bucket " + this.addresses[frame]);
+        }
+
+        this.dirty[frame] = this.pins[frame] > 0; // a pinned bucket may still be changing
+        this.writebacks++;
+    }
+
+    private int slot(long baddr) {
+        long hash = baddr * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & this.mask;
+    }
+
+    private int lookup(long baddr) {
+        for (int slot = slot(baddr); this.keys[slot] != EMPTY; slot = (slot + 1) & this.mask) {
+            if (this.keys[slot] == baddr) {
+                return this.values[slot];
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long baddr, int frame) {
+        int slot = slot(baddr);
+        while (this.keys[slot] != EMPTY) {
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = baddr;
+        this.values[slot] = frame;
+    }
+
+    /*
+        Removes key, moving back later keys of its probe sequence so lookups need no tombstones
+     */
+    private void remove(long baddr) {
+        int slot = slot(baddr);
+        while (this.keys[slot] != baddr) {
+            slot = (slot + 1) & this.mask;
+        }
+
+        int next = slot;
+        while (true) {
+            next = (next + 1) & this.mask;
+            if (this.keys[next] == EMPTY) {
+                break;
+            }
+
+            int home = slot(this.keys[next]);
+            boolean between = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if (!between) { // key at next may move back into the hole
+                this.keys[slot] = this.keys[next];
+                this.values[slot] = this.values[next];
+                slot = next;
+            }
+        }
+        this.keys[slot] = EMPTY;
+    }
+
+    /*
+        Views pinned by one thread with their frames
+     */
+    private static class Pins {
+        private ByteBuffer[] views = new ByteBuffer[8];
+        private int[] frames = new int[8];
+        private int count;
+
+        void add(ByteBuffer view, int frame) {
+            if (this.count == this.views.length) {
+                this.views = Arrays.copyOf(this.views, 2 * this.count);
+                this.frames = Arrays.copyOf(this.frames, 2 * this.count);
+            }
+            this.views[this.count] = view;
+            this.frames[this.count] = frame;
+            this.count++;
+        }
+
+        int remove(ByteBuffer view) {
+            for (int iter = this.count - 1; iter >= 0; iter--) {
+                if (this.views[iter] == view) {
+                    int frame = this.frames[iter];
+                    this.count--;
+                    this.views[iter] = this.views[this.count];
+                    this.frames[iter] = this.frames[this.count];
+                    this.views[this.count] = null;
+                    return frame;
+                }
+            }
+            return -1;
+        }
+    }
+}
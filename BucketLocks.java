@@ -0,0 +1,35 @@
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+    Striped read write locks over grid buckets, keyed by bucket address
+
+    A fixed number of locks is shared by all buckets, so locking never allocates and buckets
+    created by splits need no registration. Unrelated buckets hashing to the same stripe only
+    contend, locks are reentrant so a thread may hold two buckets of one stripe.
+ */
+public class BucketLocks {
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+
+    public BucketLocks(int nstripes) {
+        if (nstripes < 1 || Integer.bitCount(nstripes) != 1) {
+            throw new IllegalArgumentException("Invalid argument in BucketLocks()");
+        }
+
+        this.stripes = new ReentrantReadWriteLock[nstripes];
+        for (int iter = 0; iter < nstripes; iter++) {
+            this.stripes[iter] = new ReentrantReadWriteLock();
+        }
+        this.mask = nstripes - 1;
+    }
+
+    /*
+        Returns lock guarding bucket at given bucket address
+     */
+    public ReentrantReadWriteLock get(long baddr) {
+        long hash = baddr * 0x9E3779B97F4A7C15L; // spreads consecutive addresses over stripes
+        return this.stripes[(int) (hash >>> 32) & this.mask];
+    }
+}
@@ -0,0 +1,888 @@
+import java.nio.ByteBuffer;
+
+/*
+    Layout of a grid bucket page
+
+    Legacy pages (version 0) hold a 16 byte header of used bytes and record count, followed by
+    entries of x, y, record size and record, so finding an entry walks all entries before it.
+
+    Slotted pages (version 1) hold a 24 byte header of version and used bytes, record count,
+    slot count, heap end and overflow page. Entries keep the legacy x, y, record size, record
+    layout in a heap growing from the header, and a table of int entry offsets grows down from
+    the page tail, so entry N is found in one read. Deleted entries leave a tombstone slot,
+    their bytes are reclaimed when the heap runs out of room.
+
+    Columnar pages (version 2) hold a 28 byte header, COLUMNAR_HEADER_BYTES: the slotted header
+    with the heap end replaced by the heap start, then the column capacity at byte 24. Coordinates
+    come first as contiguous x, y pairs, followed by a column of int payload offsets, so
+    coordinate filters read nothing else. Payloads with their int size grow
+    down from the page tail. Entry offsets of columnar pages point at the coordinates of a slot.
+    Deleted entries leave a tombstone payload offset, the column grows as the page fills.
+
+    Compressed pages (version 3) hold the slotted header with flags kept above the used bytes, and
+    the slot table of slotted pages. The first entry stores a base of its x and y after the header,
+    entries then hold zigzag varint deltas of x and y from the base, a varint of record size above
+    two flag bits, and the record, LZ compressed when the page compresses payloads and that is smaller.
+    Used bytes count the encoded entries, so pages take more records before they split, while an
+    entry never needs more than entryBytes() of its record size.
+
+    Entries may hold a reference to a record stored out of the page instead of the record itself,
+    flagged by bit 30 of the record size, or by bit 1 of the record size varint of compressed pages.
+
+    Pages of any version but legacy may link an overflow page of the same bucket, holding its address
+    plus one, 0 ending the chain, in the int at byte 20.
+
+    Free pages (version 0xFFFF) are not used by any grid entry and hold the address of the next
+    free page after their header.
+ */
+public class BucketPage {
+    public static final int LEGACY = 0;
+    public static final int SLOTTED = 1;
+    public static final int COLUMNAR = 2;
+    public static final int COMPRESSED = 3;
+    public static final int CURRENT = SLOTTED;
+    public static final int FREE = 0xFFFF;
+
+    public static final int LEGACY_HEADER_BYTES = 16;
+    public static final int HEADER_BYTES = 24;
+    public static final int COLUMNAR_HEADER_BYTES = 28;
+    public static final int ENTRY_HEADER_BYTES = 24;
+    public static final int SLOT_BYTES = 4;
+    public static final int COORDINATE_BYTES = 16;
+    public static final int COLUMN_BYTES = COORDINATE_BYTES + SLOT_BYTES;
+    public static final int PAYLOAD_HEADER_BYTES = 4;
+    public static final int TOMBSTONE = -1;
+
+    public static final int COMPRESS_PAYLOADS = 1; // compressed page flags
+    public static final int MIN_COMPRESSED_BYTES = 32; // smaller payloads are never compressed
+    public static final int MAX_COMPRESSED_PAGE = 1 << 26; // record size varints fit in 4 bytes
+
+    private static final int BASE_SET = 2;
+    private static final int BASE_BYTES = 16;
+    private static final ThreadLocal<byte[]> packed = new ThreadLocal<byte[]>();
+
+    private static final int VERSION_SHIFT = 48;
+    private static final int FLAGS_SHIFT = 32;
+    private static final long NBYTES_MASK = (1L << FLAGS_SHIFT) - 1;
+    private static final int OVERFLOW_POSITION = 20;
+    private static final int BLOB_SIZE = 1 << 30; // record size flag of entries referencing a blob
+
+    /*
+        Returns format version of the page
+     */
+    public static int version(ByteBuffer page) {
+        return (int) (page.getLong(0) >>> VERSION_SHIFT);
+    }
+
+    /*
+        Formats page as an empty slotted page
+     */
+    public static void format(ByteBuffer page) {
+        format(page, CURRENT);
+    }
+
+    /*
+        Formats page as an empty page of given version, SLOTTED, COLUMNAR or COMPRESSED
+     */
+    public static void format(ByteBuffer page, int version) {
+        format(page, version, 0);
+    }
+
+    /*
+        Formats page as an empty page of given version with given flags, COMPRESS_PAYLOADS
+        applying to compressed pages only
+     */
+    public static void format(ByteBuffer page, int version, int flags) {
+        if ((version != SLOTTED && version != COLUMNAR && version != COMPRESSED) ||
+                (version == COMPRESSED && page.capacity() > MAX_COMPRESSED_PAGE)) {
+            throw new IllegalArgumentException("Invalid argument in format()");
+        }
+
+        long pflags = version == COMPRESSED ? flags & COMPRESS_PAYLOADS : 0;
+        page.putLong(0, (long) version << VERSION_SHIFT | pflags << FLAGS_SHIFT);
+        page.putInt(8, 0);
+        page.putInt(12, 0);
+        page.putInt(16, version == COLUMNAR ? page.capacity() : HEADER_BYTES);
+        page.putInt(OVERFLOW_POSITION, 0);
+        if (version == COLUMNAR) {
+            page.putInt(24, 0);
+        }
+    }
+
+    /*
+        Returns address of the overflow page linked from the page, or -1 at the end of the chain
+     */
+    public static long overflow(ByteBuffer page) {
+        int version = version(page);
+        if (version == LEGACY || version == FREE) {
+            return -1;
+        }
+        return (page.getInt(OVERFLOW_POSITION) & 0xFFFFFFFFL) - 1;
+    }
+
+    /*
+        Links overflow page at given address from the page, -1 ending the chain
+     */
+    public static void setOverflow(ByteBuffer page, long baddr) {
+        if (version(page) == LEGACY || version(page) == FREE || baddr < -1 || baddr >= 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Invalid argument in setOverflow()");
+        }
+        page.putInt(OVERFLOW_POSITION, (int) (baddr + 1));
+    }
+
+    /*
+        Formats page as a free page linking to given next free page
+     */
+    public static void formatFree(ByteBuffer page, long next) {
+        page.putLong(0, (long) FREE << VERSION_SHIFT);
+        page.putLong(8, next);
+    }
+
+    /*
+        Returns address of the free page following a free page
+     */
+    public static long nextFree(ByteBuffer page) {
+        if (version(page) != FREE) {
+            throw new IllegalArgumentException("Invalid argument in nextFree()");
+        }
+        return page.getLong(8);
+    }
+
+    /*
+        Returns bytes used by live entries, as kept in the grid directory
+     */
+    public static long usedBytes(ByteBuffer page) {
+        return page.getLong(0) & NBYTES_MASK;
+    }
+
+    /*
+        Returns number of live entries
+     */
+    public static long recordCount(ByteBuffer page) {
+        if (version(page) == LEGACY) {
+            return page.getLong(8);
+        }
+        return page.getInt(8);
+    }
+
+    /*
+        Returns number of slots, entry positions range over [0, slotCount)
+     */
+    public static long slotCount(ByteBuffer page) {
+        if (version(page) == LEGACY) {
+            return page.getLong(8);
+        }
+        return page.getInt(12);
+    }
+
+    /*
+        Returns bytes an entry of given record size takes in a slotted page
+     */
+    public static long entryBytes(long rsize) {
+        return ENTRY_HEADER_BYTES + rsize + SLOT_BYTES;
+    }
+
+    /*
+        Checks if a record fits in a bucket with given used bytes, valid for either format
+     */
+    public static boolean fits(long pageSize, long nbytes, long rsize) {
+        return entryBytes(rsize) <= pageSize - HEADER_BYTES - nbytes;
+    }
+
+    /*
+        Returns byte offset of entry at given slot, or TOMBSTONE if the entry was deleted
+     */
+    public static int entryOffset(ByteBuffer page, long slot) {
+        if (slot < 0 || slot >= slotCount(page)) {
+            throw new IllegalArgumentException("Invalid argument in entryOffset()");
+        }
+
+        if (version(page) == LEGACY) {
+            int be = LEGACY_HEADER_BYTES;
+            for (long iter = 0; iter < slot; iter++) {
+                be += ENTRY_HEADER_BYTES + (int) (page.getLong(be + 16) & ~BLOB_SIZE);
+            }
+            return be;
+        }
+
+        if (version(page) == COLUMNAR) {
+            if (page.getInt(payloadPosition(page, slot)) == TOMBSTONE) {
+                return TOMBSTONE;
+            }
+            return COLUMNAR_HEADER_BYTES + (int) slot * COORDINATE_BYTES;
+        }
+
+        return page.getInt(slotPosition(page, slot));
+    }
+
+    /*
+        Returns first slot from given slot on holding a live entry within specified coordinate range,
+        or -1 if there is none
+
+        Columnar pages are filtered in one pass over their coordinates, payload offsets are only
+        read for entries in the range.
+     */
+    public static long nextInRange(ByteBuffer page, long slot, long x1, long y1, long x2, long y2) {
+        int nslots = (int) slotCount(page);
+
+        if (version(page) == COLUMNAR) {
+            for (int iter = (int) slot; iter < nslots; iter++) {
+                int be = COLUMNAR_HEADER_BYTES + iter * COORDINATE_BYTES;
+                long bx = page.getLong(be);
+                long by = page.getLong(be + 8);
+
+                if (bx >= x1 && bx <= x2 && by >= y1 && by <= y2 &&
+                        page.getInt(payloadPosition(page, iter)) != TOMBSTONE) {
+                    return iter;
+                }
+            }
+            return -1;
+        }
+
+        if (version(page) == COMPRESSED) {
+            long bx = page.getLong(HEADER_BYTES);
+            long by = page.getLong(HEADER_BYTES + 8);
+
+            for (int iter = (int) slot; iter < nslots; iter++) {
+                int be = page.getInt(slotPosition(page, iter));
+                if (be == TOMBSTONE) {
+                    continue;
+                }
+
+                long x = bx + unzigzag(readVarint(page, be));
+                if (x < x1 || x > x2) {
+                    continue; // y is not decoded
+                }
+                long y = by + unzigzag(readVarint(page, skipVarint(page, be)));
+                if (y >= y1 && y <= y2) {
+                    return iter;
+                }
+            }
+            return -1;
+        }
+
+        for (long iter = slot; iter < nslots; iter++) {
+            int be = entryOffset(page, iter);
+            if (be == TOMBSTONE) {
+                continue;
+            }
+
+            long bx = page.getLong(be); // legacy and slotted entries start with raw x and y
+            long by = page.getLong(be + 8);
+            if (bx >= x1 && bx <= x2 && by >= y1 && by <= y2) {
+                return iter;
+            }
+        }
+        return -1;
+    }
+
+    public static long getX(ByteBuffer page, int be) {
+        if (version(page) == COMPRESSED) {
+            return page.getLong(HEADER_BYTES) + unzigzag(readVarint(page, be));
+        }
+        return page.getLong(be);
+    }
+
+    public static long getY(ByteBuffer page, int be) {
+        if (version(page) == COMPRESSED) {
+            return page.getLong(HEADER_BYTES + 8) + unzigzag(readVarint(page, skipVarint(page, be)));
+        }
+        return page.getLong(be + 8);
+    }
+
+    public static long getSize(ByteBuffer page, int be) {
+        if (version(page) == COLUMNAR) {
+            return page.getInt(getPayload(page, be)) & ~BLOB_SIZE;
+        }
+        if (version(page) == COMPRESSED) {
+            return readVarint(page, skipVarint(page, skipVarint(page, be))) >>> 2;
+        }
+        return page.getLong(be + 16) & ~BLOB_SIZE;
+    }
+
+    /*
+        Checks if entry at given offset holds a reference to a blob rather than its record
+     */
+    public static boolean isBlob(ByteBuffer page, int be) {
+        if (version(page) == COLUMNAR) {
+            return (page.getInt(getPayload(page, be)) & BLOB_SIZE) != 0;
+        }
+        if (version(page) == COMPRESSED) {
+            return (readVarint(page, skipVarint(page, skipVarint(page, be))) & 2) != 0;
+        }
+        return (page.getLong(be + 16) & BLOB_SIZE) != 0;
+    }
+
+    /*
+        Returns byte offset of record stored in entry at given offset, records compressed
+        in their page have none
+     */
+    public static int recordOffset(ByteBuffer page, int be) {
+        if (version(page) == COLUMNAR) {
+            return getPayload(page, be) + PAYLOAD_HEADER_BYTES;
+        }
+        if (version(page) == COMPRESSED) {
+            int pos = skipVarint(page, skipVarint(page, be));
+            if ((readVarint(page, pos) & 1) != 0) {
+                throw new IllegalArgumentException("Invalid argument in recordOffset()");
+            }
+            return skipVarint(page, pos);
+        }
+        return be + ENTRY_HEADER_BYTES;
+    }
+
+    /*
+        Returns view of record stored in entry at given offset, or a decompressed copy
+        of a record compressed in its page
+     */
+    public static ByteBuffer getRecord(ByteBuffer page, int be) {
+        if (version(page) == COMPRESSED && isCompressed(page, be)) {
+            ByteBuffer record = ByteBuffer.allocate((int) getSize(page, be));
+            copyRecord(page, be, record);
+            record.flip();
+            return record;
+        }
+
+        int offset = recordOffset(page, be);
+        ByteBuffer record = page.duplicate();
+        record.limit(offset + (int) getSize(page, be));
+        record.position(offset);
+        return record.slice();
+    }
+
+    /*
+        Copies record stored in entry at given offset into dst, which must have room for it
+     */
+    public static void copyRecord(ByteBuffer page, int be, ByteBuffer dst) {
+        if (version(page) == COMPRESSED && isCompressed(page, be)) {
+            int pos = skipVarint(page, skipVarint(page, skipVarint(page, be)));
+            int clen = (int) readVarint(page, pos);
+            PayloadCompressor.decompress(page, skipVarint(page, pos), clen, dst);
+            return;
+        }
+
+        int src = recordOffset(page, be);
+        int rsize = (int) getSize(page, be);
+        int iter = 0;
+        for (; iter + 8 <= rsize; iter += 8) { // copies without creating a view
+            dst.putLong(page.getLong(src + iter));
+        }
+        for (; iter < rsize; iter++) {
+            dst.put(page.get(src + iter));
+        }
+    }
+
+    /*
+        Checks if record of entry at given offset in a compressed page is LZ compressed
+     */
+    private static boolean isCompressed(ByteBuffer page, int be) {
+        return (readVarint(page, skipVarint(page, skipVarint(page, be))) & 1) != 0;
+    }
+
+    /*
+        Appends entry holding remaining bytes of record, compacting the heap if needed
+     */
+    public static void append(ByteBuffer page, long x, long y, ByteBuffer record) {
+        append(page, x, y, record, false);
+    }
+
+    /*
+        Appends entry holding remaining bytes of record, or of a blob reference if blob is set
+     */
+    public static void append(ByteBuffer page, long x, long y, ByteBuffer record, boolean blob) {
+        int rsize = record.remaining();
+
+        if (version(page) == LEGACY && page.getLong(8) == 0) {
+            format(page); // empty legacy pages are slotted pages to be
+        }
+
+        if (version(page) == LEGACY) {
+            appendLegacy(page, x, y, record, blob);
+            return;
+        }
+
+        if (version(page) == COLUMNAR) {
+            appendColumnar(page, x, y, record, blob);
+            return;
+        }
+
+        if (version(page) == COMPRESSED) {
+            appendCompressed(page, x, y, record, blob);
+            return;
+        }
+
+        int nslots = page.getInt(12);
+        if (freeBytes(page, nslots) < ENTRY_HEADER_BYTES + rsize + SLOT_BYTES) {
+            compact(page);
+            nslots = page.getInt(12);
+            if (freeBytes(page, nslots) < ENTRY_HEADER_BYTES + rsize + SLOT_BYTES) {
+                throw new OutOfMemoryError("Out of memory in append()");
+            }
+        }
+
+        int be = page.getInt(16);
+        writeEntry(page, be, x, y, record, blob);
+        page.putInt(slotPosition(page, nslots), be);
+
+        page.putInt(16, be + ENTRY_HEADER_BYTES + rsize);
+        page.putInt(12, nslots + 1);
+        page.putInt(8, page.getInt(8) + 1);
+        addUsedBytes(page, entryBytes(rsize));
+    }
+
+    /*
+        Deletes entry at given slot, slotted pages leave a tombstone while legacy pages
+        move later entries down one position
+     */
+    public static void delete(ByteBuffer page, long slot) {
+        int be = entryOffset(page, slot);
+        if (be == TOMBSTONE) {
+            throw new IllegalArgumentException("Invalid argument in delete()");
+        }
+
+        long rsize = getSize(page, be);
+
+        if (version(page) == LEGACY) {
+            deleteLegacy(page, be, rsize);
+            return;
+        }
+
+        if (version(page) == COLUMNAR) {
+            deleteColumnar(page, slot, rsize);
+            return;
+        }
+
+        long ebytes = entryBytes(rsize);
+        int esize = ENTRY_HEADER_BYTES + (int) rsize;
+        if (version(page) == COMPRESSED) {
+            esize = entryLength(page, be);
+            ebytes = esize + SLOT_BYTES;
+            if (page.getInt(8) == 1) { // last record, the base goes with it
+                int overflow = page.getInt(OVERFLOW_POSITION);
+                format(page, COMPRESSED, flags(page));
+                page.putInt(OVERFLOW_POSITION, overflow);
+                return;
+            }
+        }
+
+        int nslots = page.getInt(12);
+        if (slot == nslots - 1) {
+            page.putInt(12, nslots - 1); // last slot is dropped rather than tombstoned
+            if (be + esize == page.getInt(16)) {
+                page.putInt(16, be); // so is last entry in the heap
+            }
+        } else {
+            page.putInt(slotPosition(page, slot), TOMBSTONE);
+        }
+
+        page.putInt(8, page.getInt(8) - 1);
+        addUsedBytes(page, -ebytes);
+    }
+
+    /*
+        Checks if deleting entries moves later entries to lower positions
+     */
+    public static boolean shiftsOnDelete(ByteBuffer page) {
+        return version(page) == LEGACY;
+    }
+
+    /*
+        Rewrites live entries of a slotted or columnar page contiguously, dropping tombstones
+        Slot positions of remaining entries change
+     */
+    public static void compact(ByteBuffer page) {
+        if (version(page) == COLUMNAR) {
+            compactColumnar(page);
+            return;
+        }
+
+        int nslots = page.getInt(12);
+        byte[] heap = new byte[page.getInt(16)];
+        int[] offsets = new int[nslots];
+        int nlive = 0;
+
+        ByteBuffer copy = page.duplicate();
+        copy.position(0);
+        copy.get(heap);
+        ByteBuffer entries = ByteBuffer.wrap(heap);
+
+        int be = heapStart(page);
+        for (int slot = 0; slot < nslots; slot++) {
+            int old = page.getInt(slotPosition(page, slot));
+            if (old == TOMBSTONE) {
+                continue;
+            }
+
+            int esize = entryLength(entries, old);
+            copy.position(be);
+            copy.put(heap, old, esize);
+            offsets[nlive++] = be;
+            be += esize;
+        }
+
+        for (int slot = 0; slot < nlive; slot++) {
+            page.putInt(slotPosition(page, slot), offsets[slot]);
+        }
+
+        page.putInt(12, nlive);
+        page.putInt(16, be);
+    }
+
+    /*
+        Converts legacy page to a slotted page in place
+        Returns false and leaves the page untouched if its entries do not fit a slotted page
+     */
+    public static boolean upgrade(ByteBuffer page) {
+        if (version(page) != LEGACY) {
+            return true;
+        }
+
+        long nbytes = page.getLong(0);
+        long nrecords = page.getLong(8);
+        if (HEADER_BYTES + nbytes + nrecords * SLOT_BYTES > page.capacity()) {
+            return false;
+        }
+
+        byte[] entries = new byte[(int) nbytes];
+        ByteBuffer copy = page.duplicate();
+        copy.position(LEGACY_HEADER_BYTES);
+        copy.get(entries);
+
+        format(page);
+
+        ByteBuffer legacy = ByteBuffer.wrap(entries);
+        int be = 0;
+        for (long iter = 0; iter < nrecords; iter++) {
+            long size = legacy.getLong(be + 16);
+            int rsize = (int) (size & ~BLOB_SIZE);
+            legacy.limit(be + ENTRY_HEADER_BYTES + rsize);
+            legacy.position(be + ENTRY_HEADER_BYTES);
+            append(page, legacy.getLong(be), legacy.getLong(be + 8), legacy, (size & BLOB_SIZE) != 0);
+            legacy.limit(legacy.capacity());
+            be += ENTRY_HEADER_BYTES + rsize;
+        }
+
+        return true;
+    }
+
+    /*
+        Returns byte offset of the first entry of a slotted or compressed page
+     */
+    private static int heapStart(ByteBuffer page) {
+        if (version(page) == COMPRESSED && (flags(page) & BASE_SET) != 0) {
+            return HEADER_BYTES + BASE_BYTES;
+        }
+        return HEADER_BYTES;
+    }
+
+    /*
+        Returns bytes taken by entry at given offset of a slotted or compressed page, without its slot
+     */
+    private static int entryLength(ByteBuffer page, int be) {
+        if (version(page) != COMPRESSED) {
+            return ENTRY_HEADER_BYTES + (int) (page.getLong(be + 16) & ~BLOB_SIZE);
+        }
+
+        int pos = skipVarint(page, skipVarint(page, be));
+        long size = readVarint(page, pos);
+        pos = skipVarint(page, pos);
+        if ((size & 1) != 0) {
+            int clen = (int) readVarint(page, pos);
+            return skipVarint(page, pos) + clen - be;
+        }
+        return pos + (int) (size >>> 2) - be;
+    }
+
+    /*
+        Appends entry to compressed page, storing the base on the first entry
+     */
+    private static void appendCompressed(ByteBuffer page, long x, long y, ByteBuffer record, boolean blob) {
+        int rsize = record.remaining();
+        int flags = flags(page);
+        boolean based = (flags & BASE_SET) != 0;
+        long bx = based ? page.getLong(HEADER_BYTES) : x;
+        long by = based ? page.getLong(HEADER_BYTES + 8) : y;
+        long zx = zigzag(x - bx);
+        long zy = zigzag(y - by);
+
+        byte[] block = null;
+        int clen = 0;
+        if ((flags & COMPRESS_PAYLOADS) != 0 && rsize >= MIN_COMPRESSED_BYTES) {
+            block = packed.get();
+            if (block == null || block.length < rsize) {
+                block = new byte[Math.max(rsize, 256)];
+                packed.set(block);
+            }
+            clen = PayloadCompressor.compress(record, block);
+            if (clen < 0 || clen + varintBytes(clen) >= rsize) {
+                block = null; // incompressible, stored as is
+            }
+        }
+
+        long size = ((long) rsize << 2) | (blob ? 2 : 0) | (block != null ? 1 : 0);
+        int esize = varintBytes(zx) + varintBytes(zy) + varintBytes(size) +
+                (block != null ? varintBytes(clen) + clen : rsize);
+        int extra = based ? 0 : BASE_BYTES;
+
+        int nslots = page.getInt(12);
+        if (freeBytes(page, nslots) < extra + esize + SLOT_BYTES) {
+            compact(page);
+            nslots = page.getInt(12);
+            if (freeBytes(page, nslots) < extra + esize + SLOT_BYTES) {
+                throw new OutOfMemoryError("Out of memory in append()");
+            }
+        }
+
+        if (!based) { // no entries since formatted, the heap is empty
+            page.putLong(HEADER_BYTES, bx);
+            page.putLong(HEADER_BYTES + 8, by);
+            page.putLong(0, page.getLong(0) | (long) BASE_SET << FLAGS_SHIFT);
+            page.putInt(16, HEADER_BYTES + BASE_BYTES);
+        }
+
+        int be = page.getInt(16);
+        int pos = writeVarint(page, be, zx);
+        pos = writeVarint(page, pos, zy);
+        pos = writeVarint(page, pos, size);
+        ByteBuffer target = page.duplicate();
+        if (block != null) {
+            pos = writeVarint(page, pos, clen);
+            target.position(pos);
+            target.put(block, 0, clen);
+        } else {
+            target.position(pos);
+            target.put(record.duplicate()); // memcpy
+        }
+        page.putInt(slotPosition(page, nslots), be);
+
+        page.putInt(16, be + esize);
+        page.putInt(12, nslots + 1);
+        page.putInt(8, page.getInt(8) + 1);
+        addUsedBytes(page, extra + esize + SLOT_BYTES);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintBytes(long value) {
+        int nbytes = 1;
+        while ((value >>>= 7) != 0) {
+            nbytes++;
+        }
+        return nbytes;
+    }
+
+    /*
+        Writes value in 7 bit groups, low group first, returns position after it
+     */
+    private static int writeVarint(ByteBuffer page, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            page.put(pos++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        page.put(pos++, (byte) value);
+        return pos;
+    }
+
+    private static long readVarint(ByteBuffer page, int pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = page.get(pos++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static int skipVarint(ByteBuffer page, int pos) {
+        while (page.get(pos++) < 0) {
+        }
+        return pos;
+    }
+
+    private static int flags(ByteBuffer page) {
+        return (int) (page.getLong(0) >>> FLAGS_SHIFT) & 0xFFFF;
+    }
+
+    private static int slotPosition(ByteBuffer page, long slot) {
+        return page.capacity() - (int) ((slot + 1) * SLOT_BYTES);
+    }
+
+    private static int freeBytes(ByteBuffer page, int nslots) {
+        return slotPosition(page, nslots - 1) - page.getInt(16);
+    }
+
+    private static void addUsedBytes(ByteBuffer page, long delta) {
+        long header = page.getLong(0);
+        page.putLong(0, (header & ~NBYTES_MASK) | ((header & NBYTES_MASK) + delta));
+    }
+
+    private static void writeEntry(ByteBuffer page, int be, long x, long y, ByteBuffer record, boolean blob) {
+        int rsize = record.remaining();
+
+        page.putLong(be, x);
+        page.putLong(be + 8, y);
+        page.putLong(be + 16, rsize | (blob ? BLOB_SIZE : 0));
+
+        ByteBuffer target = page.duplicate();
+        target.position(be + ENTRY_HEADER_BYTES);
+        target.put(record.duplicate()); // memcpy
+    }
+
+    private static int payloadPosition(ByteBuffer page, long slot) {
+        return COLUMNAR_HEADER_BYTES + page.getInt(24) * COORDINATE_BYTES + (int) slot * SLOT_BYTES;
+    }
+
+    private static int getPayload(ByteBuffer page, int be) {
+        return page.getInt(payloadPosition(page, (be - COLUMNAR_HEADER_BYTES) / COORDINATE_BYTES));
+    }
+
+    private static int columnarFreeBytes(ByteBuffer page) {
+        return page.getInt(16) - (COLUMNAR_HEADER_BYTES + page.getInt(24) * COLUMN_BYTES);
+    }
+
+    /*
+        Appends entry to columnar page, doubling its columns if full and there is room,
+        otherwise growing them by one entry after compacting the page if needed
+     */
+    private static void appendColumnar(ByteBuffer page, long x, long y, ByteBuffer record, boolean blob) {
+        int rsize = record.remaining();
+        int nslots = page.getInt(12);
+        int capacity = page.getInt(24);
+        int grow = nslots < capacity ? 0 : Math.max(1, capacity);
+
+        if (columnarFreeBytes(page) < PAYLOAD_HEADER_BYTES + rsize + grow * COLUMN_BYTES) {
+            grow = Math.min(grow, 1);
+            if (columnarFreeBytes(page) < PAYLOAD_HEADER_BYTES + rsize + grow * COLUMN_BYTES) {
+                compactColumnar(page);
+                nslots = page.getInt(12);
+                capacity = page.getInt(24);
+                grow = nslots < capacity ? 0 : 1;
+                if (columnarFreeBytes(page) < PAYLOAD_HEADER_BYTES + rsize + grow * COLUMN_BYTES) {
+                    throw new OutOfMemoryError("Out of memory in append()");
+                }
+            }
+        }
+
+        if (grow > 0) { // payload offsets move up past the added coordinates, last first
+            int from = COLUMNAR_HEADER_BYTES + capacity * COORDINATE_BYTES;
+            int to = COLUMNAR_HEADER_BYTES + (capacity + grow) * COORDINATE_BYTES;
+            for (int slot = nslots - 1; slot >= 0; slot--) {
+                page.putInt(to + slot * SLOT_BYTES, page.getInt(from + slot * SLOT_BYTES));
+            }
+            page.putInt(24, capacity + grow);
+        }
+
+        int payload = page.getInt(16) - PAYLOAD_HEADER_BYTES - rsize;
+        page.putInt(payload, rsize | (blob ? BLOB_SIZE : 0));
+        ByteBuffer target = page.duplicate();
+        target.position(payload + PAYLOAD_HEADER_BYTES);
+        target.put(record.duplicate()); // memcpy
+
+        page.putLong(COLUMNAR_HEADER_BYTES + nslots * COORDINATE_BYTES, x);
+        page.putLong(COLUMNAR_HEADER_BYTES + nslots * COORDINATE_BYTES + 8, y);
+        page.putInt(payloadPosition(page, nslots), payload);
+
+        page.putInt(16, payload);
+        page.putInt(12, nslots + 1);
+        page.putInt(8, page.getInt(8) + 1);
+        addUsedBytes(page, entryBytes(rsize));
+    }
+
+    private static void deleteColumnar(ByteBuffer page, long slot, long rsize) {
+        int nslots = page.getInt(12);
+        int payload = page.getInt(payloadPosition(page, slot));
+
+        if (slot == nslots - 1) {
+            page.putInt(12, nslots - 1); // last slot is dropped rather than tombstoned
+            if (payload == page.getInt(16)) {
+                page.putInt(16, payload + PAYLOAD_HEADER_BYTES + (int) rsize); // so is last payload in the heap
+            }
+        } else {
+            page.putInt(payloadPosition(page, slot), TOMBSTONE);
+        }
+
+        page.putInt(8, page.getInt(8) - 1);
+        addUsedBytes(page, -entryBytes(rsize));
+    }
+
+    /*
+        Rewrites live entries of a columnar page with columns just holding them
+     */
+    private static void compactColumnar(ByteBuffer page) {
+        int nslots = page.getInt(12);
+        byte[] snapshot = new byte[page.capacity()];
+        ByteBuffer copy = page.duplicate();
+        copy.position(0);
+        copy.get(snapshot);
+        ByteBuffer old = ByteBuffer.wrap(snapshot);
+
+        int nlive = 0;
+        for (int slot = 0; slot < nslots; slot++) {
+            if (old.getInt(payloadPosition(old, slot)) != TOMBSTONE) {
+                nlive++;
+            }
+        }
+
+        long header = page.getLong(0);
+        int overflow = page.getInt(OVERFLOW_POSITION);
+        format(page, COLUMNAR);
+        page.putInt(OVERFLOW_POSITION, overflow);
+        page.putInt(24, nlive);
+
+        for (int slot = 0; slot < nslots; slot++) {
+            int payload = old.getInt(payloadPosition(old, slot));
+            if (payload == TOMBSTONE) {
+                continue;
+            }
+
+            int size = old.getInt(payload);
+            int rsize = size & ~BLOB_SIZE;
+            old.limit(payload + PAYLOAD_HEADER_BYTES + rsize);
+            old.position(payload + PAYLOAD_HEADER_BYTES);
+            appendColumnar(page, old.getLong(COLUMNAR_HEADER_BYTES + slot * COORDINATE_BYTES),
+                    old.getLong(COLUMNAR_HEADER_BYTES + slot * COORDINATE_BYTES + 8), old, (size & BLOB_SIZE) != 0);
+            old.limit(old.capacity());
+        }
+
+        page.putLong(0, header); // used bytes are unchanged
+    }
+
+    private static void appendLegacy(ByteBuffer page, long x, long y, ByteBuffer record, boolean blob) {
+        long nbytes = page.getLong(0);
+        int rsize = record.remaining();
+
+        if (LEGACY_HEADER_BYTES + nbytes + ENTRY_HEADER_BYTES + rsize > page.capacity()) {
+            throw new OutOfMemoryError("Out of memory in append()");
+        }
+
+        writeEntry(page, (int) (LEGACY_HEADER_BYTES + nbytes), x, y, record, blob);
+
+        page.putLong(0, nbytes + ENTRY_HEADER_BYTES + rsize);
+        page.putLong(8, page.getLong(8) + 1);
+    }
+
+    private static void deleteLegacy(ByteBuffer page, int be, long rsize) {
+        long nbytes = page.getLong(0);
+        int nbe = be + ENTRY_HEADER_BYTES + (int) rsize;
+        int cbytes = (int) (LEGACY_HEADER_BYTES + nbytes) - nbe;
+
+        // memmove(cbe, nbe, cbytes);
+        byte[] entries = new byte[cbytes];
+        ByteBuffer copy = page.duplicate();
+        copy.position(nbe);
+        copy.get(entries, 0, cbytes);
+        copy.position(be);
+        copy.put(entries, 0, cbytes);
+
+        page.putLong(0, nbytes - (ENTRY_HEADER_BYTES + rsize));
+        page.putLong(8, page.getLong(8) - 1);
+    }
+}
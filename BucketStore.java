@@ -0,0 +1,306 @@
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+    Keeps one channel open on the buckets file and maps it in large fixed-size segments,
+    handing out page sized views of those segments as grid buckets
+
+    The buckets file starts empty and is extended a segment at a time as buckets are allocated.
+
+    Given a number of cache frames the store maps nothing and keeps buckets in a BucketCache
+    instead, views must then be released with release() and changes marked with markDirty().
+
+    With the GridConfig.ACCESS_SEQUENTIAL hint, segments are loaded into memory as they are mapped.
+
+    A store without a buckets file keeps its segments on heap, for grids held in memory only.
+ */
+public class BucketStore {
+    public static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private final String bucketName;
+    private final long pageSize;
+    private final long pagesPerSegment;
+    private final long segmentSize;
+    private RandomAccessFile bucketFile;
+    private FileChannel bucketChannel;
+    private volatile ByteBuffer[] segments; // mapped, or on heap without a buckets file
+    private volatile long length; // bytes of the buckets file
+    private final int cacheFrames;
+    private BucketCache cache; // null unless caching
+    private int accessHint = GridConfig.ACCESS_RANDOM;
+
+    public BucketStore(String bucketName, long pageSize) {
+        this(bucketName, pageSize, 0);
+    }
+
+    /*
+        Creates store keeping given number of buckets in a cache, or mapping the buckets file if 0
+     */
+    public BucketStore(String bucketName, long pageSize, int cacheFrames) {
+        this(bucketName, pageSize, cacheFrames, SEGMENT_BYTES);
+    }
+
+    /*
+        Creates store mapping the buckets file in segments of given bytes, rounded down to whole pages
+     */
+    public BucketStore(String bucketName, long pageSize, int cacheFrames, long segmentBytes) {
+        this.bucketName = bucketName;
+        this.cacheFrames = cacheFrames;
+        this.pageSize = pageSize;
+        this.pagesPerSegment = Math.max(1, segmentBytes / pageSize); // segments never split a bucket
+        this.segmentSize = this.pagesPerSegment * pageSize;
+        this.segments = new ByteBuffer[0];
+    }
+
+    /*
+        Creates store keeping buckets on heap in segments of given bytes, with no buckets file
+     */
+    public BucketStore(long pageSize, long segmentBytes) {
+        this(null, pageSize, 0, segmentBytes);
+    }
+
+    /*
+        Opens the long-lived channel on the buckets file
+     */
+    public void open() {
+        if (this.bucketName == null) {
+            return;
+        }
+
+        try {
+            this.bucketFile = new RandomAccessFile(this.bucketName, "rw");
+            this.bucketChannel = this.bucketFile.getChannel();
+            this.length = this.bucketFile.length();
+            if (this.cacheFrames > 0) {
+                this.cache = new BucketCache(this.bucketChannel, this.pageSize, this.cacheFrames);
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: open()");
+        }
+    }
+
+    /*
+        Extends the buckets file to hold given number of buckets, rounded up to whole segments
+     */
+    public void extend(long nbuckets) {
+        if (nbuckets * this.pageSize <= this.length) {
+            return;
+        }
+
+        synchronized (this) {
+            long length = (nbuckets + this.pagesPerSegment - 1) / this.pagesPerSegment * this.segmentSize;
+            if (length <= this.length) {
+                return;
+            }
+            if (this.bucketName == null) {
+                this.length = length; // segments are allocated on first access
+                return;
+            }
+
+            try {
+                this.bucketFile.setLength(length);
+            } catch (Exception e) {
+                //e.printStackTrace();
+                System.out.println("Error: extend()");
+                throw new IllegalStateException("Unable to extend buckets file " + this.bucketName);
+            }
+            this.length = length;
+        }
+    }
+
+    /*
+        Returns a view of the bucket at given bucket address
+     */
+    public ByteBuffer slice(long baddr) {
+        if (this.cache != null) {
+            return this.cache.pin(baddr);
+        }
+
+        int index = (int) (baddr / this.pagesPerSegment);
+        int offset = (int) ((baddr % this.pagesPerSegment) * this.pageSize);
+
+        ByteBuffer view = mapSegment(index).duplicate();
+        view.position(offset);
+        view.limit(offset + (int) this.pageSize);
+        return view.slice();
+    }
+
+    /*
+        Releases view returned by slice()
+     */
+    public void release(ByteBuffer view) {
+        if (this.cache != null && view != null) {
+            this.cache.unpin(view);
+        }
+    }
+
+    /*
+        Marks bucket at given bucket address changed through a view not yet released
+     */
+    public void markDirty(long baddr) {
+        if (this.cache != null) {
+            this.cache.markDirty(baddr);
+        }
+    }
+
+    /*
+        Sets how buckets are read, see GridConfig, for segments mapped from now on
+     */
+    public void setAccessHint(int accessHint) {
+        this.accessHint = accessHint;
+    }
+
+    /*
+        Maps all segments of the buckets file and loads them into memory, unless caching
+     */
+    public void load() {
+        if (this.cache != null || this.bucketName == null) {
+            return;
+        }
+
+        long nsegments = (this.length + this.segmentSize - 1) / this.segmentSize;
+        for (int index = 0; index < nsegments; index++) {
+            ((MappedByteBuffer) mapSegment(index)).load();
+        }
+    }
+
+    /*
+        Returns bucket cache, or null if the buckets file is mapped
+     */
+    public BucketCache getCache() {
+        return this.cache;
+    }
+
+    /*
+        Returns segment for given index, mapping or allocating it on first use
+     */
+    private ByteBuffer mapSegment(int index) {
+        ByteBuffer[] current = this.segments;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+
+        synchronized (this) {
+            current = this.segments;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, 2 * current.length));
+            } else if (current[index] != null) {
+                return current[index];
+            } else {
+                current = current.clone();
+            }
+
+            if (this.bucketName == null) {
+                current[index] = ByteBuffer.allocate((int) this.segmentSize);
+                this.segments = current;
+                return current[index];
+            }
+
+            try {
+                MappedByteBuffer segment = this.bucketChannel.map(FileChannel.MapMode.READ_WRITE,
+                        index * this.segmentSize, this.segmentSize);
+                if (this.accessHint == GridConfig.ACCESS_SEQUENTIAL) {
+                    segment.load();
+                }
+                current[index] = segment;
+            } catch (Exception e) {
+                //e.printStackTrace();
+                System.out.println("Error: mapSegment()");
+                throw new IllegalStateException("Unable to map bucket segment " + index);
+            }
+
+            this.segments = current;
+            return current[index];
+        }
+    }
+
+    /*
+        Writes mapped segments or dirty cached buckets back to the buckets file
+     */
+    public void force() {
+        if (this.cache != null) {
+            try {
+                this.cache.flush();
+                this.bucketChannel.force(false);
+            } catch (Exception e) {
+                //e.printStackTrace();
+                System.out.println("Error: force()");
+                throw new IllegalStateException("Unable to force buckets file " + this.bucketName);
+            }
+            return;
+        }
+
+        for (ByteBuffer segment : this.segments) {
+            if (segment instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+    /*
+        Unmaps all segments or writes back and drops cached buckets, and closes the buckets file
+     */
+    public synchronized void close() {
+        if (this.cache != null) {
+            this.cache.close();
+            this.cache = null;
+        }
+
+        ByteBuffer[] current = this.segments;
+        this.segments = new ByteBuffer[0];
+
+        for (ByteBuffer segment : current) {
+            unmap(segment);
+        }
+
+        try {
+            if (this.bucketFile != null) {
+                this.bucketFile.close();
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: close()");
+        }
+
+        this.bucketFile = null;
+        this.bucketChannel = null;
+    }
+
+    /*
+        Releases a mapping immediately instead of waiting for garbage collection
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try { // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception ex) {
+                //ex.printStackTrace();
+                System.out.println("Error: unmap()");
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: unmap()");
+        }
+    }
+}
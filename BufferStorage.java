@@ -0,0 +1,74 @@
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+    Grid file mapped in one buffer, for files of up to Integer.MAX_VALUE bytes, or a grid file
+    held in a buffer that maps no file
+ */
+public class BufferStorage implements GridStorage {
+    private ByteBuffer buffer;
+
+    /*
+        Keeps grid file in given buffer, forcing it if mapped
+     */
+    public BufferStorage(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /*
+        Maps given bytes of the named file, extending it if shorter
+     */
+    public BufferStorage(String fileName, long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid argument in BufferStorage()");
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            raf.close();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: BufferStorage()");
+            throw new IllegalStateException("Unable to map grid file " + fileName);
+        }
+    }
+
+    public long getLong(long offset) {
+        return this.buffer.getLong((int) offset);
+    }
+
+    public void putLong(long offset, long value) {
+        this.buffer.putLong((int) offset, value);
+    }
+
+    public void get(long offset, ByteBuffer dst) {
+        ByteBuffer src = this.buffer.duplicate();
+        src.position((int) offset);
+        src.limit((int) offset + dst.remaining());
+        dst.put(src); // memcpy
+    }
+
+    public void put(long offset, ByteBuffer src) {
+        ByteBuffer dst = this.buffer.duplicate();
+        dst.position((int) offset);
+        dst.put(src); // memcpy
+    }
+
+    public long size() {
+        return this.buffer.capacity();
+    }
+
+    public void force() {
+        if (this.buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) this.buffer).force();
+        }
+    }
+
+    public void close() {
+        BucketStore.unmap(this.buffer);
+        this.buffer = null;
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Hammers a thread-safe grid with concurrent inserts, batches, deletes, lookups and range queries,
+    then checks that every surviving record is found exactly once with its payload
+
+    Usage: ConcurrentGridStress [writers] [records per writer] [readers] [cached buckets] [grid size]
+
+    A grid size small enough for the records to outgrow makes the grid resize while it is read.
+ */
+public class ConcurrentGridStress {
+    private static final long LONGBYTES = Long.SIZE / 8;
+    private static final int BATCH = 64;
+
+    private static GridFile grid;
+    private static long[][] xs;
+    private static long[][] ys;
+    private static AtomicIntegerArray inserted; // records inserted by each writer so far
+    private static AtomicIntegerArray deleted; // records deleted or being deleted by each writer, every fourth record
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong lookups = new AtomicLong();
+    private static final AtomicLong scans = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static volatile boolean writing = true;
+
+    public static void main(String[] args) throws Exception {
+        int nwriters = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int nrecords = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int nreaders = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int ncached = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int size = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        String name = new File(System.getProperty("java.io.tmpdir"), "stressgrid").getPath();
+
+        grid = new GridFile();
+        grid.createGrid(size, 4096, name);
+        grid.setBucketCache(ncached);
+        grid.loadGrid();
+        grid.setThreadSafe(true);
+
+        xs = new long[nwriters][nrecords];
+        ys = new long[nwriters][nrecords];
+        inserted = new AtomicIntegerArray(nwriters);
+        deleted = new AtomicIntegerArray(nwriters);
+        for (int writer = 0; writer < nwriters; writer++) {
+            Random random = new Random(writer);
+            for (int iter = 0; iter < nrecords; iter++) {
+                // low bits hold writer so writers never share coordinates
+                xs[writer][iter] = ((long) random.nextInt(1 << 26) << 4) | writer;
+                ys[writer][iter] = random.nextInt(Integer.MAX_VALUE);
+            }
+        }
+
+        Thread[] writers = new Thread[nwriters];
+        for (int writer = 0; writer < nwriters; writer++) {
+            final int id = writer;
+            writers[writer] = new Thread(new Runnable() {
+                public void run() {
+                    write(id);
+                }
+            });
+        }
+
+        Thread[] readers = new Thread[nreaders];
+        for (int reader = 0; reader < nreaders; reader++) {
+            final int id = reader;
+            readers[reader] = new Thread(new Runnable() {
+                public void run() {
+                    read(id);
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing = false;
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long expected = check(nwriters, nrecords);
+
+        System.out.printf("%d writers, %d readers, %d records in %.1f ms%n",
+                nwriters, nreaders, (long) nwriters * nrecords, elapsed / 1e6);
+        System.out.printf("%d lookups, %d scans, %d scans failed by grid splits, %d records left%n",
+                lookups.get(), scans.get(), retries.get(), expected);
+
+        grid.unloadGrid();
+        new File(name + "scale").delete();
+        new File(name + "directory").delete();
+        new File(name + "buckets").delete();
+        new File(name + "freelist").delete();
+
+        if (failures.get() != 0) {
+            System.out.println("FAILED with " + failures.get() + " inconsistencies");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /*
+        Inserts records of writer, odd writers in batches, and deletes every fourth record
+     */
+    private static void write(int writer) {
+        int nrecords = xs[writer].length;
+        int iter = 0;
+
+        while (iter < nrecords) {
+            if (writer % 2 == 1) {
+                int count = Math.min(BATCH, nrecords - iter);
+                long[] bxs = new long[count];
+                long[] bys = new long[count];
+                ByteBuffer[] payloads = new ByteBuffer[count];
+                for (int index = 0; index < count; index++) {
+                    bxs[index] = xs[writer][iter + index];
+                    bys[index] = ys[writer][iter + index];
+                    payloads[index] = payload(writer, iter + index);
+                }
+                grid.insertBatch(bxs, bys, payloads);
+                iter += count;
+            } else {
+                grid.insertRecord(xs[writer][iter], ys[writer][iter], payload(writer, iter));
+                iter++;
+            }
+            inserted.set(writer, iter);
+
+            while (4 * deleted.get(writer) + 4 <= iter) { // delete behind inserts
+                int victim = 4 * deleted.get(writer);
+                deleted.set(writer, deleted.get(writer) + 1); // announced first, readers may miss it from now on
+                grid.deleteRecord(xs[writer][victim], ys[writer][victim]);
+            }
+        }
+    }
+
+    /*
+        Looks up records already inserted and checks their payloads, with a range scan every so often
+     */
+    private static void read(int reader) {
+        Random random = new Random(1000 + reader);
+        int nwriters = inserted.length();
+        ByteBuffer dst = ByteBuffer.allocate(64);
+
+        while (writing) {
+            int writer = random.nextInt(nwriters);
+            int count = inserted.get(writer);
+            if (count == 0) {
+                continue;
+            }
+
+            int iter = random.nextInt(count);
+            dst.clear();
+            int rsize = grid.findRecord(xs[writer][iter], ys[writer][iter], dst);
+
+            boolean live = iter % 4 != 0 || iter / 4 >= deleted.get(writer); // still not deleted after lookup
+            if (rsize < 0 ? live : rsize != 2 * LONGBYTES || dst.getLong(0) != writer ||
+                    dst.getLong((int) LONGBYTES) != iter) {
+                failures.incrementAndGet();
+            }
+            lookups.incrementAndGet();
+
+            if (lookups.get() % 10000 == 0) {
+                try {
+                    long x1 = random.nextInt(1 << 29);
+                    long y1 = random.nextInt(1 << 29);
+                    grid.findRangeStream(x1, y1, x1 + (1 << 28), y1 + (1 << 28)).count();
+                    List<Record> records = grid.findRangeRecordsParallel(x1, y1, x1 + (1 << 28), y1 + (1 << 28), false);
+                    for (Record record : records) {
+                        if (record.getX() < x1 || record.getX() > x1 + (1 << 28)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    scans.incrementAndGet();
+                } catch (ConcurrentModificationException e) {
+                    retries.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /*
+        Checks every record once all threads are done
+        Returns number of records left
+     */
+    private static long check(int nwriters, int nrecords) {
+        long expected = 0;
+
+        for (int writer = 0; writer < nwriters; writer++) {
+            for (int iter = 0; iter < nrecords; iter++) {
+                boolean live = iter % 4 != 0 || iter / 4 >= deleted.get(writer);
+                ByteBuffer record = grid.findRecordSlice(xs[writer][iter], ys[writer][iter]);
+
+                if (live != (record != null) || (record != null && record.getLong((int) LONGBYTES) != iter)) {
+                    failures.incrementAndGet();
+                }
+                if (live) {
+                    expected++;
+                }
+            }
+        }
+
+        long counted = grid.findRangeStream(0, 0, Long.MAX_VALUE, Long.MAX_VALUE).count();
+        long parallel = grid.findRangeRecordsParallel(0, 0, Long.MAX_VALUE, Long.MAX_VALUE, true).size();
+        if (counted != expected || parallel != expected) {
+            System.out.println("range count " + counted + ", parallel " + parallel + ", expected " + expected);
+            failures.incrementAndGet();
+        }
+
+        return expected;
+    }
+
+    private static ByteBuffer payload(int writer, int iter) {
+        ByteBuffer payload = ByteBuffer.allocate((int) (2 * LONGBYTES));
+        payload.putLong(0, writer);
+        payload.putLong((int) LONGBYTES, iter);
+        return payload;
+    }
+}
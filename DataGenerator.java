@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+    Generates records for benchmarks, after datagenerator.cpp with more coordinate shapes
+
+    Coordinates fall in [0, Integer.MAX_VALUE] like rand() in the C++ port. Records are random
+    length substrings of a digit string up to a maximum record size.
+ */
+public class DataGenerator {
+    public static final int UNIFORM = 0; // independent uniform coordinates
+    public static final int CLUSTERED = 1; // gaussian clusters around a few random centers
+    public static final int SKEWED = 2; // power law towards the origin in both coordinates
+    public static final int DIAGONAL = 3; // correlated coordinates along the diagonal
+    public static final int SEQUENTIAL = 4; // increasing x, as loaded from a sorted source
+
+    public static final String[] NAMES = {"uniform", "clustered", "skewed", "diagonal", "sequential"};
+
+    private static final long RANGE = Integer.MAX_VALUE;
+    private static final int CLUSTERS = 16;
+    private static final byte[] RSTRING = new byte[4096];
+
+    static {
+        for (int iter = 0; iter < RSTRING.length; iter++) {
+            RSTRING[iter] = (byte) ('0' + iter % 10);
+        }
+    }
+
+    private final int distribution;
+    private final int maxRecordSize;
+    private final Random random;
+    private final long[] centers;
+    private long sequence;
+
+    public DataGenerator(int distribution, int maxRecordSize, long seed) {
+        if (distribution < UNIFORM || distribution > SEQUENTIAL || maxRecordSize < 1 || maxRecordSize > RSTRING.length) {
+            throw new IllegalArgumentException("Invalid argument in DataGenerator()");
+        }
+
+        this.distribution = distribution;
+        this.maxRecordSize = maxRecordSize;
+        this.random = new Random(seed);
+        this.centers = new long[2 * CLUSTERS];
+        for (int iter = 0; iter < this.centers.length; iter++) {
+            this.centers[iter] = (long) (this.random.nextDouble() * RANGE);
+        }
+    }
+
+    /*
+        Returns distribution constant for given name
+     */
+    public static int parse(String name) {
+        for (int iter = 0; iter < NAMES.length; iter++) {
+            if (NAMES[iter].equalsIgnoreCase(name)) {
+                return iter;
+            }
+        }
+        throw new IllegalArgumentException("Invalid argument in parse()");
+    }
+
+    /*
+        Fills xs and ys with coordinates of the distribution
+     */
+    public void nextCoordinates(long[] xs, long[] ys) {
+        for (int iter = 0; iter < xs.length; iter++) {
+            switch (this.distribution) {
+                case CLUSTERED: {
+                    int cluster = this.random.nextInt(CLUSTERS);
+                    xs[iter] = clamp(this.centers[2 * cluster] + (long) (this.random.nextGaussian() * RANGE / 64));
+                    ys[iter] = clamp(this.centers[2 * cluster + 1] + (long) (this.random.nextGaussian() * RANGE / 64));
+                    break;
+                }
+                case SKEWED:
+                    xs[iter] = (long) (Math.pow(this.random.nextDouble(), 4) * RANGE);
+                    ys[iter] = (long) (Math.pow(this.random.nextDouble(), 4) * RANGE);
+                    break;
+                case DIAGONAL:
+                    xs[iter] = (long) (this.random.nextDouble() * RANGE);
+                    ys[iter] = clamp(xs[iter] + (long) (this.random.nextGaussian() * RANGE / 100));
+                    break;
+                case SEQUENTIAL:
+                    this.sequence += 1 + this.random.nextInt(64);
+                    xs[iter] = this.sequence % (RANGE + 1);
+                    ys[iter] = (long) (this.random.nextDouble() * RANGE);
+                    break;
+                default:
+                    xs[iter] = (long) (this.random.nextDouble() * RANGE);
+                    ys[iter] = (long) (this.random.nextDouble() * RANGE);
+                    break;
+            }
+        }
+    }
+
+    /*
+        Returns random length substring of the digit string, as getRandomString() in datagenerator.cpp
+     */
+    public ByteBuffer nextRecord() {
+        int rsize = 1 + this.random.nextInt(this.maxRecordSize);
+        int offset = this.random.nextInt(RSTRING.length - rsize + 1);
+        return ByteBuffer.wrap(RSTRING, offset, rsize).slice();
+    }
+
+    private static long clamp(long value) {
+        return Math.max(0, Math.min(RANGE, value));
+    }
+}
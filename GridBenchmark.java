@@ -0,0 +1,314 @@
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Benchmarks insertRecord(), findRecord(), deleteRecord() and findRangeRecords() over a sweep of
+    grid sizes, page sizes, record sizes and coordinate distributions
+
+    Each configuration is run for a number of rounds on a fresh grid, the first rounds warming up
+    the JIT, and reports the median round. Next to time per operation it reports heap bytes
+    allocated per operation and garbage collections during the round, so regressions in the hot
+    paths show up as numbers rather than as seconds of a whole run.
+
+    Usage: GridBenchmark [name=value ...]
+        grid=100,1000          grid sizes
+        page=4096,16384,65536  page sizes, aligned to the OS page size
+        record=16,128          maximum record sizes
+        dist=uniform,...       distributions, see DataGenerator.NAMES
+        records=200000         records inserted per round
+        ranges=200             range queries per round, each over 1% of the coordinate space
+        warmup=2 rounds=5      rounds discarded and measured
+        cache=0                buckets held by the bucket cache, 0 maps the buckets file
+        hugepages=false        power of two pages in 2 MB aligned segments, see GridConfig
+        access=random          bucket access hint, random or sequential
+        memory=false           grid held in memory only, with no grid files
+        layout=1               bucket page layout, 1 slotted, 2 columnar or 3 compressed
+        compress=false         LZ compression of records in compressed buckets
+        metrics=false          grid metrics, to measure their overhead and print split counters
+        dir=/tmp               directory for grid files
+ */
+public class GridBenchmark {
+    private static final int INSERT = 0;
+    private static final int FIND = 1;
+    private static final int RANGE = 2;
+    private static final int DELETE = 3;
+    private static final String[] OPERATIONS = {"insert", "find", "range", "delete"};
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static long[] grids = {100, 1000};
+    private static long[] pages = {4096, 16384, 65536};
+    private static long[] recordSizes = {16, 128};
+    private static String[] distributions = DataGenerator.NAMES;
+    private static int nrecords = 200000;
+    private static int nranges = 200;
+    private static int warmup = 2;
+    private static int rounds = 5;
+    private static String dir = System.getProperty("java.io.tmpdir");
+    private static int cacheBuckets = 0;
+    private static boolean hugePages = false;
+    private static int accessHint = GridConfig.ACCESS_RANDOM;
+    private static boolean inMemory = false;
+    private static int bucketLayout = BucketPage.SLOTTED;
+    private static boolean payloadCompression = false;
+    private static boolean metrics = false;
+    private static String metricsCounters; // grid metrics counters of the last round
+    private static String cacheCounters; // bucket cache counters of the last round
+    private static long sink;
+
+    public static void main(String[] args) {
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid argument " + arg);
+            }
+
+            if (pair[0].equals("grid")) {
+                grids = parseLongs(pair[1]);
+            } else if (pair[0].equals("page")) {
+                pages = parseLongs(pair[1]);
+            } else if (pair[0].equals("record")) {
+                recordSizes = parseLongs(pair[1]);
+            } else if (pair[0].equals("dist")) {
+                distributions = pair[1].split(",");
+            } else if (pair[0].equals("records")) {
+                nrecords = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("ranges")) {
+                nranges = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("warmup")) {
+                warmup = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("rounds")) {
+                rounds = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("dir")) {
+                dir = pair[1];
+            } else if (pair[0].equals("cache")) {
+                cacheBuckets = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("hugepages")) {
+                hugePages = Boolean.parseBoolean(pair[1]);
+            } else if (pair[0].equals("access")) {
+                accessHint = pair[1].equals("sequential") ? GridConfig.ACCESS_SEQUENTIAL : GridConfig.ACCESS_RANDOM;
+            } else if (pair[0].equals("memory")) {
+                inMemory = Boolean.parseBoolean(pair[1]);
+            } else if (pair[0].equals("layout")) {
+                bucketLayout = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("compress")) {
+                payloadCompression = Boolean.parseBoolean(pair[1]);
+            } else if (pair[0].equals("metrics")) {
+                metrics = Boolean.parseBoolean(pair[1]);
+            } else {
+                throw new IllegalArgumentException("Invalid argument " + arg);
+            }
+        }
+
+        if (threads.isThreadCpuTimeSupported() && !isAllocationSupported()) {
+            System.out.println("Allocation counters unavailable, B/op shows -1");
+        }
+
+        System.out.printf("%-6s %-6s %-6s %-10s %-6s %12s %10s %8s %8s%n",
+                "grid", "page", "record", "dist", "op", "ns/op", "B/op", "gc", "gc ms");
+
+        for (long grid : grids) {
+            for (long page : pages) {
+                page = GridConfig.alignPageSize(page, GridConfig.getOSPageSize(), hugePages);
+                for (long record : recordSizes) {
+                    for (String dist : distributions) {
+                        run(grid, page, (int) record, DataGenerator.parse(dist));
+                    }
+                }
+            }
+        }
+
+        System.out.println("(" + (sink & 1) + ")");
+    }
+
+    /*
+        Runs warmup and measured rounds of one configuration and prints median of each operation
+     */
+    private static void run(long gridSize, long pageSize, int recordSize, int distribution) {
+        double[][][] results = new double[OPERATIONS.length][rounds][];
+
+        for (int round = 0; round < warmup + rounds; round++) {
+            double[][] measured;
+            try {
+                measured = runRound(gridSize, pageSize, recordSize, distribution, round);
+            } catch (OutOfMemoryError e) { // grid scale full, the grid is too small for the data
+                System.out.printf("%-6d %-6d %-6d %-10s grid full%n", gridSize, pageSize, recordSize,
+                        DataGenerator.NAMES[distribution]);
+                return;
+            }
+            if (round >= warmup) {
+                for (int op = 0; op < OPERATIONS.length; op++) {
+                    results[op][round - warmup] = measured[op];
+                }
+            }
+        }
+
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            double[][] samples = results[op];
+            Arrays.sort(samples, (a, b) -> Double.compare(a[0], b[0]));
+            double[] median = samples[samples.length / 2];
+
+            System.out.printf("%-6d %-6d %-6d %-10s %-6s %12.1f %10.1f %8.0f %8.0f%n", gridSize, pageSize,
+                    recordSize, DataGenerator.NAMES[distribution], OPERATIONS[op],
+                    median[0], median[1], median[2], median[3]);
+        }
+        if (cacheCounters != null) {
+            System.out.println(cacheCounters);
+        }
+        if (metricsCounters != null) {
+            System.out.println(metricsCounters);
+        }
+    }
+
+    /*
+        Runs one round on a fresh grid
+        Returns ns/op, allocated B/op, collections and collection ms for each operation
+     */
+    private static double[][] runRound(long gridSize, long pageSize, int recordSize, int distribution, int round) {
+        String name = new File(dir, "benchgrid").getPath();
+        DataGenerator generator = new DataGenerator(distribution, recordSize, round);
+        long[] xs = new long[nrecords];
+        long[] ys = new long[nrecords];
+        ByteBuffer[] records = new ByteBuffer[nrecords];
+        double[][] measured = new double[OPERATIONS.length][];
+
+        generator.nextCoordinates(xs, ys);
+        for (int iter = 0; iter < nrecords; iter++) {
+            records[iter] = generator.nextRecord();
+        }
+
+        Random random = new Random(round);
+        int[] lookups = new int[nrecords];
+        for (int iter = 0; iter < nrecords; iter++) {
+            lookups[iter] = random.nextInt(nrecords);
+        }
+        long span = Integer.MAX_VALUE / 10; // 1% of the area
+        long[] corners = new long[2 * nranges];
+        for (int iter = 0; iter < corners.length; iter++) {
+            corners[iter] = (long) (random.nextDouble() * (Integer.MAX_VALUE - span));
+        }
+
+        GridConfig config = new GridConfig.Builder().gridSize(gridSize).pageSize(pageSize)
+                .hugePages(hugePages).accessHint(accessHint).inMemory(inMemory).build();
+        GridFile grid = new GridFile();
+        grid.createGrid(config, name);
+        grid.setBucketCache(cacheBuckets);
+        grid.setBucketLayout(bucketLayout);
+        grid.setPayloadCompression(payloadCompression);
+        grid.setMetrics(metrics);
+        grid.loadGrid();
+        ByteBuffer dst = ByteBuffer.allocate((int) pageSize);
+
+        try {
+            Probe probe = new Probe();
+            for (int iter = 0; iter < nrecords; iter++) {
+                grid.insertRecord(xs[iter], ys[iter], records[iter]);
+            }
+            measured[INSERT] = probe.stop(nrecords);
+
+            probe = new Probe();
+            for (int iter = 0; iter < nrecords; iter++) {
+                dst.clear();
+                sink += grid.findRecord(xs[lookups[iter]], ys[lookups[iter]], dst);
+            }
+            measured[FIND] = probe.stop(nrecords);
+
+            probe = new Probe();
+            for (int iter = 0; iter < nranges; iter++) {
+                long x1 = corners[2 * iter];
+                long y1 = corners[2 * iter + 1];
+                sink += grid.findRangeRecords(x1, y1, x1 + span, y1 + span, 0).length;
+            }
+            measured[RANGE] = probe.stop(nranges);
+
+            probe = new Probe();
+            for (int iter = 0; iter < nrecords; iter += 2) {
+                grid.deleteRecord(xs[iter], ys[iter]);
+            }
+            measured[DELETE] = probe.stop((nrecords + 1) / 2);
+
+            GridMetrics counters = grid.getMetrics();
+            if (counters != null) {
+                metricsCounters = String.format("metrics: %d grid splits %d bucket splits %d merges %d chained, " +
+                                "max split cascade %d, %.1f buckets per range, %d buckets mapped",
+                        counters.getGridSplits(), counters.getBucketSplits(), counters.getBucketMerges(),
+                        counters.getBucketsChained(), counters.getMaxSplitCascade(), counters.getMeanRangeBuckets(),
+                        counters.getBucketsMapped());
+            }
+
+            BucketCache cache = grid.getBucketCache();
+            if (cache != null) {
+                cacheCounters = String.format("bucket cache %d frames: %d hits %d misses %d evictions %d writebacks",
+                        cache.getFrames(), cache.getHits(), cache.getMisses(), cache.getEvictions(),
+                        cache.getWritebacks());
+            }
+        } finally {
+            grid.unloadGrid();
+            new File(name + "scale").delete();
+            new File(name + "directory").delete();
+            new File(name + "buckets").delete();
+            new File(name + "freelist").delete();
+            new File(name + "blobs").delete();
+        }
+
+        return measured;
+    }
+
+    private static boolean isAllocationSupported() {
+        return threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+    }
+
+    private static long allocatedBytes() {
+        if (!isAllocationSupported()) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long[] collections() {
+        long[] totals = new long[2];
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean collector : collectors) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static long[] parseLongs(String list) {
+        String[] items = list.split(",");
+        long[] values = new long[items.length];
+        for (int iter = 0; iter < items.length; iter++) {
+            values[iter] = Long.parseLong(items[iter]);
+        }
+        return values;
+    }
+
+    /*
+        Measures time, allocation of the running thread and collections from its creation on
+     */
+    private static class Probe {
+        private final long start = System.nanoTime();
+        private final long allocated = allocatedBytes();
+        private final long[] gcs = collections();
+
+        double[] stop(long nops) {
+            long elapsed = System.nanoTime() - start;
+            long bytes = allocatedBytes();
+            long[] now = collections();
+
+            return new double[]{
+                    elapsed / (double) nops,
+                    this.allocated < 0 ? -1 : (bytes - this.allocated) / (double) nops,
+                    now[0] - this.gcs[0],
+                    now[1] - this.gcs[1]};
+        }
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Checks behaviour of grids end to end on fresh grid files, exiting with status 1 if any check fails
+
+    Each check writes records whose payload holds their index, so a record found at the wrong
+    coordinates or a payload read back torn shows up as a mismatch rather than as a count.
+
+        wal       write-ahead log recovery of files left by a crash, after a commit and within a group
+        merge     grid entries and records after deletes merge shared buckets and drop partitions
+        chain     records in overflow chains of a grid that cannot split, through deletes emptying them
+        blob      records larger than a page in the blob file, reused once freed and after a reload
+        snapshot  grids saved by snapshotGrid() and loaded after openGrid() equal the grids saved
+
+    Usage: GridCheck [check ...], all checks if none are given
+ */
+public class GridCheck {
+    private static final long LONGBYTES = Long.SIZE / 8;
+    private static final int OPEN_GROUP_INSERTS = 300; // few enough that the newest images are still pending
+    private static final int CRASH_PAGE_BYTES = 4096; // unit the operating system writes back
+    private static final String[] GRID_FILES = {"scale", "directory", "buckets", "freelist", "log", "blobs"};
+    private static final String[] CHECKS = {"wal", "merge", "chain", "blob", "snapshot"};
+
+    private static final String dir = System.getProperty("java.io.tmpdir");
+    private static long failures;
+
+    public static void main(String[] args) throws Exception {
+        String[] checks = args.length > 0 ? args : CHECKS;
+        long failed = 0;
+        for (String check : checks) {
+            failures = 0;
+            long start = System.nanoTime();
+
+            if (check.equals("wal")) {
+                checkLogReplay();
+            } else if (check.equals("merge")) {
+                checkMerge();
+            } else if (check.equals("chain")) {
+                checkChain();
+            } else if (check.equals("blob")) {
+                checkBlobs();
+            } else if (check.equals("snapshot")) {
+                checkSnapshot();
+            } else {
+                throw new IllegalArgumentException("Invalid argument " + check);
+            }
+
+            System.out.printf("%-10s %s in %.1f ms%n", check, failures == 0 ? "OK" : "FAILED with " + failures +
+                    " mismatches", (System.nanoTime() - start) / 1e6);
+            failed += failures;
+        }
+
+        if (failed != 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+        Recovers grid files as a crash of the machine writing them may leave them: the log as written
+        and, of the pages changed since the last checkpoint, a random half written back by the
+        operating system. Checks once after a commit, when every record must be recovered, and once
+        within a group that never completed, whose operations first changed their pages after the
+        checkpoint and whose records may be recovered or not, but never torn
+     */
+    private static void checkLogReplay() throws IOException {
+        String name = new File(dir, "checkwal").getPath();
+        String base = new File(dir, "checkwalbase").getPath();
+        String crash = new File(dir, "checkwalcrash").getPath();
+        int nrecords = 20000;
+        long[][] coordinates = coordinates(nrecords, 1);
+
+        for (int open = 0; open < 2; open++) {
+            deleteGridFiles(name);
+            GridFile grid = new GridFile();
+            grid.createGrid(200, 4096, name);
+            if (open == 0) {
+                grid.setWriteAheadLog(8, 10);
+            } else {
+                grid.setWriteAheadLog(Integer.MAX_VALUE, 1L << 30); // the group never completes
+            }
+            grid.loadGrid();
+
+            boolean[] live = new boolean[nrecords]; // inserted and not deleted when the grid crashed
+            boolean[] committed = new boolean[nrecords]; // all operations on the record committed
+            int ninserts = open == 0 ? nrecords : nrecords / 3 + OPEN_GROUP_INSERTS;
+            for (int iter = 0; iter < ninserts; iter++) {
+                grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, 8 + iter % 32));
+                live[iter] = true;
+                if (iter == nrecords / 3) {
+                    grid.checkpoint();
+                    copyGridFiles(name, base);
+                    Arrays.fill(committed, 0, iter + 1, true);
+                }
+            }
+            if (open == 0) {
+                for (int iter = 0; iter < nrecords; iter += 7) {
+                    grid.deleteRecord(coordinates[0][iter], coordinates[1][iter]);
+                    live[iter] = false;
+                }
+                grid.commit();
+                Arrays.fill(committed, true);
+            }
+
+            crashGridFiles(name, base, crash);
+            grid.unloadGrid();
+            copyGridFiles(crash, name);
+            grid.loadGrid(); // replays the log left by the crash
+
+            boolean[] found = new boolean[nrecords];
+            for (int iter = 0; iter < nrecords; iter++) {
+                ByteBuffer record = grid.findRecordSlice(coordinates[0][iter], coordinates[1][iter]);
+                found[iter] = record != null;
+                expect(!committed[iter] || found[iter] == live[iter], (live[iter] ? "committed record " :
+                        "committed delete of record ") + iter + (found[iter] ? " found" : " lost"));
+                expect(record == null || isPayload(record, iter), "record " + iter + " torn");
+            }
+            checkRecords(grid, coordinates, found);
+
+            grid.unloadGrid();
+            deleteGridFiles(name);
+            deleteGridFiles(base);
+            deleteGridFiles(crash);
+        }
+    }
+
+    /*
+        Writes files of a grid crashed after the last checkpoint, given by the files of that grid now
+        and as they were at the checkpoint, the log as it is now and of every other file a random half
+        of its pages as they are now, the rest as they were
+     */
+    private static void crashGridFiles(String name, String base, String crash) throws IOException {
+        Random random = new Random(name.hashCode());
+        for (String file : GRID_FILES) {
+            File current = new File(name + file);
+            if (!current.exists()) {
+                new File(crash + file).delete();
+                continue;
+            }
+
+            byte[] bytes = Files.readAllBytes(current.toPath());
+            if (!file.equals("log")) {
+                byte[] written = bytes;
+                bytes = new byte[written.length]; // pages added since the checkpoint read back zeroed
+                File checkpointed = new File(base + file);
+                if (checkpointed.exists()) {
+                    byte[] old = Files.readAllBytes(checkpointed.toPath());
+                    System.arraycopy(old, 0, bytes, 0, Math.min(old.length, bytes.length));
+                }
+                for (int start = 0; start < bytes.length; start += CRASH_PAGE_BYTES) {
+                    if (random.nextBoolean()) {
+                        System.arraycopy(written, start, bytes, start, Math.min(CRASH_PAGE_BYTES, bytes.length - start));
+                    }
+                }
+            }
+            Files.write(Paths.get(crash + file), bytes);
+        }
+    }
+
+    /*
+        Deletes most records so that buckets merge, many of them buckets shared by several grid
+        entries since splitGrid() paired them, and checks after every thousand deletes that no grid
+        entry still references a freed bucket and that buckets are shared by rectangles of grid
+        entries, then reinserts the deleted records into the freed buckets
+     */
+    private static void checkMerge() {
+        String name = new File(dir, "checkmerge").getPath();
+        int nrecords = 20000;
+        deleteGridFiles(name);
+
+        GridFile grid = new GridFile();
+        grid.createGrid(64, 4096, name);
+        grid.loadGrid();
+
+        long[][] coordinates = coordinates(nrecords, 2);
+        boolean[] live = new boolean[nrecords];
+        for (int iter = 0; iter < nrecords; iter++) {
+            grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, 8 + iter % 64));
+            live[iter] = true;
+        }
+        long partitions = grid.locateLongitude(Long.MAX_VALUE) + grid.locateLatitude(Long.MAX_VALUE);
+        expect(countSharingEntries(grid) > 0, "no buckets shared by grid entries");
+
+        for (int iter = 0; iter < nrecords; iter++) {
+            if (iter % 10 != 0) {
+                grid.deleteRecord(coordinates[0][iter], coordinates[1][iter]);
+                live[iter] = false;
+            }
+            if (iter % 1000 == 999) {
+                checkBucketRegions(grid);
+            }
+        }
+        long merged = grid.locateLongitude(Long.MAX_VALUE) + grid.locateLatitude(Long.MAX_VALUE);
+        expect(grid.getFreeBuckets() > 0, "no buckets freed by merges");
+        expect(merged < partitions, "partitions kept, " + merged + " of " + partitions);
+        checkRecords(grid, coordinates, live);
+
+        for (int iter = 0; iter < nrecords; iter++) {
+            if (!live[iter]) {
+                grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, 8 + iter % 64));
+                live[iter] = true;
+            }
+        }
+        checkBucketRegions(grid);
+        checkRecords(grid, coordinates, live);
+
+        grid.unloadGrid();
+        deleteGridFiles(name);
+    }
+
+    /*
+        Checks that every grid entry references a bucket in use, and that all grid entries of the
+        rectangle getBucketRegion() reports for it share its bucket
+     */
+    private static void checkBucketRegions(GridFile grid) {
+        long xint = grid.locateLongitude(Long.MAX_VALUE);
+        long yint = grid.locateLatitude(Long.MAX_VALUE);
+
+        for (long lon = 0; lon <= xint; lon++) {
+            for (long lat = 0; lat <= yint; lat++) {
+                ByteBuffer page = grid.mapGridBucket(grid.getGridEntry(lon, lat));
+                expect(BucketPage.version(page) != BucketPage.FREE, "grid entry " + lon + ", " + lat +
+                        " references a freed bucket");
+                grid.unmapGridBucket(page);
+
+                long[] region = grid.getBucketRegion(lon, lat);
+                for (long xiter = region[0]; xiter <= region[2]; xiter++) {
+                    for (long yiter = region[1]; yiter <= region[3]; yiter++) {
+                        expect(grid.checkPairedBucket(lon, lat, xiter, yiter), "grid entry " + xiter + ", " +
+                                yiter + " inside the bucket region of " + lon + ", " + lat + " not sharing its bucket");
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+        Returns number of grid entries sharing their bucket with the next grid entry of either axis
+     */
+    private static long countSharingEntries(GridFile grid) {
+        long xint = grid.locateLongitude(Long.MAX_VALUE);
+        long yint = grid.locateLatitude(Long.MAX_VALUE);
+        long count = 0;
+
+        for (long lon = 0; lon <= xint; lon++) {
+            for (long lat = 0; lat <= yint; lat++) {
+                if (lon < xint && grid.checkPairedBucket(lon, lat, lon + 1, lat) ||
+                        lat < yint && grid.checkPairedBucket(lon, lat, lon, lat + 1)) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /*
+        Fills a grid whose scale cannot grow, so full buckets chain overflow pages, and checks records
+        read through the chains, after half are deleted, once all are deleted and the emptied overflow
+        pages are freed, and after all are inserted again
+     */
+    private static void checkChain() {
+        String name = new File(dir, "checkchain").getPath();
+        int nrecords = 5000;
+        deleteGridFiles(name);
+
+        GridFile grid = new GridFile();
+        grid.createGrid(4, 4096, name);
+        grid.setMaxGridSize(4);
+        grid.setMetrics(true);
+        grid.loadGrid();
+
+        long[][] coordinates = coordinates(nrecords, 3);
+        boolean[] live = new boolean[nrecords];
+        for (int iter = 0; iter < nrecords; iter++) {
+            grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, 40));
+            live[iter] = true;
+        }
+        expect(grid.getMetrics().getBucketsChained() > 0, "no overflow pages chained");
+        checkRecords(grid, coordinates, live);
+
+        for (int iter = 0; iter < nrecords; iter += 2) {
+            grid.deleteRecord(coordinates[0][iter], coordinates[1][iter]);
+            live[iter] = false;
+        }
+        checkRecords(grid, coordinates, live);
+
+        for (int iter = 1; iter < nrecords; iter += 2) {
+            grid.deleteRecord(coordinates[0][iter], coordinates[1][iter]);
+            live[iter] = false;
+        }
+        checkRecords(grid, coordinates, live);
+        expect(grid.getFreeBuckets() > 0, "emptied overflow pages not freed");
+
+        for (int iter = 0; iter < nrecords; iter++) {
+            grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, 40));
+            live[iter] = true;
+        }
+        checkRecords(grid, coordinates, live);
+
+        grid.unloadGrid();
+        deleteGridFiles(name);
+    }
+
+    /*
+        Writes records up to 16 pages large among small ones, so that a third of them are blobs, and
+        checks them read by lookup into a buffer as well as by slice and range, after a third are
+        deleted and inserted again into the freed extents, and after the grid is reloaded
+     */
+    private static void checkBlobs() {
+        String name = new File(dir, "checkblob").getPath();
+        int nrecords = 3000;
+        deleteGridFiles(name);
+
+        GridFile grid = new GridFile();
+        grid.createGrid(16, 4096, name);
+        grid.loadGrid();
+
+        long[][] coordinates = coordinates(nrecords, 4);
+        boolean[] live = new boolean[nrecords];
+        for (int iter = 0; iter < nrecords; iter++) {
+            grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, blobCheckSize(iter)));
+            live[iter] = true;
+        }
+        checkRecords(grid, coordinates, live);
+        checkRecordCopies(grid, coordinates, live);
+        long length = new File(name + "blobs").length();
+        expect(length > 0, "no blob file written");
+
+        for (int iter = 0; iter < nrecords; iter += 3) {
+            grid.deleteRecord(coordinates[0][iter], coordinates[1][iter]);
+            live[iter] = false;
+        }
+        checkRecords(grid, coordinates, live);
+        for (int iter = 0; iter < nrecords; iter += 3) {
+            grid.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, blobCheckSize(iter)));
+            live[iter] = true;
+        }
+        checkRecords(grid, coordinates, live);
+        expect(new File(name + "blobs").length() <= length, "freed blob extents not reused, blob file grew from " +
+                length + " to " + new File(name + "blobs").length() + " bytes");
+        grid.unloadGrid();
+
+        grid.loadGrid(); // free extents rebuilt from the buckets
+        checkRecords(grid, coordinates, live);
+        checkRecordCopies(grid, coordinates, live);
+
+        grid.unloadGrid();
+        deleteGridFiles(name);
+    }
+
+    private static int blobCheckSize(int iter) {
+        return iter % 3 == 0 ? 4096 + (iter * 7919) % (15 * 4096) : 8 + iter % 200;
+    }
+
+    /*
+        Checks that live records are copied whole into a buffer by findRecord()
+     */
+    private static void checkRecordCopies(GridFile grid, long[][] coordinates, boolean[] live) {
+        ByteBuffer dst = ByteBuffer.allocate(16 * 4096);
+        for (int iter = 0; iter < live.length; iter++) {
+            if (live[iter]) {
+                dst.clear();
+                int rsize = grid.findRecord(coordinates[0][iter], coordinates[1][iter], dst);
+                dst.flip();
+                expect(rsize == dst.remaining() && isPayload(dst, iter), "record " + iter + " copied torn");
+            }
+        }
+    }
+
+    /*
+        Saves a grid held in memory, with blobs and deleted records, and checks that the grid loaded
+        from the snapshot holds the same records, then does the same for a snapshot of that grid
+     */
+    private static void checkSnapshot() {
+        String name = new File(dir, "checksnapshot").getPath();
+        String copy = new File(dir, "checksnapshotcopy").getPath();
+        int nrecords = 5000;
+        deleteGridFiles(name);
+        deleteGridFiles(copy);
+
+        GridFile memory = new GridFile();
+        memory.createMemoryGrid(16, 4096, "checksnapshot");
+        memory.loadGrid();
+
+        long[][] coordinates = coordinates(nrecords, 5);
+        boolean[] live = new boolean[nrecords];
+        for (int iter = 0; iter < nrecords; iter++) {
+            memory.insertRecord(coordinates[0][iter], coordinates[1][iter], payload(iter, blobCheckSize(iter)));
+            live[iter] = true;
+        }
+        for (int iter = 0; iter < nrecords; iter += 5) {
+            memory.deleteRecord(coordinates[0][iter], coordinates[1][iter]);
+            live[iter] = false;
+        }
+        checkRecords(memory, coordinates, live);
+
+        memory.snapshotGrid(name);
+        GridFile grid = new GridFile();
+        grid.openGrid(4096, name);
+        grid.loadGrid();
+        checkSameRecords(memory, grid);
+        checkRecords(grid, coordinates, live);
+        memory.unloadGrid();
+
+        try {
+            grid.snapshotGrid(name);
+            expect(false, "snapshot onto the grid's own files accepted");
+        } catch (IllegalArgumentException e) {
+            // files copied from are never truncated
+        }
+
+        grid.snapshotGrid(copy);
+        GridFile reloaded = new GridFile();
+        reloaded.openGrid(4096, copy);
+        reloaded.loadGrid();
+        checkSameRecords(grid, reloaded);
+
+        reloaded.unloadGrid();
+        grid.unloadGrid();
+        deleteGridFiles(name);
+        deleteGridFiles(copy);
+    }
+
+    /*
+        Checks that two grids hold the same records, by coordinates and payload bytes, and the same
+        grid partitions
+     */
+    private static void checkSameRecords(GridFile expected, GridFile actual) {
+        expect(expected.locateLongitude(Long.MAX_VALUE) == actual.locateLongitude(Long.MAX_VALUE) &&
+                expected.locateLatitude(Long.MAX_VALUE) == actual.locateLatitude(Long.MAX_VALUE),
+                "grid partitions differ");
+
+        List<Record> expectedRecords = sortedRecords(expected);
+        List<Record> actualRecords = sortedRecords(actual);
+        expect(expectedRecords.size() == actualRecords.size(), "grids hold " + expectedRecords.size() +
+                " and " + actualRecords.size() + " records");
+
+        for (int iter = 0; iter < Math.min(expectedRecords.size(), actualRecords.size()); iter++) {
+            Record record = expectedRecords.get(iter);
+            Record other = actualRecords.get(iter);
+            expect(record.getX() == other.getX() && record.getY() == other.getY() &&
+                    record.getPayload().equals(other.getPayload()), "records differ at " + record.getX() +
+                    ", " + record.getY());
+        }
+    }
+
+    private static List<Record> sortedRecords(GridFile grid) {
+        List<Record> records = grid.findRangeRecordsParallel(Long.MIN_VALUE, Long.MIN_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE, false);
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return a.getX() != b.getX() ? Long.compare(a.getX(), b.getX()) : Long.compare(a.getY(), b.getY());
+            }
+        });
+        return records;
+    }
+
+    /*
+        Checks that live records are found with their payload, by lookup and by a range over the
+        whole grid, that no other record is, and that the statistics of the grid directory agree
+     */
+    private static void checkRecords(GridFile grid, long[][] coordinates, boolean[] live) {
+        int nlive = 0;
+        for (int iter = 0; iter < live.length; iter++) {
+            ByteBuffer record = grid.findRecordSlice(coordinates[0][iter], coordinates[1][iter]);
+            if (live[iter]) {
+                nlive++;
+                expect(record != null && isPayload(record, iter), "record " + iter + " lost");
+            } else {
+                expect(record == null, "deleted record " + iter + " found");
+            }
+        }
+
+        List<Record> records = grid.findRangeRecordsParallel(Long.MIN_VALUE, Long.MIN_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE, false);
+        expect(records.size() == nlive, "range found " + records.size() + " records of " + nlive);
+        long sx = 0;
+        long sy = 0;
+        for (Record record : records) {
+            sx += record.getX();
+            sy += record.getY();
+            int index = (int) record.getPayload().getLong(record.getPayload().position());
+            expect(index >= 0 && index < live.length && live[index] && isPayload(record.getPayload(), index) &&
+                    record.getX() == coordinates[0][index] && record.getY() == coordinates[1][index],
+                    "range found stray record " + index);
+        }
+
+        long[] aggregate = grid.aggregateRange(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        expect(aggregate[0] == records.size() && aggregate[1] == sx && aggregate[2] == sy, "directory statistics of " +
+                aggregate[0] + " records disagree with the " + records.size() + " records in buckets");
+    }
+
+    /*
+        Returns distinct coordinates, x in [0] and y in [1], the same for a seed in every process
+     */
+    private static long[][] coordinates(int nrecords, long seed) {
+        Random random = new Random(seed);
+        long[][] coordinates = new long[2][nrecords];
+        for (int iter = 0; iter < nrecords; iter++) {
+            coordinates[0][iter] = ((long) random.nextInt(1 << 26) << 20) | iter; // low bits keep them distinct
+            coordinates[1][iter] = random.nextInt(Integer.MAX_VALUE);
+        }
+        return coordinates;
+    }
+
+    /*
+        Returns payload of given size holding record index followed by bytes derived from it
+     */
+    private static ByteBuffer payload(int index, int size) {
+        ByteBuffer payload = ByteBuffer.allocate(Math.max(size, (int) LONGBYTES));
+        payload.putLong(0, index);
+        for (int iter = (int) LONGBYTES; iter < payload.capacity(); iter++) {
+            payload.put(iter, (byte) (index * 31 + iter));
+        }
+        return payload;
+    }
+
+    private static boolean isPayload(ByteBuffer record, int index) {
+        int start = record.position();
+        if (record.remaining() < LONGBYTES || record.getLong(start) != index) {
+            return false;
+        }
+        for (int iter = (int) LONGBYTES; iter < record.remaining(); iter++) {
+            if (record.get(start + iter) != (byte) (index * 31 + iter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void expect(boolean condition, String mismatch) {
+        if (!condition) {
+            if (failures < 10) {
+                System.out.println("  " + mismatch);
+            }
+            failures++;
+        }
+    }
+
+    /*
+        Copies the files of a grid to the files of another grid name, as they are on disk now
+     */
+    private static void copyGridFiles(String from, String to) throws IOException {
+        for (String file : GRID_FILES) {
+            if (new File(from + file).exists()) {
+                Files.copy(Paths.get(from + file), Paths.get(to + file), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                new File(to + file).delete();
+            }
+        }
+    }
+
+    private static void deleteGridFiles(String name) {
+        for (String file : GRID_FILES) {
+            new File(name + file).delete();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.lang.reflect.Field;
+
+/*
+    Grid size, page size and bucket mapping options of a grid, built by GridConfig.Builder and
+    given to GridFile.createGrid(GridConfig, String)
+
+    Page sizes are validated and aligned to the OS page size, so no bucket straddles an OS page
+    boundary it does not have to: pages smaller than an OS page are rounded up to a power of two
+    dividing it, larger pages to a multiple of it. With huge pages, page sizes are rounded up to
+    a power of two and the buckets file is mapped in segments that are whole multiples of 2 MB
+    at 2 MB aligned file offsets, which lets the kernel back them with transparent huge pages
+    where the file system supports them.
+
+    The access hint tells the bucket store how buckets are read. Random access maps segments
+    lazily, pages faulting in as buckets are read. Sequential access loads each segment into
+    memory when it is first mapped, so range scans over it fault in no pages one at a time.
+    Cached buckets are read through the bucket cache and take no hint.
+
+    An in-memory config creates a grid held on heap only, see GridFile.createMemoryGrid(), which
+    keeps the page size but maps no files, so alignment and huge pages do not apply to it.
+ */
+public class GridConfig {
+    public static final int ACCESS_RANDOM = 0;
+    public static final int ACCESS_SEQUENTIAL = 1;
+
+    public static final long HUGE_PAGE_BYTES = 2L * 1024 * 1024;
+    public static final long MIN_PAGE_BYTES = 128;
+    public static final long MAX_PAGE_BYTES = BucketPage.MAX_COMPRESSED_PAGE;
+
+    private static long osPageSize;
+
+    private final long gridSize;
+    private final long pageSize;
+    private final long segmentBytes;
+    private final boolean hugePages;
+    private final int accessHint;
+    private final boolean inMemory;
+
+    private GridConfig(Builder builder, long pageSize, long segmentBytes) {
+        this.gridSize = builder.gridSize;
+        this.pageSize = pageSize;
+        this.segmentBytes = segmentBytes;
+        this.hugePages = builder.hugePages;
+        this.accessHint = builder.accessHint;
+        this.inMemory = builder.inMemory;
+    }
+
+    public long getGridSize() {
+        return this.gridSize;
+    }
+
+    /*
+        Returns page size after alignment, which may be larger than the page size asked for
+     */
+    public long getPageSize() {
+        return this.pageSize;
+    }
+
+    /*
+        Returns bytes of the buckets file mapped at a time, rounded down to whole pages by the bucket store
+     */
+    public long getSegmentBytes() {
+        return this.segmentBytes;
+    }
+
+    public boolean isHugePages() {
+        return this.hugePages;
+    }
+
+    public int getAccessHint() {
+        return this.accessHint;
+    }
+
+    public boolean isInMemory() {
+        return this.inMemory;
+    }
+
+    /*
+        Returns OS page size, or 4096 if the JVM does not tell
+     */
+    public static synchronized long getOSPageSize() {
+        if (osPageSize > 0) {
+            return osPageSize;
+        }
+
+        osPageSize = 4096;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            osPageSize = ((Number) unsafeClass.getMethod("pageSize").invoke(unsafe)).longValue();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: getOSPageSize()");
+        }
+
+        return osPageSize;
+    }
+
+    /*
+        Returns page size aligned to given OS page size as described above, huge pages
+        taking a power of two
+     */
+    public static long alignPageSize(long pageSize, long osPage, boolean hugePages) {
+        if (pageSize < osPage || hugePages) {
+            return Long.highestOneBit(pageSize - 1) << 1; // next power of two
+        }
+        return (pageSize + osPage - 1) / osPage * osPage;
+    }
+
+    /*
+        Builds a GridConfig, options left unset keep the GridFile defaults
+     */
+    public static class Builder {
+        private long gridSize = 100;
+        private long pageSize = 4096;
+        private boolean alignPages = true;
+        private boolean hugePages;
+        private int accessHint = ACCESS_RANDOM;
+        private boolean inMemory;
+
+        /*
+            Sets initial capacity of the grid scale and directory
+         */
+        public Builder gridSize(long gridSize) {
+            this.gridSize = gridSize;
+            return this;
+        }
+
+        public Builder pageSize(long pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /*
+            Sets if the page size is aligned to the OS page size, else it must be aligned already
+         */
+        public Builder alignPages(boolean alignPages) {
+            this.alignPages = alignPages;
+            return this;
+        }
+
+        public Builder hugePages(boolean hugePages) {
+            this.hugePages = hugePages;
+            return this;
+        }
+
+        public Builder accessHint(int accessHint) {
+            this.accessHint = accessHint;
+            return this;
+        }
+
+        /*
+            Sets if the grid is held in memory only, with no grid files
+         */
+        public Builder inMemory(boolean inMemory) {
+            this.inMemory = inMemory;
+            return this;
+        }
+
+        /*
+            Returns config of the options set, throws IllegalArgumentException if they are invalid
+            or if the page size is not aligned and alignment is off
+         */
+        public GridConfig build() {
+            if (this.gridSize < 1 || this.pageSize < MIN_PAGE_BYTES || this.pageSize > MAX_PAGE_BYTES ||
+                    (this.accessHint != ACCESS_RANDOM && this.accessHint != ACCESS_SEQUENTIAL)) {
+                throw new IllegalArgumentException("Invalid argument in build()");
+            }
+
+            long aligned = alignPageSize(this.pageSize, getOSPageSize(), this.hugePages);
+            if (aligned > MAX_PAGE_BYTES || (!this.alignPages && aligned != this.pageSize)) {
+                throw new IllegalArgumentException("Invalid argument in build()");
+            }
+
+            long segmentBytes = Math.max(BucketStore.SEGMENT_BYTES, aligned);
+            if (this.hugePages) { // whole huge pages at huge page aligned file offsets
+                segmentBytes = (segmentBytes + HUGE_PAGE_BYTES - 1) / HUGE_PAGE_BYTES * HUGE_PAGE_BYTES;
+            }
+
+            return new GridConfig(this, aligned, segmentBytes);
+        }
+    }
+}
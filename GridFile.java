@@ -1,10 +1,31 @@
 import java.util.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class GridFile {
+    public static final long MAX_GRID_SIZE = 7327; // default largest grid, whose directory one buffer can map
+    public static final long MAX_SEGMENTED_GRID_SIZE = 1 << 16; // largest grid, directory mapped in segments
+
     private long gridSize;
     private long pageSize;
     private long scaleSize;
@@ -14,9 +35,44 @@ public class GridFile {
     private String scaleName;
     private String directoryName;
     private String bucketName;
-    private MappedByteBuffer gridScale;
-    private MappedByteBuffer gridDirectory;
+    private String freeListName;
+    private GridStorage gridScale;
+    private GridStorage gridDirectory;
+    private GridStorage gridFreeList; // number of free buckets and first free bucket address
+    private BucketStore bucketStore;
+    private String blobName;
+    private BlobStore blobStore;
+    private long blobThreshold = Long.MAX_VALUE; // larger records go to the blob file
+    private GridScaleIndex scaleIndex = new GridScaleIndex();
+    private List<GridStorage> retiredStorages = new ArrayList<GridStorage>(); // replaced by a resize, see retireGridStorage()
+    private RecordCodec<Object> recordCodec = new SerializableCodec();
+    private SplitPolicy splitPolicy = new MeanSplitPolicy();
+    private int bucketLayout = BucketPage.CURRENT; // page version of buckets formatted from now on
+    private boolean payloadCompression; // compressed buckets formatted from now on compress records
+    private final ThreadLocal<ByteBuffer> recordBuffer = new ThreadLocal<ByteBuffer>();
+    private ForkJoinPool rangePool;
+    private StampedLock gridLock; // null unless thread-safe
+    private BucketLocks bucketLocks;
+    private String logName;
+    private GridLog gridLog; // null unless the write-ahead log is enabled and the grid loaded
+    private int logGroupSize;
+    private long logGroupMillis;
+    private int cacheBuckets; // buckets kept by the bucket cache, 0 maps the buckets file
+    private long segmentBytes = BucketStore.SEGMENT_BYTES; // bytes of the buckets file mapped at a time
+    private int accessHint = GridConfig.ACCESS_RANDOM;
+    private boolean inMemory; // grid files kept on heap, see createMemoryGrid()
+    private GridMetrics metrics; // null unless enabled, disabled metrics cost a null check
+    private long maxGridSize = MAX_GRID_SIZE;
+    private double mergeFill = MERGE_FILL;
+    private int maxChain = MAX_CHAIN; // overflow pages of a bucket before the grid is split
     private final long LONGBYTES = Long.SIZE / 8;
+    private static final int BULK_SAMPLE = 1 << 16;
+    private static final double BULK_FILL = 0.7;
+    private static final double MERGE_FILL = 0.5;
+    private static final int MAX_CHAIN = 4;
+    private static final long FREELIST_BYTES = 16;
+    private static final long MAX_RANGE_BYTES = Integer.MAX_VALUE - 8; // largest array findRangeRecords() returns
+    private static final long MEMORY_SEGMENT_BYTES = 1 << 20; // small, so in-memory grids start fast
 
     /*
         Creates a file with write permission
@@ -36,6 +92,7 @@ public class GridFile {
 
     /*
         Creates a grid with specified grid size, page size, and name
+        The grid size is the initial capacity of the grid scale and directory, which grow as the grid is split
      */
     public void createGrid(long size, long psize, String name) {
         MappedByteBuffer scaleMBB;
@@ -45,30 +102,53 @@ public class GridFile {
         this.pageSize = psize;
         this.scaleSize = (2 * this.gridSize + 1) * 8;
         this.directorySize = (this.gridSize * this.gridSize) * 5 * 8 + 8;
-        this.bucketSize = (this.gridSize * this.gridSize) * this.pageSize;
+        this.bucketSize = this.pageSize; // bucket 0, the buckets file is extended as buckets are allocated
         this.gridName = name;
         this.scaleName = name + "scale";
         this.directoryName = name + "directory";
         this.bucketName = name + "buckets";
+        this.freeListName = name + "freelist";
+        this.logName = name + "log";
+        this.blobName = name + "blobs";
         this.gridScale = null;
         this.gridDirectory = null;
+        this.inMemory = false;
 
         try {
             // scale file
             createFile(this.scaleSize, this.scaleName);
-            scaleMBB = new RandomAccessFile(this.scaleName, "rw")
-                    .getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            RandomAccessFile scaleRAF = new RandomAccessFile(this.scaleName, "rw");
+            scaleRAF.setLength(0); // partitions of an earlier grid by this name
+            scaleMBB = scaleRAF.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
             scaleMBB.putLong(0, size);
-            //scaleRAF.close();
+            scaleRAF.close();
+            BucketStore.unmap(scaleMBB);
 
             // directory file
             createFile(this.directorySize, this.directoryName);
-            dirMBB = new RandomAccessFile(this.directoryName, "rw")
-                    .getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
-            dirMBB.position(1 * LONGBYTES); // does this do what is done below?
-            //dirRAF.close();
+            RandomAccessFile dirRAF = new RandomAccessFile(this.directoryName, "rw");
+            dirRAF.setLength(0); // grid entries of an earlier grid by this name
+            dirMBB = dirRAF.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            dirMBB.putLong(0, 1); // bucket 0 belongs to grid entry (0, 0), next free bucket is 1
+            dirRAF.close();
+            BucketStore.unmap(dirMBB);
 
             createFile(this.bucketSize, this.bucketName);
+            RandomAccessFile bucketRAF = new RandomAccessFile(this.bucketName, "rw");
+            bucketRAF.setLength(0); // buckets of an earlier grid by this name
+            bucketRAF.close();
+
+            // free list file, no free buckets
+            createFile(FREELIST_BYTES, this.freeListName);
+            RandomAccessFile freeRAF = new RandomAccessFile(this.freeListName, "rw");
+            freeRAF.setLength(0);
+            freeRAF.setLength(FREELIST_BYTES);
+            freeRAF.close();
+
+            new File(this.logName).delete(); // log of an earlier grid by this name
+            new File(this.blobName).delete();
+            new File(this.scaleName + "grow").delete(); // growth of an earlier grid, see finishGrowth()
+            new File(this.directoryName + "grow").delete();
         } catch (Exception e) {
             //e.printStackTrace();
             System.out.println("Error: createGrid()");
@@ -76,967 +156,3676 @@ public class GridFile {
     }
 
     /*
-        Maps grid scale file into memory
+        Creates a grid with grid size, page size and bucket mapping options of given config
      */
-    public void mapGridScale() {
-        try {
-            this.gridScale = new RandomAccessFile(this.scaleName, "rw")
-                    .getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.scaleSize);
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: mapGridScale()");
+    public void createGrid(GridConfig config, String name) {
+        this.accessHint = config.getAccessHint();
+        if (config.isInMemory()) {
+            createMemoryGrid(config.getGridSize(), config.getPageSize(), name);
+            return;
         }
+
+        this.segmentBytes = config.getSegmentBytes();
+        createGrid(config.getGridSize(), config.getPageSize(), name);
     }
 
-    public void unmapGridScale() {
-        try {
-            //this.gridScale.close();
-            this.gridScale = null;
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: unmapGridScale()");
-        }
+    /*
+        Creates a grid held in memory only, with specified grid size, page size, and name
+        The grid has no files, it splits and grows as a grid on disk does but is discarded by
+        unloadGrid() unless saved by snapshotGrid() first. The write-ahead log and the bucket
+        cache do not apply, and the name only names its metrics.
+     */
+    public void createMemoryGrid(long size, long psize, String name) {
+        this.gridSize = size;
+        this.pageSize = psize;
+        this.scaleSize = (2 * this.gridSize + 1) * 8;
+        this.directorySize = (this.gridSize * this.gridSize) * 5 * 8 + 8;
+        this.bucketSize = this.pageSize;
+        this.gridName = name;
+        this.scaleName = null;
+        this.directoryName = null;
+        this.bucketName = null;
+        this.freeListName = null;
+        this.logName = null;
+        this.blobName = null;
+        this.segmentBytes = MEMORY_SEGMENT_BYTES;
+        this.inMemory = true;
+
+        this.gridScale = allocateGridStorage(this.scaleSize);
+        this.gridScale.putLong(0, size);
+        this.gridDirectory = allocateGridStorage(this.directorySize);
+        this.gridDirectory.putLong(0, 1); // bucket 0 belongs to grid entry (0, 0), next free bucket is 1
+        this.gridFreeList = allocateGridStorage(FREELIST_BYTES);
+        this.scaleIndex.invalidate();
     }
 
     /*
-        Maps grid directory file into memory
+        Opens existing grid of given page size and name, such as one saved by snapshotGrid(),
+        to be loaded by loadGrid() with the grid size kept in its scale file
      */
-    public void mapGridDirectory() {
-        try {
-            this.gridDirectory = new RandomAccessFile(this.directoryName, "rw")
-                    .getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.directorySize);
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: mapGridDirectory()");
+    public void openGrid(long psize, String name) {
+        this.pageSize = psize;
+        this.bucketSize = this.pageSize;
+        this.gridName = name;
+        this.scaleName = name + "scale";
+        this.directoryName = name + "directory";
+        this.bucketName = name + "buckets";
+        this.freeListName = name + "freelist";
+        this.logName = name + "log";
+        this.blobName = name + "blobs";
+        this.gridScale = null;
+        this.gridDirectory = null;
+        this.inMemory = false;
+    }
+
+    /*
+        Checks if the grid is held in memory only, see createMemoryGrid()
+     */
+    public boolean isInMemory() {
+        return this.inMemory;
+    }
+
+    /*
+        Returns storage of given bytes on heap, for grids held in memory only
+     */
+    private static GridStorage allocateGridStorage(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("Out of memory in allocateGridStorage()");
         }
+        return new BufferStorage(ByteBuffer.allocate((int) size));
     }
 
-    public void unmapGridDirectory() {
+    /*
+        Saves the grid as grid files of given name in the on-disk format, to be loaded after
+        openGrid() with the page size of this grid
+        Blobs are saved whole, freed extents included, the grid is locked while it is saved
+        Throws IllegalArgumentException if given name is the name of this grid
+     */
+    public void snapshotGrid(String name) {
+        if (name == null || name.equals(this.gridName) || isGridFile(name + "scale")) {
+            throw new IllegalArgumentException("Invalid argument in snapshotGrid()"); // would truncate files copied from
+        }
+
+        long stamp = lockGridWrite();
         try {
-            //this.gridDirectory.close();
-            this.gridDirectory = null;
-        } catch (Exception e) {
+            writeGridFile(name + "scale", this.gridScale);
+            writeGridFile(name + "directory", this.gridDirectory);
+            writeGridFile(name + "freelist", this.gridFreeList);
+            writeBucketsFile(name + "buckets");
+            writeBlobsFile(name + "blobs");
+
+            new File(name + "log").delete(); // log of an earlier grid by this name
+        } catch (java.io.IOException e) {
             //e.printStackTrace();
-            System.out.println("Error: unmapGridDirectory()");
+            System.out.println("Error: snapshotGrid()");
+            throw new IllegalStateException("Unable to snapshot grid " + this.gridName + " to " + name);
+        } finally {
+            unlockGridWrite(stamp);
         }
     }
 
     /*
-        Maps grid scale file and grid directory file into memory
+        Checks if file of given name is the scale file of this grid, under whatever path
      */
-    public void loadGrid() {
-        mapGridScale();
-        mapGridDirectory();
+    private boolean isGridFile(String fileName) {
+        if (this.inMemory) {
+            return false;
+        }
+
+        try {
+            return new File(fileName).getCanonicalFile().equals(new File(this.scaleName).getCanonicalFile());
+        } catch (java.io.IOException e) {
+            //e.printStackTrace();
+            System.out.println("Error: isGridFile()");
+            return true; // not known to differ
+        }
     }
 
     /*
-        Unmaps grid scale file and grid directory file from memory
+        Writes grid file of given name holding all bytes of given storage
      */
-    public void unloadGrid() {
-        unmapGridScale();
-        unmapGridDirectory();
+    private void writeGridFile(String fileName, GridStorage storage) throws java.io.IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+            for (long position = 0; position < storage.size(); position += chunk.capacity()) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), storage.size() - position));
+                storage.get(position, chunk);
+                chunk.flip();
+                writeFully(channel, chunk, position);
+            }
+
+            channel.force(false);
+        } finally {
+            file.close();
+        }
     }
 
     /*
-        Fetches grid longitude and latitude for given coordinates from grid scale
+        Writes buckets file of given name holding the buckets allocated so far
      */
-    public long[] getGridLocation(long x, long y) {
-        long[] lonlat = new long[2];
+    private void writeBucketsFile(String fileName) throws java.io.IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
         try {
-            long xint = this.gridScale.getLong(1 * LONGBYTES); // read at position 1
-            long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES); // read at position 1 + gridSize
-
-            long xpart = 2;
-            long ypart = 2 + this.gridSize;
-            long iter = 0;
-
-            while (iter < xint && x > this.gridScale.getLong((xpart + iter) * LONGBYTES)) { // determine longitude
-                lonlat[0] = ++iter;
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+
+            long nbuckets = this.gridDirectory.getLong(0);
+            for (long baddr = 0; baddr < nbuckets; baddr++) {
+                ByteBuffer page = this.bucketStore.slice(baddr);
+                try {
+                    writeFully(channel, page.duplicate(), baddr * this.pageSize);
+                } finally {
+                    this.bucketStore.release(page);
+                }
             }
 
-            iter = 0;
-            while (iter < yint && y > this.gridScale.getLong((ypart + iter) * LONGBYTES)) { // determine latitude
-                lonlat[1] = ++iter;
-            }
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: getGridLocation()");
+            channel.force(false);
+        } finally {
+            file.close();
         }
-
-        return lonlat; // return "tuple", (longitude, latitude)
     }
 
     /*
-        Inserts new grid partition in grid scale
+        Writes blob file of given name holding all blobs, freed extents included
      */
-    public void insertGridPartition(int lon, long partition) {
-        long ints;
-        long inta; // used as offset
-        long part; // used as offset
-        long iter = 0;
-        long ipart;
-
+    private void writeBlobsFile(String fileName) throws java.io.IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
         try {
-            if (lon == 1) { // longitude
-                ints = this.gridScale.getLong(1 * LONGBYTES); // read at position 1
-                inta = 1;
-                part = 2;
-            } else { // latitude
-                ints = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
-                inta = 1 + this.gridSize;
-                part = 2 + this.gridSize;
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+            for (long position = 0; position < this.blobStore.getLength(); position += chunk.capacity()) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), this.blobStore.getLength() - position));
+                this.blobStore.read(position, chunk.remaining(), chunk);
+                chunk.flip();
+                writeFully(channel, chunk, position);
             }
 
-            if (ints >= this.gridSize - 1) {
-                throw new OutOfMemoryError("Out of memory in insertGridPartition()");
-            }
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+    }
 
-            while (iter < ints && partition > this.gridScale.getLong((part + iter) * LONGBYTES)) {
-                iter++;
-            }
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws java.io.IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
 
-            if (iter < ints && this.gridScale.getLong((part + iter) * LONGBYTES) == partition) {
-                throw new OutOfMemoryError("Out of memory in insertGridPartition()");
-            }
+    /*
+        Maps given bytes of a grid file, in one buffer if it can address them, else in segments
+     */
+    public static GridStorage mapGridFile(String fileName, long size) {
+        if (size <= Integer.MAX_VALUE) {
+            return new BufferStorage(fileName, size);
+        }
+        return new SegmentedStorage(fileName, size);
+    }
 
-            ipart = iter;
+    /*
+        Maps grid scale file into memory
+     */
+    public void mapGridScale() {
+        try {
+            this.gridScale = mapGridFile(this.scaleName, this.scaleSize);
+            this.scaleIndex.invalidate();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: mapGridScale()");
+        }
+    }
 
-            for (iter = ints; iter > ipart; iter--) {
-                long prev = this.gridScale.getLong((part + iter - 1) * LONGBYTES);
-                this.gridScale.putLong((part + iter) * LONGBYTES, prev);
+    public void unmapGridScale() {
+        try {
+            if (this.gridScale != null) {
+                this.gridScale.close();
             }
-
-            this.gridScale.putLong((part + ipart) * LONGBYTES, partition);
-
-            long temp = this.gridScale.getLong(inta * LONGBYTES);
-            this.gridScale.putLong(inta * LONGBYTES, temp + 1);
+            this.gridScale = null;
+            this.scaleIndex.invalidate();
         } catch (Exception e) {
             //e.printStackTrace();
-            System.out.println("Error: insertGridPartition()");
+            System.out.println("Error: unmapGridScale()");
         }
     }
 
     /*
-        Fetches grid partitions for given coordinates
+        Maps grid directory file into memory
      */
-    public long[] getGridPartitions(long lon, long lat) {
-        long xy[] = new long[2];
+    public void mapGridDirectory() {
         try {
-            long xint = this.gridScale.getLong(1 * LONGBYTES);
-            long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
-            long xp;
-            long yp;
+            this.gridDirectory = mapGridFile(this.directoryName, this.directorySize);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: mapGridDirectory()");
+        }
+    }
 
-            if (lon > xint || lat > yint) {
-                throw new IllegalArgumentException("Invalid argument in getGridPartitions()");
+    public void unmapGridDirectory() {
+        try {
+            if (this.gridDirectory != null) {
+                this.gridDirectory.close();
             }
-
-            xp = (lon - 1 < 0) ? 0 : lon - 1;
-            yp = (lat - 1 < 0) ? 0 : lat - 1;
-
-            xy[0] = this.gridScale.getLong((2 + xp) * LONGBYTES);
-            xy[1] = this.gridScale.getLong((2 + this.gridSize + yp) * LONGBYTES);
+            this.gridDirectory = null;
         } catch (Exception e) {
             //e.printStackTrace();
-            System.out.println("Error: getGridPartitions()");
+            System.out.println("Error: unmapGridDirectory()");
         }
-
-        return xy;
     }
 
     /*
-        Returns offset for beginning of grid entry in grid directory
+        Maps free list file into memory
      */
-    public long getGridEntry(long lon, long lat) {
-        long offset = 1;
-        long xint;
-        long yint;
+    public void mapGridFreeList() {
         try {
-            xint = this.gridScale.getLong(1 * LONGBYTES);
-            yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
+            this.gridFreeList = mapGridFile(this.freeListName, FREELIST_BYTES);
         } catch (Exception e) {
             //e.printStackTrace();
-            System.out.println("Error: getGridEntry()");
+            System.out.println("Error: mapGridFreeList()");
         }
+    }
 
-        if (lon > xint || lat > yint) {
-            throw new IllegalArgumentException("Invalid argument in getGridEntry()");
+    public void unmapGridFreeList() {
+        try {
+            if (this.gridFreeList != null) {
+                this.gridFreeList.close();
+            }
+            this.gridFreeList = null;
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: unmapGridFreeList()");
         }
-
-        offset += (lon * this.gridSize * 5 + lat * 5);
-
-        return offset;  // use gridScale.getLong(offset * LONGBYTES)
     }
 
     /*
-        Maps grid bucket into memory for given grid entry
+        Opens grid buckets file, buckets are mapped segment by segment on first access
+        or kept in the bucket cache if enabled, or allocated on heap for a grid held in memory
      */
-    public MappedByteBuffer mapGridBucket(long gentry) {
-        MappedByteBuffer gbucket;
-        try {
-            long baddr = this.gridScale.getLong((gentry + 4) * LONGBYTES);
-            long boffset = baddr * this.pageSize;
+    public void mapGridBuckets() {
+        if (this.inMemory) {
+            this.bucketStore = new BucketStore(this.pageSize, this.segmentBytes);
+        } else {
+            this.bucketStore = new BucketStore(this.bucketName, this.pageSize, this.cacheBuckets, this.segmentBytes);
+        }
+        this.bucketStore.setAccessHint(this.accessHint);
+        this.bucketStore.open();
+    }
 
-            gbucket = new RandomAccessFile(bucketName, "rw").getChannel().map(FileChannel.MapMode.READ_WRITE, boffset * LONGBYTES, this.pageSize);
-        } catch (Exception e) {
-            //e.printStackTrace();
-            unmapGridBucket(gbucket);
-            System.out.println("Error: mapGridBucket()");
+    /*
+        Sets how buckets are read, GridConfig.ACCESS_RANDOM or ACCESS_SEQUENTIAL, for segments
+        of the buckets file mapped from now on
+     */
+    public void setAccessHint(int accessHint) {
+        if (accessHint != GridConfig.ACCESS_RANDOM && accessHint != GridConfig.ACCESS_SEQUENTIAL) {
+            throw new IllegalArgumentException("Invalid argument in setAccessHint()");
         }
 
-        return gbucket;
+        this.accessHint = accessHint;
+        if (this.bucketStore != null) {
+            this.bucketStore.setAccessHint(accessHint);
+        }
     }
 
     /*
-        Unmaps grid bucket from memory
+        Loads all buckets of the mapped buckets file into memory, ahead of scans over the whole grid
      */
-    public void unmapGridBucket(MappedByteBuffer gbucket) {
+    public void prefetchBuckets() {
+        long stamp = lockGridRead();
         try {
-            //gbucket.close();
-            gbucket = null;
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: unmapGridBucket()");
+            this.bucketStore.load();
+        } finally {
+            unlockGridRead(stamp);
+        }
+    }
+
+    public void unmapGridBuckets() {
+        if (this.bucketStore != null) {
+            this.bucketStore.close();
+            this.bucketStore = null;
         }
     }
 
     /*
-        Appends x, y, record size and record at end of the bucket
+        Opens grid blob file, its free extents are found by rebuildGridBlobs()
      */
-    public void appendBucketEntry(MappedByteBuffer gbucket, long x, long y, long rsize, Object record) {
-        try {
-            long nbytes = gbucket.getLong(0);
-            long boffset = 16 + nbytes;
-
-            gbucket.putLong(boffset * LONGBYTES, x);
-            gbucket.putLong((boffset + 1) * LONGBYTES, y);
-            gbucket.putLong((boffset + 2) * LONGBYTES, rsize);
-            gbucket.position((boffset + 3) * LONGBYTES);
-            gbucket.put(record, 0, rsize); // memcpy
-
-            long temp = gbucket.getLong(0);
-            gbucket.putLong(0, temp + 24 + rsize);
-            temp = gbucket.getLong(1 * LONGBYTES);
-            gbucket.putLong(1 * LONGBYTES, temp + 1);
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: appendBucketEntry()");
+    public void mapGridBlobs() {
+        this.blobStore = new BlobStore(this.blobName);
+        this.blobStore.open();
+    }
+
+    public void unmapGridBlobs() {
+        if (this.blobStore != null) {
+            this.blobStore.close();
+            this.blobStore = null;
         }
     }
 
     /*
-        Returns bucket entry offset from mapped grid bucket
+        Rebuilds free extents of the blob file from the blobs referenced by bucket entries
+        Each bucket chain is read once, a grid without blobs reads none
      */
-    public long getBucketEntry(MappedByteBuffer gbucket, long entry) {
-        long be = 16 * LONGBYTES;
-        try {
-            long nrecords = gbucket.getLong(1 * LONGBYTES);
-            //long cbe;
-            long rsize;
-            long iter;
+    private void rebuildGridBlobs() {
+        if (this.blobStore.getLength() == 0) {
+            return;
+        }
 
-            if (entry >= nrecords) {
-                throw new IllegalArgumentException("Invalid argument in getBucketEntry()");
-            }
+        List<long[]> used = new ArrayList<long[]>();
+        BitSet scanned = new BitSet();
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
 
-            for (iter = 0; iter < entry; iter++) {
-                rsize = gbucket.getLong((be + 2) * LONGBYTES);
-                be += 24 + rsize;
+        for (long xiter = 0; xiter <= xint; xiter++) {
+            for (long yiter = 0; yiter <= yint; yiter++) {
+                long ge = getGridEntry(xiter, yiter);
+                long baddr = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+                if (scanned.get((int) baddr)) {
+                    continue;
+                }
+                scanned.set((int) baddr);
+
+                for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+                    for (long slot = 0; slot < BucketPage.slotCount(gb); slot++) {
+                        int be = getBucketEntry(gb, slot);
+                        if (be != BucketPage.TOMBSTONE && BucketPage.isBlob(gb, be)) {
+                            ByteBuffer reference = BucketPage.getRecord(gb, be);
+                            used.add(new long[]{BlobStore.position(reference), BlobStore.length(reference)});
+                        }
+                    }
+                }
             }
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: getBucketEntry()");
         }
 
-        return be; // return offset of bucket entry
+        this.blobStore.rebuild(used);
     }
 
     /*
-        Deletes bucket entry from mapped grid bucket
+        Maps grid scale file and grid directory file into memory, and opens grid buckets file
+        and grid blob file, or allocates the buckets of a grid held in memory
      */
-    public void deleteBucketEntry(MappedByteBuffer gbucket, long entry) {
-        try {
-            long nbytes = gbucket.getLong(0);
-            long nrecords = gbucket.getLong(1 * LONGBYTES);
-            long cbytes = nbytes;
-            long cbe; // used as offset
-            long nbe; // used as offset
-            long rsize;
-            long iter;
+    public void loadGrid() {
+        if (this.inMemory) {
+            mapGridBuckets();
+            mapGridBlobs();
+        } else {
+            finishGrowth();
+            readGridSize();
+            mapGridScale();
+            mapGridDirectory();
+            mapGridFreeList();
+            mapGridBuckets();
+            mapGridBlobs();
+            recoverGrid(); // blobs written by replay are appended, the file taken as used until rebuilt
+            rebuildGridBlobs();
+        }
 
-            if (entry >= nrecords) {
-                throw new IllegalArgumentException("Invalid argument in deleteBucketEntry()");
-            }
+        if (this.metrics != null) {
+            this.metrics.register(this.gridName);
+        }
 
-            for (iter = 0; iter < entry; iter++) {
-                cbe = getBucketEntry(gbucket, iter);
-                cbytes -= (24 + gbucket.getLong(cbe * LONGBYTES));
-            }
+        if (this.logGroupSize > 0 && !this.inMemory) {
+            this.gridLog = new GridLog(this.logName, this.logGroupSize, this.logGroupMillis);
+            this.gridLog.open(this.gridDirectory.getLong(0));
+            this.blobStore.setDeferFrees(true); // blobs of deleted records stay restorable until the checkpoint
+        }
+    }
 
-            cbe = getBucketEntry(gbucket, entry);
+    /*
+        Unmaps grid scale file, grid directory file and grid buckets file from memory,
+        discarding a grid held in memory
+     */
+    public void unloadGrid() {
+        if (this.gridLog != null) {
+            checkpoint();
+            this.gridLog.close();
+            this.gridLog = null;
+            new File(this.logName).delete();
+        }
 
-            rsize = gbucket.getLong((2 + cbe) * LONGBYTES);
-            cbytes -= (24 + rsize);
-            nbe = cbe + 24 + rsize;
+        unmapGridBuckets();
+        unmapGridBlobs();
+        unmapGridScale();
+        closeRetiredStorages();
+        unmapGridDirectory();
+        unmapGridFreeList();
 
-            // memmove(cbe, nbe, cbytes);
-            byte[] record = new byte[cbytes];
-            gbucket.position(nbe * LONGBYTES);
-            gbucket.get(record, 0, cbytes);
-            gbucket.position(cbe * LONGBYTES);
-            gbucket.put(record, 0, cbytes);
+        if (this.metrics != null) {
+            this.metrics.unregister();
+        }
 
-            long temp = gbucket.getLong(0);
-            gbucket.putLong(0, temp - (24 + rsize));
-            temp = gbucket.getLong(1 * LONGBYTES);
-            gbucket.putLong(1 * LONGBYTES, temp - 1);
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: deleteBucketEntry()");
+        if (this.rangePool != null) {
+            this.rangePool.shutdown();
+            this.rangePool = null;
         }
     }
 
     /*
-        Inserts new record into bucket, updating bucket and grid entry statistics
+        Reads grid size from the grid scale file, which may have grown since createGrid()
      */
-    public void insertGridRecord(long gentry, long x, long y, Object record, long rsize) {
-        MappedByteBuffer gbucket;
+    private void readGridSize() {
         try {
-            long nbytes = this.gridDirectory.getLong(0);
-            long nrecords = this.gridDirectory.getLong((1 + gentry) * LONGBYTES);
-            long sx = this.gridDirectory.getLong((2 + gentry) * LONGBYTES);
-            long sy = this.gridDirectory.getLong((3 + gentry) * LONGBYTES);
-            long esize = 24 + rsize;
-            long capacity = this.pageSize - 16 - nbytes;
+            RandomAccessFile scaleRAF = new RandomAccessFile(this.scaleName, "r");
+            long size = scaleRAF.readLong();
+            scaleRAF.close();
 
-            if (esize > capacity) {
-                throw new OutOfMemoryError("Out of memory in insertGridRecord()");
-            }
-
-            gbucket = mapGridBucket(gentry);
-
-            appendBucketEntry(gbucket, x, y, rsize, record);
-
-            this.gridDirectory.putLong((2 + gentry) * LONGBYTES, sx + x);
-            this.gridDirectory.putLong((3 + gentry) * LONGBYTES, sy + y);
-            long temp = this.gridDirectory.getLong((1 + gentry) * LONGBYTES);
-            this.gridDirectory.putLong((1 + gentry) * LONGBYTES, temp + 1);
-            temp = this.gridDirectory.getLong(gentry * LONGBYTES);
-            this.gridDirectory.putLong(gentry * LONGBYTES, temp + 24 + rsize);
+            this.gridSize = size;
+            this.scaleSize = (2 * this.gridSize + 1) * 8;
+            this.directorySize = (this.gridSize * this.gridSize) * 5 * 8 + 8;
         } catch (Exception e) {
             //e.printStackTrace();
-            System.out.println("Error: insertGridRecord()");
+            System.out.println("Error: readGridSize()");
         }
+    }
 
-        unmapGridBucket(gbucket);
+    /*
+        Sets largest grid size the grid scale and directory may grow to, the grid size of
+        createGrid() keeps the grid from growing
+     */
+    public void setMaxGridSize(long size) {
+        if (size < 2 || size > MAX_SEGMENTED_GRID_SIZE) {
+            throw new IllegalArgumentException("Invalid argument in setMaxGridSize()");
+        }
+
+        this.maxGridSize = size;
+    }
+
+    public long getGridSize() {
+        return this.gridSize;
     }
 
     /*
-        Splits grid in one direction with new grid entries sharing buckets
+        Grows grid scale and directory to given grid size
      */
-    public void splitGrid(int vertical, long lon, long lat, long x, long y) {
+    public void growGrid(long size) {
+        long stamp = lockGridWrite();
         try {
-            long ge;
-            long xint = this.gridScale.getLong(1 * LONGBYTES);
-            long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
-            long sum;
-            long average;
-            long nrecords;
-            long xiter;
-            long yiter;
-            long cge = 0;
-            long pge = 0;
+            resizeGrid(size);
+        } finally {
+            unlockGridWrite(stamp);
+        }
+    }
 
-            if (vertical == 1 && xint == gridSize - 1) {
-                throw new OutOfMemoryError("Out of memory in splitGrid()");
-            }
+    /*
+        Grows grid scale and directory to given grid size, the grid must be locked exclusively
+
+        Grown files are written next to the grid files in one streaming pass, directory rows moving
+        to the wider row-major layout, forced and renamed over the grid files, directory first. The
+        grid size kept in the grid scale tells which layout a grid file has, so a crash leaves either
+        the old grid or, once the directory is renamed, a grown grid finished by the next loadGrid().
+        A grid held in memory is copied to larger heap buffers instead.
+        With the write-ahead log enabled the grid is checkpointed first, so that no before-image in
+        the log refers to the old layout.
+     */
+    private void resizeGrid(long size) {
+        if (size <= this.gridSize || size > MAX_SEGMENTED_GRID_SIZE) {
+            throw new IllegalArgumentException("Invalid argument in resizeGrid()");
+        }
 
-            if (vertical == 0 && yint == gridSize - 1) {
-                throw new OutOfMemoryError("Out of memory in splitGrid()");
-            }
+        if (this.gridLog != null) {
+            this.gridLog.sync();
+            this.gridScale.force();
+            this.gridDirectory.force();
+            this.gridFreeList.force();
+            this.bucketStore.force();
+            this.blobStore.force();
+            this.gridLog.checkpoint(this.gridDirectory.getLong(0));
+            this.blobStore.releaseDeferred();
+        }
 
-            ge = getGridEntry(lon, lat);
-            nrecords = this.gridDirectory.getLong((ge + 1) * LONGBYTES);
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
+        long scaleSize = (2 * size + 1) * 8;
+        long directorySize = (size * size) * 5 * 8 + 8;
+        GridStorage scale = null;
+        GridStorage directory = null;
+
+        try {
+            if (this.inMemory) {
+                scale = allocateGridStorage(scaleSize);
+                directory = allocateGridStorage(directorySize);
+            } else {
+                RandomAccessFile scaleRAF = new RandomAccessFile(this.scaleName + "grow", "rw");
+                scaleRAF.setLength(0);
+                scaleRAF.close();
+                scale = mapGridFile(this.scaleName + "grow", scaleSize);
+
+                RandomAccessFile dirRAF = new RandomAccessFile(this.directoryName + "grow", "rw");
+                dirRAF.setLength(0);
+                dirRAF.close();
+                directory = mapGridFile(this.directoryName + "grow", directorySize);
+            }
+
+            // scale, grid size then longitude and latitude partitions at their new positions
+            scale.putLong(0, size);
+            copyGridLongs(this.gridScale, 1, scale, 1, xint + 1);
+            copyGridLongs(this.gridScale, 1 + this.gridSize, scale, 1 + size, yint + 1);
+
+            // directory, next bucket address then each row of grid entries
+            directory.putLong(0, this.gridDirectory.getLong(0));
+            for (long xiter = 0; xiter <= xint; xiter++) {
+                copyGridLongs(this.gridDirectory, 1 + xiter * this.gridSize * 5, directory, 1 + xiter * size * 5,
+                        (yint + 1) * 5);
+            }
+
+            if (!this.inMemory) {
+                scale.force();
+                directory.force();
+                Files.move(new File(this.directoryName + "grow").toPath(), new File(this.directoryName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(new File(this.scaleName + "grow").toPath(), new File(this.scaleName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: resizeGrid()");
+            if (scale != null) {
+                scale.close();
+            }
+            if (directory != null) {
+                directory.close();
+            }
+            if (!this.inMemory) {
+                new File(this.scaleName + "grow").delete();
+                new File(this.directoryName + "grow").delete();
+            }
+            throw new IllegalStateException("Unable to grow grid " + this.gridName);
+        }
+
+        GridStorage oldScale = this.gridScale;
+        GridStorage oldDirectory = this.gridDirectory;
+
+        // mappings first, so that readers seeing the new size see large enough mappings
+        this.gridScale = scale;
+        this.gridDirectory = directory;
+        this.gridSize = size;
+        this.scaleSize = scaleSize;
+        this.directorySize = directorySize;
+        this.scaleIndex.invalidate();
+
+        if (isThreadSafe()) { // optimistic readers may still read the old mappings
+            retireGridStorage(oldScale);
+            retireGridStorage(oldDirectory);
+        } else {
+            oldScale.close();
+            oldDirectory.close();
+        }
+    }
+
+    /*
+        Retires storage replaced while the grid is locked exclusively, to be closed when the grid is
+        unloaded
+
+        Optimistic readers hold no lock and may read a storage at any time before they validate, so
+        no storage is closed while the grid is loaded. Each resize at least doubles the grid size, so
+        retired storages together stay smaller than the storages replacing them.
+     */
+    private void retireGridStorage(GridStorage storage) {
+        synchronized (this.retiredStorages) {
+            this.retiredStorages.add(storage);
+        }
+    }
+
+    /*
+        Closes all retired storages, once no reader is left
+     */
+    private void closeRetiredStorages() {
+        synchronized (this.retiredStorages) {
+            for (GridStorage storage : this.retiredStorages) {
+                storage.close();
+            }
+            this.retiredStorages.clear();
+        }
+    }
+
+    /*
+        Copies count longs between grid files at given long positions
+     */
+    private void copyGridLongs(GridStorage source, long from, GridStorage target, long to, long count) {
+        ByteBuffer longs = ByteBuffer.allocate((int) (count * LONGBYTES));
+        source.get(from * LONGBYTES, longs);
+        longs.flip();
+        target.put(to * LONGBYTES, longs); // memcpy
+    }
+
+    /*
+        Finishes growth of the grid interrupted by a crash after the grown directory was renamed,
+        or drops grown files written before
+     */
+    private void finishGrowth() {
+        File scale = new File(this.scaleName + "grow");
+        File directory = new File(this.directoryName + "grow");
+
+        try {
+            if (directory.exists()) {
+                directory.delete();
+                scale.delete();
+            } else if (scale.exists()) {
+                Files.move(scale.toPath(), new File(this.scaleName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: finishGrowth()");
+            throw new IllegalStateException("Unable to finish growing grid " + this.gridName);
+        }
+    }
+
+    /*
+        Enables the write-ahead log for the next loadGrid(), or disables it if groupSize is 0
+        Inserts and deletes are forced to the log in groups of groupSize records, or sooner once the
+        oldest unforced record is groupMillis old, a group size of 1 forces every operation
+     */
+    public void setWriteAheadLog(int groupSize, long groupMillis) {
+        if (groupSize < 0 || groupMillis < 0) {
+            throw new IllegalArgumentException("Invalid argument in setWriteAheadLog()");
+        }
+
+        this.logGroupSize = groupSize;
+        this.logGroupMillis = groupMillis;
+    }
+
+    /*
+        Enables the bucket cache holding given number of buckets for the next loadGrid(), or maps
+        the buckets file if 0
+
+        The cache keeps buckets off heap, reading and writing them back itself rather than through
+        mappings of the buckets file, and evicts buckets with the CLOCK algorithm. Records are then
+        copied out of their buckets, as in thread-safe mode. Each thread pins at most a few buckets
+        at once, the cache needs a few frames per thread using the grid.
+     */
+    public void setBucketCache(int nbuckets) {
+        if (nbuckets != 0 && nbuckets < BucketCache.MIN_FRAMES) {
+            throw new IllegalArgumentException("Invalid argument in setBucketCache()");
+        }
+
+        this.cacheBuckets = nbuckets;
+    }
+
+    /*
+        Returns bucket cache with its hit, miss, eviction and write-back counters,
+        or null if the buckets file is mapped
+     */
+    public BucketCache getBucketCache() {
+        return this.bucketStore == null ? null : this.bucketStore.getCache();
+    }
+
+    /*
+        Checks if buckets are kept in the bucket cache, whose buckets must not be viewed once released
+     */
+    public boolean hasBucketCache() {
+        return getBucketCache() != null;
+    }
+
+    /*
+        Enables counters and latency histograms of grid operations, registered as platform MBean
+        while the grid is loaded, or disables them
+     */
+    public void setMetrics(boolean enabled) {
+        if (enabled && this.metrics == null) {
+            this.metrics = new GridMetrics();
+            if (this.gridDirectory != null) {
+                this.metrics.register(this.gridName);
+            }
+        } else if (!enabled && this.metrics != null) {
+            this.metrics.unregister();
+            this.metrics = null;
+        }
+    }
+
+    /*
+        Returns metrics of grid operations, or null if disabled
+     */
+    public GridMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /*
+        Forces pending inserts and deletes to the write-ahead log
+     */
+    public void commit() {
+        if (this.gridLog != null) {
+            this.gridLog.sync();
+        }
+    }
+
+    /*
+        Forces mapped grid files to disk and empties the write-ahead log
+     */
+    public void checkpoint() {
+        long stamp = lockGridWrite();
+        try {
+            if (this.gridLog != null) {
+                this.gridLog.sync(); // records of operations not yet forced stay redoable until files are
+            }
+
+            this.gridScale.force();
+            this.gridDirectory.force();
+            this.gridFreeList.force();
+            this.bucketStore.force();
+            this.blobStore.force();
+
+            if (this.gridLog != null) {
+                this.gridLog.checkpoint(this.gridDirectory.getLong(0));
+                this.blobStore.releaseDeferred();
+            }
+        } finally {
+            unlockGridWrite(stamp);
+        }
+    }
+
+    /*
+        Checkpoints once the write-ahead log is large, must be called without grid locks held
+     */
+    private void checkpointIfFull() {
+        if (this.gridLog != null && this.gridLog.isFull()) {
+            checkpoint();
+        }
+    }
+
+    /*
+        Replays write-ahead log left by a crash, if any, then forces the recovered grid and drops the log
+     */
+    private void recoverGrid() {
+        if (GridLog.replay(this.logName, this) >= 0) {
+            this.gridScale.force();
+            this.gridDirectory.force();
+            this.gridFreeList.force();
+            this.bucketStore.force();
+            this.blobStore.force();
+        }
+        new File(this.logName).delete();
+    }
+
+    /*
+        Restores before-image of given unit of a grid file during recovery
+     */
+    public void restoreImage(int file, long unit, ByteBuffer image) {
+        if (file == GridLog.SCALE) {
+            this.gridScale.put(unit * GridLog.CHUNK_BYTES, image);
+            this.scaleIndex.invalidate();
+        } else if (file == GridLog.DIRECTORY) {
+            this.gridDirectory.put(unit * GridLog.CHUNK_BYTES, image);
+        } else if (file == GridLog.FREELIST) {
+            this.gridFreeList.put(unit * GridLog.CHUNK_BYTES, image);
+        } else {
+            ByteBuffer target = this.bucketStore.slice(unit);
+            target.put(image); // memcpy
+            this.bucketStore.markDirty(unit);
+            this.bucketStore.release(target);
+        }
+    }
+
+    /*
+        Writes long into grid directory, logging the before-image of its chunk first
+     */
+    private void putGridDirectory(long index, long value) {
+        if (this.gridLog != null) {
+            this.gridLog.touch(GridLog.DIRECTORY, index, this.gridDirectory);
+        }
+        this.gridDirectory.putLong(index, value);
+    }
+
+    /*
+        Writes long into free list, logging its before-image first
+     */
+    private void putGridFreeList(long index, long value) {
+        if (this.gridLog != null) {
+            this.gridLog.touch(GridLog.FREELIST, index, this.gridFreeList);
+        }
+        this.gridFreeList.putLong(index, value);
+    }
+
+    /*
+        Writes long into grid scale, logging the before-image of its chunk first
+     */
+    private void putGridScale(long index, long value) {
+        if (this.gridLog != null) {
+            this.gridLog.touch(GridLog.SCALE, index, this.gridScale);
+        }
+        this.gridScale.putLong(index, value);
+    }
+
+    /*
+        Enables or disables thread-safe mode, which must not change while the grid is in use
+
+        In thread-safe mode record inserts, batches, lookups, deletes and range queries may be called
+        from any number of threads. Lookups and range queries run concurrently with each other, inserts
+        and deletes lock only the bucket they change through striped bucket locks, and splitting the
+        grid is the only operation taking the grid scale and directory exclusively. Lower level
+        methods on grid entries and buckets are not locked.
+     */
+    public void setThreadSafe(boolean threadSafe) {
+        if (threadSafe) {
+            this.gridLock = new StampedLock();
+            this.bucketLocks = new BucketLocks(BucketLocks.DEFAULT_STRIPES);
+        } else {
+            this.gridLock = null;
+            this.bucketLocks = null;
+        }
+    }
+
+    public boolean isThreadSafe() {
+        return this.gridLock != null;
+    }
+
+    /*
+        Locks grid scale and directory against splits of the grid, shared with other operations
+     */
+    private long lockGridRead() {
+        return this.gridLock == null ? 0 : this.gridLock.readLock();
+    }
+
+    private void unlockGridRead(long stamp) {
+        if (this.gridLock != null) {
+            this.gridLock.unlockRead(stamp);
+        }
+    }
+
+    /*
+        Locks grid scale and directory exclusively
+     */
+    private long lockGridWrite() {
+        if (this.gridLock == null) {
+            return 0;
+        }
+
+        return this.gridLock.writeLock();
+    }
+
+    private void unlockGridWrite(long stamp) {
+        if (this.gridLock != null) {
+            this.scaleIndex.invalidate(); // partitions cached by optimistic readers may be torn
+            this.gridLock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+        Returns stamp for reading the grid scale and directory without locking, waiting out a split
+        of the grid in progress
+     */
+    public long beginGridRead() {
+        if (this.gridLock == null) {
+            return 0;
+        }
+
+        long stamp = this.gridLock.tryOptimisticRead();
+        while (stamp == 0) {
+            this.gridLock.unlockRead(this.gridLock.readLock());
+            stamp = this.gridLock.tryOptimisticRead();
+        }
+        return stamp;
+    }
+
+    /*
+        Checks if the grid was not split since given stamp was taken
+     */
+    public boolean validateGridRead(long stamp) {
+        return this.gridLock == null || this.gridLock.validate(stamp);
+    }
+
+    /*
+        Locks bucket of given grid entry, the grid must be locked against splits
+        Returns locked bucket address, which no bucket split changes until it is unlocked
+     */
+    private long lockBucket(long ge, boolean write) {
+        while (true) {
+            long baddr = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+            if (this.bucketLocks == null) {
+                return baddr;
+            }
+
+            ReentrantReadWriteLock lock = this.bucketLocks.get(baddr);
+            if (write) {
+                lock.writeLock().lock();
+            } else {
+                lock.readLock().lock();
+            }
+
+            if (baddr == this.gridDirectory.getLong((4 + ge) * LONGBYTES)) {
+                return baddr;
+            }
+            unlockBucket(baddr, write); // bucket was split before it was locked
+        }
+    }
+
+    private void unlockBucket(long baddr, boolean write) {
+        if (this.bucketLocks == null) {
+            return;
+        }
+
+        ReentrantReadWriteLock lock = this.bucketLocks.get(baddr);
+        if (write) {
+            lock.writeLock().unlock();
+        } else {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+        Copies records of given grid entry within specified coordinate range to dst, for range
+        queries in thread-safe mode or with the bucket cache
+
+        Only records located in the grid entry itself are copied, not all records of its bucket,
+        so a record moved to another bucket by a concurrent split is still copied exactly once.
+        Throws ConcurrentModificationException if the grid was split, merged or lost a partition since
+        given stamp was taken, also when that left the grid entry outside the grid.
+     */
+    public void copyCellRecords(long stamp, long lon, long lat, long x1, long y1, long x2, long y2,
+                                Collection<Record> dst) {
+        long[][] parts = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+        if (lon > parts[0].length || lat > parts[1].length) { // scale shrunk since the cell was located
+            if (validateGridRead(stamp)) {
+                throw new IllegalArgumentException("Invalid argument in copyCellRecords()");
+            }
+            throw new ConcurrentModificationException("Grid merged during range query");
+        }
+        List<Record> records = new ArrayList<Record>();
+
+        // cell holds x in (parts[lon - 1], parts[lon]] and y in (parts[lat - 1], parts[lat]]
+        long cx1 = lon > 0 ? Math.max(x1, parts[0][(int) lon - 1] + 1) : x1;
+        long cx2 = lon < parts[0].length ? Math.min(x2, parts[0][(int) lon]) : x2;
+        long cy1 = lat > 0 ? Math.max(y1, parts[1][(int) lat - 1] + 1) : y1;
+        long cy2 = lat < parts[1].length ? Math.min(y2, parts[1][(int) lat]) : y2;
+
+        long ge;
+        try {
+            ge = getGridEntry(lon, lat);
+        } catch (IllegalArgumentException e) {
+            if (validateGridRead(stamp)) {
+                throw e;
+            }
+            throw new ConcurrentModificationException("Grid merged during range query");
+        }
+
+        long baddr = lockBucket(ge, false);
+        try {
+            for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+                for (long iter = BucketPage.nextInRange(gb, 0, cx1, cy1, cx2, cy2); iter >= 0;
+                     iter = BucketPage.nextInRange(gb, iter + 1, cx1, cy1, cx2, cy2)) {
+                    int be = BucketPage.entryOffset(gb, iter);
+                    ByteBuffer record = getBucketRecord(gb, be);
+                    if (!BucketPage.isBlob(gb, be)) { // blobs are read into a copy already
+                        ByteBuffer copy = ByteBuffer.allocate(record.remaining());
+                        copy.put(record); // memcpy
+                        copy.flip();
+                        record = copy;
+                        if (this.metrics != null) {
+                            this.metrics.bytesCopied(copy.remaining());
+                        }
+                    }
+                    records.add(new Record(BucketPage.getX(gb, be), BucketPage.getY(gb, be), record));
+                }
+            }
+        } catch (RuntimeException e) { // bucket freed or reused by a merge while it was read
+            if (validateGridRead(stamp)) {
+                throw e;
+            }
+            throw new ConcurrentModificationException("Grid merged during range query");
+        } finally {
+            unlockBucket(baddr, false);
+        }
+
+        if (!validateGridRead(stamp)) { // partitions or bucket address may be stale
+            throw new ConcurrentModificationException("Grid split during range query");
+        }
+        dst.addAll(records);
+    }
+
+    /*
+        Fetches grid longitude and latitude for given coordinates from cached grid scale partitions
+     */
+    public long[] getGridLocation(long x, long y) {
+        long[] lonlat = new long[2];
+        try {
+            long stamp = beginGridRead();
+            try {
+                long[][] parts = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+
+                lonlat[0] = GridScaleIndex.locate(parts[0], x); // determine longitude
+                lonlat[1] = GridScaleIndex.locate(parts[1], y); // determine latitude
+            } catch (RuntimeException e) {
+                if (validateGridRead(stamp)) {
+                    throw e;
+                } // else scale read while torn by a split, located again below
+            }
+
+            if (!validateGridRead(stamp)) { // grid was split meanwhile, locate again under lock
+                stamp = lockGridRead();
+                try {
+                    long[][] parts = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+                    lonlat[0] = GridScaleIndex.locate(parts[0], x);
+                    lonlat[1] = GridScaleIndex.locate(parts[1], y);
+                } finally {
+                    unlockGridRead(stamp);
+                }
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: getGridLocation()");
+        }
+
+        return lonlat; // return "tuple", (longitude, latitude)
+    }
+
+    /*
+        Fetches grid longitude for given coordinate without allocating a location
+     */
+    public long locateLongitude(long x) {
+        return GridScaleIndex.locate(this.scaleIndex.getPartitions(this.gridScale, this.gridSize)[0], x);
+    }
+
+    /*
+        Fetches grid latitude for given coordinate without allocating a location
+     */
+    public long locateLatitude(long y) {
+        return GridScaleIndex.locate(this.scaleIndex.getPartitions(this.gridScale, this.gridSize)[1], y);
+    }
+
+    /*
+        Inserts new grid partition in grid scale
+     */
+    public void insertGridPartition(int lon, long partition) {
+        long[] parts;
+        long ints;
+        long inta; // used as offset
+        long part; // used as offset
+        long iter;
+        long ipart;
+
+        try {
+            long[][] cached = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+
+            if (lon == 1) { // longitude
+                parts = cached[0];
+                inta = 1;
+                part = 2;
+            } else { // latitude
+                parts = cached[1];
+                inta = 1 + this.gridSize;
+                part = 2 + this.gridSize;
+            }
+            ints = parts.length;
+
+            if (ints >= this.gridSize - 1) {
+                throw new OutOfMemoryError("Out of memory in insertGridPartition()");
+            }
+
+            ipart = GridScaleIndex.locate(parts, partition);
+
+            if (ipart < ints && parts[(int) ipart] == partition) {
+                throw new OutOfMemoryError("Out of memory in insertGridPartition()");
+            }
+
+            for (iter = ints; iter > ipart; iter--) {
+                putGridScale((part + iter) * LONGBYTES, parts[(int) iter - 1]);
+            }
+
+            putGridScale((part + ipart) * LONGBYTES, partition);
+            putGridScale(inta * LONGBYTES, ints + 1);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: insertGridPartition()");
+        }
+
+        this.scaleIndex.invalidate();
+    }
+
+    /*
+        Fetches grid partitions for given coordinates
+     */
+    public long[] getGridPartitions(long lon, long lat) {
+        long xy[] = new long[2];
+        try {
+            long xint = this.gridScale.getLong(1 * LONGBYTES);
+            long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
+            long xp;
+            long yp;
+
+            if (lon > xint || lat > yint) {
+                throw new IllegalArgumentException("Invalid argument in getGridPartitions()");
+            }
+
+            xp = (lon - 1 < 0) ? 0 : lon - 1;
+            yp = (lat - 1 < 0) ? 0 : lat - 1;
+
+            xy[0] = this.gridScale.getLong((2 + xp) * LONGBYTES);
+            xy[1] = this.gridScale.getLong((2 + this.gridSize + yp) * LONGBYTES);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: getGridPartitions()");
+        }
+
+        return xy;
+    }
+
+    /*
+        Returns offset for beginning of grid entry in grid directory
+     */
+    public long getGridEntry(long lon, long lat) {
+        long offset = 1;
+        long xint = 0;
+        long yint = 0;
+        try {
+            xint = this.gridScale.getLong(1 * LONGBYTES);
+            yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: getGridEntry()");
+        }
+
+        if (lon > xint || lat > yint) {
+            throw new IllegalArgumentException("Invalid argument in getGridEntry()");
+        }
+
+        offset += (lon * this.gridSize * 5 + lat * 5);
+
+        return offset;  // use gridScale.getLong(offset * LONGBYTES)
+    }
+
+    /*
+        Returns view of grid bucket for given grid entry from the bucket store
+     */
+    public ByteBuffer mapGridBucket(long gentry) {
+        return mapBucketPage(this.gridDirectory.getLong((gentry + 4) * LONGBYTES));
+    }
+
+    /*
+        Returns view of grid bucket for given grid entry to be changed, logging its before-image first
+     */
+    public ByteBuffer mapGridBucketWrite(long gentry) {
+        return mapBucketPageWrite(this.gridDirectory.getLong((gentry + 4) * LONGBYTES));
+    }
+
+    /*
+        Returns view of the overflow page chained from given bucket page, or null at the end of
+        the chain, releasing the given view
+        Pages of a bucket are visited by for (gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb))
+     */
+    public ByteBuffer mapOverflowBucket(ByteBuffer gbucket) {
+        long next = BucketPage.overflow(gbucket);
+        unmapGridBucket(gbucket);
+
+        return next < 0 ? null : mapBucketPage(next);
+    }
+
+    /*
+        Returns view of bucket page at given bucket address
+     */
+    private ByteBuffer mapBucketPage(long baddr) {
+        ByteBuffer gbucket = null;
+        try {
+            gbucket = this.bucketStore.slice(baddr);
+            if (this.metrics != null) {
+                this.metrics.bucketMapped();
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: mapBucketPage()");
+        }
+
+        return gbucket;
+    }
+
+    /*
+        Returns view of bucket page at given bucket address to be changed, logging its before-image first
+     */
+    private ByteBuffer mapBucketPageWrite(long baddr) {
+        ByteBuffer gbucket = mapBucketPage(baddr);
+        if (gbucket != null) {
+            touchBucketPage(baddr);
+        }
+
+        return gbucket;
+    }
+
+    /*
+        Logs before-image of bucket page at given bucket address mapped to be changed
+     */
+    private void touchBucketPage(long baddr) {
+        if (this.gridLog != null) {
+            this.gridLog.touchBucket(baddr, this.bucketStore);
+        }
+        this.bucketStore.markDirty(baddr);
+    }
+
+    /*
+        Checks if a record of given size fits in a page of the bucket of given grid entry
+     */
+    private boolean hasBucketRoom(long gentry, long rsize) {
+        if (BucketPage.fits(this.pageSize, this.gridDirectory.getLong(gentry * LONGBYTES), rsize)) {
+            return true; // the bucket page uses no more than the whole chain
+        }
+
+        for (ByteBuffer gb = mapGridBucket(gentry); gb != null; gb = mapOverflowBucket(gb)) {
+            if (BucketPage.fits(this.pageSize, BucketPage.usedBytes(gb), rsize)) {
+                unmapGridBucket(gb);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+        Returns view of the first page of the bucket of given grid entry a record of given size
+        fits in, to be changed, or null if all pages of the bucket are full
+     */
+    private ByteBuffer mapBucketRoomWrite(long gentry, long rsize) {
+        long baddr = this.gridDirectory.getLong((4 + gentry) * LONGBYTES);
+
+        while (baddr >= 0) {
+            ByteBuffer gb = mapBucketPage(baddr);
+            if (BucketPage.fits(this.pageSize, BucketPage.usedBytes(gb), rsize)) {
+                touchBucketPage(baddr);
+                return gb;
+            }
+            baddr = BucketPage.overflow(gb);
+            unmapGridBucket(gb);
+        }
+        return null;
+    }
+
+    /*
+        Links a new overflow page after the bucket page given as head of its chain, mapped to be changed
+        Pages are chained next to the head, where inserts look for room first
+        Returns view of the new page to be changed
+     */
+    private ByteBuffer chainBucketPage(ByteBuffer head) {
+        if (!BucketPage.upgrade(head)) {
+            throw new OutOfMemoryError("Out of memory in chainBucketPage()"); // full legacy page links nothing
+        }
+
+        long naddr = allocateBucket();
+        ByteBuffer page = mapBucketPageWrite(naddr);
+        formatBucket(page);
+        BucketPage.setOverflow(page, BucketPage.overflow(head));
+        BucketPage.setOverflow(head, naddr);
+        if (this.metrics != null) {
+            this.metrics.bucketChained();
+        }
+
+        return page;
+    }
+
+    /*
+        Appends entry to given page of the bucket chain headed by given page, both mapped to be changed,
+        chaining a new page when the given page is full
+        Returns the page the entry went to, the given page being released unless it is the head
+     */
+    private ByteBuffer appendChainEntry(ByteBuffer head, ByteBuffer page, long x, long y, ByteBuffer record,
+                                        boolean blob) {
+        if (!BucketPage.fits(this.pageSize, BucketPage.usedBytes(page), record.remaining())) {
+            if (page != head) {
+                unmapGridBucket(page);
+            }
+            page = chainBucketPage(head);
+        }
+
+        appendBucketEntry(page, x, y, record, blob);
+        return page;
+    }
+
+    /*
+        Returns [used bytes, record count] over all pages of the bucket of given grid entry,
+        as kept in the grid directory
+     */
+    private long[] getChainUsage(long gentry) {
+        long[] usage = new long[2];
+        for (ByteBuffer gb = mapGridBucket(gentry); gb != null; gb = mapOverflowBucket(gb)) {
+            usage[0] += BucketPage.usedBytes(gb);
+            usage[1] += BucketPage.recordCount(gb);
+        }
+        return usage;
+    }
+
+    /*
+        Releases grid bucket view, segments stay mapped until unloadGrid()
+     */
+    public void unmapGridBucket(ByteBuffer gbucket) {
+        this.bucketStore.release(gbucket);
+    }
+
+    /*
+        Appends x, y, record size and record at end of the bucket, formatting new buckets
+        in the bucket layout of the grid
+     */
+    public void appendBucketEntry(ByteBuffer gbucket, long x, long y, ByteBuffer record) {
+        appendBucketEntry(gbucket, x, y, record, false);
+    }
+
+    /*
+        Appends entry to the bucket holding given record, or given reference to a blob if blob is set
+     */
+    public void appendBucketEntry(ByteBuffer gbucket, long x, long y, ByteBuffer record, boolean blob) {
+        if (BucketPage.version(gbucket) == BucketPage.LEGACY && BucketPage.recordCount(gbucket) == 0) {
+            formatBucket(gbucket);
+        }
+        BucketPage.append(gbucket, x, y, record, blob);
+    }
+
+    /*
+        Returns record of bucket entry at given offset, a view in its page unless compressed there,
+        or a copy read from the blob file for entries referencing a blob
+     */
+    public ByteBuffer getBucketRecord(ByteBuffer gbucket, int be) {
+        ByteBuffer record = BucketPage.getRecord(gbucket, be);
+        if (!BucketPage.isBlob(gbucket, be)) {
+            return record;
+        }
+
+        ByteBuffer blob = ByteBuffer.allocate((int) BlobStore.length(record));
+        this.blobStore.read(BlobStore.position(record), blob.capacity(), blob);
+        blob.flip();
+        if (this.metrics != null) {
+            this.metrics.bytesCopied(blob.remaining());
+        }
+        return blob;
+    }
+
+    /*
+        Sets record size above which records are stored in the blob file, bucket entries
+        holding a reference to them instead
+        Records an empty bucket page has no room for are stored in the blob file whatever the threshold
+     */
+    public void setBlobThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid argument in setBlobThreshold()");
+        }
+        this.blobThreshold = threshold;
+    }
+
+    public long getBlobThreshold() {
+        return this.blobThreshold;
+    }
+
+    /*
+        Checks if a record of given size is stored in the blob file
+     */
+    private boolean isBlobRecord(long rsize) {
+        return rsize > this.blobThreshold || !BucketPage.fits(this.pageSize, 0, rsize);
+    }
+
+    /*
+        Writes remaining bytes of payload to the blob file without consuming them
+        Returns reference to the blob, to be appended as a bucket entry
+     */
+    private ByteBuffer writeBlob(ByteBuffer payload) {
+        long rsize = payload.remaining();
+        return BlobStore.reference(this.blobStore.write(payload), rsize);
+    }
+
+    /*
+        Frees blob referenced by bucket entry at given offset, if it references one
+     */
+    private void freeBlob(ByteBuffer gbucket, int be) {
+        if (BucketPage.isBlob(gbucket, be)) {
+            ByteBuffer reference = BucketPage.getRecord(gbucket, be);
+            this.blobStore.free(BlobStore.position(reference), BlobStore.length(reference));
+        }
+    }
+
+    /*
+        Returns byte offset of bucket entry from mapped grid bucket, or BucketPage.TOMBSTONE for deleted entries
+     */
+    public int getBucketEntry(ByteBuffer gbucket, long entry) {
+        int be = BucketPage.TOMBSTONE;
+        try {
+            be = BucketPage.entryOffset(gbucket, entry);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: getBucketEntry()");
+        }
+
+        return be; // return offset of bucket entry
+    }
+
+    /*
+        Deletes bucket entry from mapped grid bucket
+     */
+    public void deleteBucketEntry(ByteBuffer gbucket, long entry) {
+        try {
+            BucketPage.delete(gbucket, entry);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: deleteBucketEntry()");
+        }
+    }
+
+    /*
+        Inserts new record into bucket, updating bucket and grid entry statistics
+        The record goes to the first page of the bucket chain with room for it, grid entries
+        keeping the statistics of the whole chain
+     */
+    public void insertGridRecord(long gentry, long x, long y, ByteBuffer record) {
+        insertGridRecord(gentry, x, y, record, false);
+    }
+
+    /*
+        Inserts new entry into bucket holding given record, or given reference to a blob if blob is set
+     */
+    public void insertGridRecord(long gentry, long x, long y, ByteBuffer record, boolean blob) {
+        ByteBuffer gbucket = null;
+        try {
+            long nbytes = this.gridDirectory.getLong(gentry * LONGBYTES);
+            long nrecords = this.gridDirectory.getLong((1 + gentry) * LONGBYTES);
+            long sx = this.gridDirectory.getLong((2 + gentry) * LONGBYTES);
+            long sy = this.gridDirectory.getLong((3 + gentry) * LONGBYTES);
+
+            gbucket = mapBucketRoomWrite(gentry, record.remaining());
+            if (gbucket == null) {
+                throw new OutOfMemoryError("Out of memory in insertGridRecord()");
+            }
+
+            long used = BucketPage.usedBytes(gbucket);
+            appendBucketEntry(gbucket, x, y, record, blob);
+
+            putGridDirectory((2 + gentry) * LONGBYTES, sx + x);
+            putGridDirectory((3 + gentry) * LONGBYTES, sy + y);
+            putGridDirectory((1 + gentry) * LONGBYTES, nrecords + 1);
+            putGridDirectory(gentry * LONGBYTES, nbytes + BucketPage.usedBytes(gbucket) - used);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: insertGridRecord()");
+        }
+
+        unmapGridBucket(gbucket);
+    }
+
+    /*
+        Converts legacy buckets to slotted buckets, buckets too full to convert stay legacy
+        until a split or delete makes room
+     */
+    public void convertGridBuckets() {
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
+        Set<Long> converted = new HashSet<Long>();
+
+        for (long xiter = 0; xiter <= xint; xiter++) {
+            for (long yiter = 0; yiter <= yint; yiter++) {
+                long ge = getGridEntry(xiter, yiter);
+                long baddr = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+
+                if (!converted.add(baddr)) {
+                    continue;
+                }
+
+                ByteBuffer gb = mapGridBucketWrite(ge);
+                if (BucketPage.version(gb) == BucketPage.LEGACY && BucketPage.upgrade(gb)) {
+                    putGridDirectory(ge * LONGBYTES, BucketPage.usedBytes(gb));
+                    updatePairedBuckets(0, xiter, yiter, baddr);
+                }
+                unmapGridBucket(gb);
+            }
+        }
+    }
+
+    /*
+        Splits grid in one direction with new grid entries sharing buckets, growing the grid scale
+        and directory if the direction has no room for another partition
+     */
+    public void splitGrid(int vertical, long lon, long lat, long x, long y) {
+        if (this.metrics != null) {
+            this.metrics.gridSplit();
+        }
+
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+
+        if ((vertical == 1 && xint == gridSize - 1) || (vertical == 0 && yint == gridSize - 1)) {
+            if (this.gridSize >= this.maxGridSize) {
+                throw new OutOfMemoryError("Out of memory in splitGrid()");
+            }
+            resizeGrid(Math.min(2 * this.gridSize, this.maxGridSize)); // failures leave the grid unsplit
+        }
+
+        try {
+            long xiter;
+            long yiter;
+            long cge = 0;
+            long pge = 0;
+
+            if (vertical == 0) {
+                insertGridPartition(vertical, chooseGridPartition(vertical, lon, lat, x, y));
+
+                for (xiter = 0; xiter <= xint; xiter++) {
+                    for (yiter = yint + 1; yiter > lat; yiter--) {
+                        cge = getGridEntry(xiter, yiter);
+                        pge = getGridEntry(xiter, yiter - 1);
+
+                        copyGridEntry(pge, cge); // memcpy
+                    }
+                }
+            } else {
+                insertGridPartition(vertical, chooseGridPartition(vertical, lon, lat, x, y));
+
+                for (yiter = 0; yiter <= yint; yiter++) {
+                    for (xiter = xint + 1; xiter > lon; xiter--) {
+                        cge = getGridEntry(xiter, yiter);
+                        pge = getGridEntry(xiter - 1, yiter);
+
+                        copyGridEntry(pge, cge); // memcpy
+                    }
+                }
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: splitGrid()");
+        }
+    }
+
+    /*
+        Chooses partition splitting given grid entry in given direction with the split policy,
+        from the records of its bucket and the record being inserted at given coordinates
+        The partition is kept inside the grid entry so that both halves are new grid entries
+     */
+    private long chooseGridPartition(int vertical, long lon, long lat, long x, long y) {
+        long[] bounds = getGridEntryBounds(vertical, lon, lat);
+        long[] values = getGridEntryValues(vertical, lon, lat, x, y);
+
+        long partition = this.splitPolicy.choosePartition(values, values.length, bounds[0], bounds[1]);
+
+        return Math.max(bounds[0] + 1, Math.min(bounds[1] - 1, partition));
+    }
+
+    /*
+        Fetches bounds (low, high] of grid entry in given direction, Long.MIN_VALUE and
+        Long.MAX_VALUE at the border of the grid
+     */
+    private long[] getGridEntryBounds(int vertical, long lon, long lat) {
+        long[][] parts = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+        long[] axis = vertical == 1 ? parts[0] : parts[1];
+        int cell = (int) (vertical == 1 ? lon : lat);
+
+        return new long[]{cell > 0 ? axis[cell - 1] : Long.MIN_VALUE, cell < axis.length ? axis[cell] : Long.MAX_VALUE};
+    }
+
+    /*
+        Fetches coordinates in given direction of the records of given grid entry and of
+        the record being inserted at given coordinates
+     */
+    private long[] getGridEntryValues(int vertical, long lon, long lat, long x, long y) {
+        long[] bounds = getGridEntryBounds(vertical, lon, lat);
+        long ge = getGridEntry(lon, lat);
+        long[] values = new long[(int) this.gridDirectory.getLong((1 + ge) * LONGBYTES) + 1];
+        int count = 0;
+
+        for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+            long nslots = BucketPage.slotCount(gb);
+
+            for (long iter = 0; iter < nslots; iter++) {
+                int be = BucketPage.entryOffset(gb, iter);
+                if (be == BucketPage.TOMBSTONE) {
+                    continue;
+                }
+
+                long value = vertical == 1 ? BucketPage.getX(gb, be) : BucketPage.getY(gb, be);
+                if (value > bounds[0] && value <= bounds[1]) {
+                    values[count++] = value;
+                }
+            }
+        }
+        values[count++] = vertical == 1 ? x : y;
+
+        return Arrays.copyOf(values, count);
+    }
+
+    /*
+        Sets policy choosing partitions of grid splits, MeanSplitPolicy by default
+     */
+    public void setSplitPolicy(SplitPolicy splitPolicy) {
+        if (splitPolicy == null) {
+            throw new IllegalArgumentException("Invalid argument in setSplitPolicy()");
+        }
+
+        this.splitPolicy = splitPolicy;
+    }
+
+    public SplitPolicy getSplitPolicy() {
+        return this.splitPolicy;
+    }
+
+    /*
+        Sets page layout of buckets formatted from now on, BucketPage.SLOTTED by default,
+        BucketPage.COLUMNAR for coordinate filters reading no payload bytes or BucketPage.COMPRESSED
+        for more records per bucket
+        Existing buckets keep their layout until they are split, merged or emptied and reused
+     */
+    public void setBucketLayout(int layout) {
+        if ((layout != BucketPage.SLOTTED && layout != BucketPage.COLUMNAR && layout != BucketPage.COMPRESSED) ||
+                (layout == BucketPage.COMPRESSED && this.pageSize > BucketPage.MAX_COMPRESSED_PAGE)) {
+            throw new IllegalArgumentException("Invalid argument in setBucketLayout()");
+        }
+
+        this.bucketLayout = layout;
+    }
+
+    public int getBucketLayout() {
+        return this.bucketLayout;
+    }
+
+    /*
+        Enables LZ compression of records in compressed buckets formatted from now on
+     */
+    public void setPayloadCompression(boolean payloadCompression) {
+        this.payloadCompression = payloadCompression;
+    }
+
+    public boolean hasPayloadCompression() {
+        return this.payloadCompression;
+    }
+
+    /*
+        Formats bucket as an empty bucket in the bucket layout of the grid
+     */
+    private void formatBucket(ByteBuffer gbucket) {
+        BucketPage.format(gbucket, this.bucketLayout, this.payloadCompression ? BucketPage.COMPRESS_PAYLOADS : 0);
+    }
+
+    /*
+        Counts buckets by fill factor, bytes used over the bytes of all pages chained to the bucket,
+        in given number of equal bins
+        Each bucket is counted once however many grid entries share it
+     */
+    public long[] getFillHistogram(int nbins) {
+        if (nbins < 1) {
+            throw new IllegalArgumentException("Invalid argument in getFillHistogram()");
+        }
+
+        long[] bins = new long[nbins];
+        BitSet counted = new BitSet();
+
+        long stamp = lockGridRead();
+        try {
+            long xint = this.gridScale.getLong(1 * LONGBYTES);
+            long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+
+            for (long xiter = 0; xiter <= xint; xiter++) {
+                for (long yiter = 0; yiter <= yint; yiter++) {
+                    long ge = getGridEntry(xiter, yiter);
+                    long baddr = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+                    if (counted.get((int) baddr)) {
+                        continue;
+                    }
+                    counted.set((int) baddr);
+
+                    long npages = 0;
+                    for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+                        npages++;
+                    }
+
+                    long nbytes = this.gridDirectory.getLong(ge * LONGBYTES); // of the whole chain
+                    bins[(int) Math.min(nbins - 1, nbytes * nbins / (Math.max(1, npages) * this.pageSize))]++;
+                }
+            }
+        } finally {
+            unlockGridRead(stamp);
+        }
+
+        return bins;
+    }
+
+    /*
+        Counts distinct buckets a range query over given coordinates reads, its fan-out
+     */
+    public long countRangeBuckets(long x1, long y1, long x2, long y2) {
+        BitSet counted = new BitSet();
+
+        long stamp = lockGridRead();
+        try {
+            long lon2 = locateLongitude(x2);
+            long lat2 = locateLatitude(y2);
+
+            for (long xiter = locateLongitude(x1); xiter <= lon2; xiter++) {
+                for (long yiter = locateLatitude(y1); yiter <= lat2; yiter++) {
+                    long ge = getGridEntry(xiter, yiter);
+                    counted.set((int) this.gridDirectory.getLong((4 + ge) * LONGBYTES));
+                }
+            }
+        } finally {
+            unlockGridRead(stamp);
+        }
+
+        return counted.cardinality();
+    }
+
+    /*
+        Counts records within specified coordinate range, see aggregateRange()
+     */
+    public long countRange(long x1, long y1, long x2, long y2) {
+        return aggregateRange(x1, y1, x2, y2)[0];
+    }
+
+    /*
+        Aggregates records within specified coordinate range
+        Returns [number of records, sum of x, sum of y], the centroid being the sums over the number
+
+        Buckets whose grid entries lie wholly inside the range are answered from the statistics in
+        the grid directory, which every entry sharing a bucket holds for the whole bucket, so each
+        bucket is counted once. Only buckets crossing the edge of the range are read.
+     */
+    public long[] aggregateRange(long x1, long y1, long x2, long y2) {
+        long[] aggregate = new long[3];
+        BitSet counted = new BitSet();
+
+        long stamp = lockGridRead();
+        try {
+            long[][] parts = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+            long lon2 = locateLongitude(x2);
+            long lat2 = locateLatitude(y2);
+
+            for (long xiter = locateLongitude(x1); xiter <= lon2; xiter++) {
+                for (long yiter = locateLatitude(y1); yiter <= lat2; yiter++) {
+                    long ge = getGridEntry(xiter, yiter);
+                    long baddr = lockBucket(ge, false);
+                    try {
+                        if (counted.get((int) baddr)) {
+                            continue;
+                        }
+                        counted.set((int) baddr);
+
+                        long[] region = getBucketRegion(xiter, yiter);
+                        if (getCellLow(parts[0], region[0]) >= x1 && getCellHigh(parts[0], region[2]) <= x2 &&
+                                getCellLow(parts[1], region[1]) >= y1 && getCellHigh(parts[1], region[3]) <= y2) {
+                            aggregate[0] += this.gridDirectory.getLong((1 + ge) * LONGBYTES);
+                            aggregate[1] += this.gridDirectory.getLong((2 + ge) * LONGBYTES);
+                            aggregate[2] += this.gridDirectory.getLong((3 + ge) * LONGBYTES);
+                        } else {
+                            aggregateBucket(ge, x1, y1, x2, y2, aggregate);
+                        }
+                    } finally {
+                        unlockBucket(baddr, false);
+                    }
+                }
+            }
+        } finally {
+            unlockGridRead(stamp);
+        }
+
+        return aggregate;
+    }
+
+    /*
+        Adds records of bucket of given grid entry within specified coordinate range to aggregate
+     */
+    private void aggregateBucket(long ge, long x1, long y1, long x2, long y2, long[] aggregate) {
+        for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+            for (long iter = BucketPage.nextInRange(gb, 0, x1, y1, x2, y2); iter >= 0;
+                 iter = BucketPage.nextInRange(gb, iter + 1, x1, y1, x2, y2)) {
+                int be = BucketPage.entryOffset(gb, iter);
+                aggregate[0]++;
+                aggregate[1] += BucketPage.getX(gb, be);
+                aggregate[2] += BucketPage.getY(gb, be);
+            }
+        }
+    }
+
+    /*
+        Returns lowest coordinate of given grid cell along an axis, cell holds (axis[cell - 1], axis[cell]]
+     */
+    private static long getCellLow(long[] axis, long cell) {
+        return cell > 0 ? axis[(int) cell - 1] + 1 : Long.MIN_VALUE;
+    }
+
+    /*
+        Returns highest coordinate of given grid cell along an axis
+     */
+    private static long getCellHigh(long[] axis, long cell) {
+        return cell < axis.length ? axis[(int) cell] : Long.MAX_VALUE;
+    }
+
+    /*
+        Updates destination entry from soure entry if sharing buckets
+     */
+    public void updateBucket(int direction, long slon, long slat, long dlon, long dlat, long baddr) {
+        boolean compare;
+        long ge = 0; // was pointer
+        long pge = 0; // was pointer
+
+        ge = getGridEntry(slon, slat);
+        pge = getGridEntry(dlon, dlat);
+
+        try {
+            compare = compareGridEntries(ge, pge);
+
+            if (!compare && baddr == this.gridDirectory.getLong((4 + pge) * LONGBYTES)) {
+                copyGridEntry(ge, pge);
+                updatePairedBuckets(direction, dlon, dlat, baddr);
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: updateBucket()");
+        }
+    }
+
+    /*
+        Updates paired buckets in given direction with statistics and address
+        Buckets are shared by rectangles of grid entries, which are updated in one pass rather than
+        by spreading from neighbour to neighbour, as large rectangles would overflow the stack
+     */
+    public void updatePairedBuckets(int direction, long lon, long lat, long baddr)
+    {
+        long ge = getGridEntry(lon, lat);
+        long[] region = getBucketRegion(lon, lat);
+
+        if (direction > 0) {
+            region[0] = lon;
+            region[1] = lat;
+        }
+        if (direction < 0) {
+            region[2] = lon;
+            region[3] = lat;
+        }
+
+        long nupdated = 0;
+        for (long xiter = region[0]; xiter <= region[2]; xiter++) {
+            for (long yiter = region[1]; yiter <= region[3]; yiter++) {
+                long pge = getGridEntry(xiter, yiter);
+
+                if (pge != ge && baddr == this.gridDirectory.getLong((4 + pge) * LONGBYTES) &&
+                        !compareGridEntries(ge, pge)) {
+                    copyGridEntry(ge, pge);
+                    nupdated++;
+                }
+            }
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordPairedUpdate(nupdated);
+        }
+    }
+
+    /*
+        Checks if grid entries hold the same statistics and address
+     */
+    public boolean compareGridEntries(long ge, long pge) {
+        for (long iter = 0; iter < 5; iter++) {
+            if (this.gridDirectory.getLong((ge + iter) * LONGBYTES) !=
+                    this.gridDirectory.getLong((pge + iter) * LONGBYTES)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+        Copies statistics and address of source grid entry to destination grid entry
+     */
+    public void copyGridEntry(long sge, long dge) {
+        for (long iter = 0; iter < 5; iter++) {
+            long temp = this.gridDirectory.getLong((sge + iter) * LONGBYTES);
+            putGridDirectory((dge + iter) * LONGBYTES, temp); // memcpy
+        }
+    }
+
+    /*
+        Returns grid entries sharing the bucket of given grid entry, which always form a rectangle
+        Returns [first longitude, first latitude, last longitude, last latitude]
+     */
+    public long[] getBucketRegion(long lon, long lat) {
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+        long[] region = {lon, lat, lon, lat};
+
+        while (region[0] > 0 && checkPairedBucket(lon, lat, region[0] - 1, lat)) {
+            region[0]--;
+        }
+        while (region[2] < xint && checkPairedBucket(lon, lat, region[2] + 1, lat)) {
+            region[2]++;
+        }
+        while (region[1] > 0 && checkPairedBucket(lon, lat, lon, region[1] - 1)) {
+            region[1]--;
+        }
+        while (region[3] < yint && checkPairedBucket(lon, lat, lon, region[3] + 1)) {
+            region[3]++;
+        }
+
+        return region;
+    }
+
+    /*
+        Reserves address for a new bucket, reusing the first free bucket if any
+        A reused bucket is formatted empty, a new one is left zeroed
+     */
+    public synchronized long allocateBucket() {
+        long nfree = this.gridFreeList.getLong(0);
+        if (nfree > 0) {
+            long baddr = this.gridFreeList.getLong(8);
+            ByteBuffer page = this.bucketStore.slice(baddr);
+            if (this.gridLog != null) {
+                this.gridLog.touchBucket(baddr, this.bucketStore);
+            }
+
+            putGridFreeList(8, BucketPage.nextFree(page));
+            putGridFreeList(0, nfree - 1);
+            formatBucket(page);
+            this.bucketStore.markDirty(baddr);
+            this.bucketStore.release(page);
+            return baddr;
+        }
+
+        long temp = this.gridDirectory.getLong(0);
+        this.bucketStore.extend(temp + 1);
+        putGridDirectory(0, temp + 1);
+        return temp;
+    }
+
+    /*
+        Returns bucket no grid entry uses any more to the free list
+     */
+    public synchronized void freeBucket(long baddr) {
+        ByteBuffer page = this.bucketStore.slice(baddr);
+        if (this.gridLog != null) {
+            this.gridLog.touchBucket(baddr, this.bucketStore);
+        }
+
+        BucketPage.formatFree(page, this.gridFreeList.getLong(8));
+        this.bucketStore.markDirty(baddr);
+        this.bucketStore.release(page);
+        putGridFreeList(8, baddr);
+        putGridFreeList(0, this.gridFreeList.getLong(0) + 1);
+    }
+
+    /*
+        Returns number of buckets on the free list
+     */
+    public long getFreeBuckets() {
+        return this.gridFreeList.getLong(0);
+    }
+
+    /*
+        Divides entries of paired buckets into individual buckets
+     */
+    public void splitBucket(int vertical, long slon, long slat, long dlon, long dlat) {
+        splitBucket(vertical, slon, slat, dlon, dlat, allocateBucket());
+    }
+
+    /*
+        Divides entries of paired buckets into individual buckets, moving entries beyond the split
+        to the bucket at given reserved address
+        Every page of a chained bucket is split, the new bucket chaining pages of its own as it fills
+        and emptied overflow pages being freed
+     */
+    public void splitBucket(int vertical, long slon, long slat, long dlon, long dlat, long naddr) {
+        long sge;
+        long dge;
+        ByteBuffer sb;
+        ByteBuffer db = null;
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
+        long avgx;
+        long avgy;
+        long iter = 0;
+        int cbe;
+        long ssx;
+        long ssy;
+        long dsx = 0;
+        long dsy = 0;
+
+        if (slon > xint || slat > yint || dlon > xint || dlat > yint) {
+            throw new IllegalArgumentException("Invalid argument in splitBucket()");
+        }
+        if (this.metrics != null) {
+            this.metrics.bucketSplit();
+        }
+
+        sge = getGridEntry(slon, slat);
+        dge = getGridEntry(dlon, dlat);
+        long[] region = getBucketRegion(slon, slat);
+
+        putGridDirectory(dge * LONGBYTES, 0);
+        putGridDirectory((1 + dge) * LONGBYTES, 0);
+        putGridDirectory((2 + dge) * LONGBYTES, 0);
+        putGridDirectory((3 + dge) * LONGBYTES, 0);
+
+        putGridDirectory((4 + dge) * LONGBYTES, naddr);
+
+        long[] xy = getGridPartitions(dlon, dlat);
+        avgx = xy[0];
+        avgy = xy[1];
+
+        sb = mapGridBucketWrite(sge);
+        db = mapGridBucketWrite(dge);
+        formatBucket(db); // new bucket
+
+        ssx = this.gridDirectory.getLong((2 + sge) * LONGBYTES);
+        ssy = this.gridDirectory.getLong((3 + sge) * LONGBYTES);
+
+        // entries beyond the split line, partitions are below Long.MAX_VALUE
+        long mx = vertical == 1 ? avgx + 1 : Long.MIN_VALUE;
+        long my = vertical == 1 ? Long.MIN_VALUE : avgy + 1;
+
+        // pages of the source chain are split in turn, the new bucket chaining pages as it fills
+        ByteBuffer spage = sb;
+        ByteBuffer sprev = null; // page linking spage, null for sb
+        ByteBuffer dpage = db;
+        long saddr = this.gridDirectory.getLong((4 + sge) * LONGBYTES);
+        try {
+            while (spage != null) {
+                iter = 0;
+                while ((iter = BucketPage.nextInRange(spage, iter, mx, my, Long.MAX_VALUE, Long.MAX_VALUE)) >= 0) {
+                    cbe = getBucketEntry(spage, iter);
+
+                    long bx = BucketPage.getX(spage, cbe);
+                    long by = BucketPage.getY(spage, cbe);
+
+                    dpage = appendChainEntry(db, dpage, bx, by, BucketPage.getRecord(spage, cbe),
+                            BucketPage.isBlob(spage, cbe));
+
+                    ssx -= bx;
+                    ssy -= by;
+                    dsx += bx;
+                    dsy += by;
+
+                    deleteBucketEntry(spage, iter);
+                    if (!BucketPage.shiftsOnDelete(spage)) {
+                        iter++;
+                    }
+                }
+
+                long next = BucketPage.overflow(spage);
+                if (sprev != null && BucketPage.recordCount(spage) == 0) { // emptied overflow page leaves the chain
+                    BucketPage.setOverflow(sprev, next);
+                    unmapGridBucket(spage);
+                    freeBucket(saddr);
+                } else {
+                    if (sprev != sb) {
+                        unmapGridBucket(sprev);
+                    }
+                    sprev = spage;
+                }
+                saddr = next;
+                spage = next < 0 ? null : mapBucketPageWrite(next);
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: splitBucket()");
+        }
+
+        if (sprev != sb) {
+            unmapGridBucket(sprev);
+        }
+        if (spage != sb && spage != sprev) {
+            unmapGridBucket(spage);
+        }
+        if (dpage != db) {
+            unmapGridBucket(dpage);
+        }
+        unmapGridBucket(sb);
+        unmapGridBucket(db);
+
+        long[] usage = getChainUsage(sge);
+        putGridDirectory(sge * LONGBYTES, usage[0]);
+        putGridDirectory((1 + sge) * LONGBYTES, usage[1]);
+        putGridDirectory((2 + sge) * LONGBYTES, ssx);
+        putGridDirectory((3 + sge) * LONGBYTES, ssy);
+
+        usage = getChainUsage(dge);
+        putGridDirectory(dge * LONGBYTES, usage[0]);
+        putGridDirectory((1 + dge) * LONGBYTES, usage[1]);
+        putGridDirectory((2 + dge) * LONGBYTES, dsx);
+        putGridDirectory((3 + dge) * LONGBYTES, dsy);
+
+        // entries of the old bucket beyond the split line move to the new bucket, whichever side of
+        // the source they are on, so buckets shared by rows and columns alike are split whole
+        for (long xiter = region[0]; xiter <= region[2]; xiter++) {
+            for (long yiter = region[1]; yiter <= region[3]; yiter++) {
+                long ge = getGridEntry(xiter, yiter);
+                boolean moved = vertical == 1 ? xiter >= dlon : yiter >= dlat;
+
+                if (ge != sge && ge != dge) {
+                    copyGridEntry(moved ? dge : sge, ge);
+                }
+            }
+        }
+    }
+
+    /*
+        Checks if entries share buckets
+     */
+    public boolean checkPairedBucket(long slon, long slat, long dlon, long dlat) {
+        long ge;
+        long pge;
+
+        ge = getGridEntry(slon, slat);
+        pge = getGridEntry(dlon, dlat);
+
+        return this.gridDirectory.getLong((4 + ge) * LONGBYTES) ==
+                this.gridDirectory.getLong((4 + pge) * LONGBYTES);
+    }
+
+    /*
+        Checks if paired bucket for given bucket exists
+        Returns boolean array [isPaired, vertical, forward]
+     */
+    public boolean[] hasPairedBucket(int direction, long lon, long lat) {
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+        boolean[] ret = new boolean[3];
+
+        if (direction <= 0) {
+            if (lon > 0) {
+                if (checkPairedBucket(lon, lat, lon - 1, lat)) {
+                    ret[0] = true;
+                    ret[1] = true;
+                    return ret;
+                }
+            }
+            if (lat > 0) {
+                if (checkPairedBucket(lon, lat, lon, lat - 1)) {
+                    ret[0] = true;
+                    return ret;
+                }
+            }
+        }
+
+        if (direction >= 0) {
+            ret[2] = true;
+            if (lon < xint) {
+                if (checkPairedBucket(lon, lat, lon + 1, lat)) {
+                    ret[0] = true;
+                    ret[1] = true;
+                    return ret;
+                }
+            }
+            if (lat < yint) {
+                if (checkPairedBucket( lon, lat, lon, lat + 1)) {
+                    ret[0] = true;
+                    return ret;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /*
+        Sets codec used by the Object based record methods, Java serialization by default
+     */
+    public void setRecordCodec(RecordCodec<Object> codec) {
+        this.recordCodec = codec;
+    }
+
+    /*
+        Inserts new record in the grid, stored as encoded by the record codec
+        Record size is taken from the encoded record
+     */
+    public void insertRecord(long x, long y, Object record) {
+        insertRecord(x, y, record, this.recordCodec);
+    }
+
+    /*
+        Inserts new record in the grid, stored as encoded by the record codec
+        Given record size is ignored, use insertRecord(x, y, record) instead
+     */
+    @Deprecated
+    public void insertRecord(long x, long y, Object record, long rsize) {
+        insertRecord(x, y, record, this.recordCodec);
+    }
+
+    /*
+        Inserts new record in the grid, encoded with given codec
+        Records encoding to more than a page are encoded again into larger buffers, not kept
+     */
+    public <T> void insertRecord(long x, long y, T record, RecordCodec<T> codec) {
+        ByteBuffer payload = this.recordBuffer.get();
+        if (payload == null) {
+            payload = ByteBuffer.allocateDirect((int) this.pageSize);
+            this.recordBuffer.set(payload);
+        }
+
+        while (true) {
+            payload.clear();
+            try {
+                codec.encode(record, payload);
+                break;
+            } catch (java.nio.BufferOverflowException e) {
+                if (payload.capacity() > Integer.MAX_VALUE / 2) {
+                    throw new IllegalArgumentException("Invalid argument in insertRecord()");
+                }
+                payload = ByteBuffer.allocate(2 * payload.capacity());
+            }
+        }
+        payload.flip();
+
+        insertRecord(x, y, payload);
+    }
+
+    /*
+        Inserts new record holding remaining bytes of payload in the grid
+        Records above the blob threshold are written to the blob file first, the bucket entry
+        holding a reference to them, while the write-ahead log keeps the record itself
+     */
+    public void insertRecord(long x, long y, ByteBuffer payload) {
+        long lon;
+        long lat;
+        long ge; // was pointer
+
+        long start = this.metrics != null ? System.nanoTime() : 0;
+        boolean blob = isBlobRecord(payload.remaining());
+        ByteBuffer entry = blob ? writeBlob(payload) : payload;
+        long rsize = entry.remaining();
+
+        long nsplits = 0;
+        while (true) {
+            long stamp = lockGridRead();
+            try {
+                lon = locateLongitude(x);
+                lat = locateLatitude(y);
+
+                ge = getGridEntry(lon, lat);
+
+                long baddr = lockBucket(ge, true);
+                try {
+                    if (hasBucketRoom(ge, rsize)) {
+                        insertGridRecord(ge, x, y, entry, blob);
+                        updatePairedBuckets(0, lon, lat, baddr);
+                        if (this.gridLog != null) {
+                            this.gridLog.logInsert(x, y, payload);
+                        }
+                        break;
+                    }
+                } finally {
+                    unlockBucket(baddr, true);
+                }
+            } finally {
+                unlockGridRead(stamp);
+            }
+
+            if (isThreadSafe()) {
+                makeRoom(x, y, rsize);
+            } else {
+                splitFullBucket(lon, lat, x, y);
+            }
+            nsplits++;
+        }
+
+        checkpointIfFull();
+
+        if (this.metrics != null) {
+            if (nsplits > 0) {
+                this.metrics.recordSplitCascade(nsplits);
+            }
+            this.metrics.recordOperation(GridMetrics.INSERT, start);
+        }
+    }
 
-            if (vertical == 0) {
-                sum = this.gridDirectory.getLong((ge + 3) * LONGBYTES);
-                average = (sum + y) / (nrecords + 1);
+    /*
+        Makes room in the full bucket of given grid entry, splitting the bucket if shared
+        with neighbouring entries, else chaining an overflow page to it or splitting the grid
+        around given coordinates as shouldChainBucket() decides
+     */
+    public void splitFullBucket(long lon, long lat, long x, long y) {
+        boolean temp[] = hasPairedBucket(0, lon, lat);
+
+        if (temp[0]) {
+            splitPairedBucket(lon, lat, temp[1], temp[2], allocateBucket());
+        } else if (shouldChainBucket(lon, lat, x, y)) {
+            chainBucket(getGridEntry(lon, lat));
+        } else {
+            splitGridAt(lon, lat, x, y);
+        }
+    }
 
-                insertGridPartition(vertical, average);
+    /*
+        Sets number of overflow pages a bucket may chain before the grid is split once its scale
+        is exhausted, 0 never chains buckets that a grid split can divide
+     */
+    public void setMaxChainLength(int maxChain) {
+        if (maxChain < 0) {
+            throw new IllegalArgumentException("Invalid argument in setMaxChainLength()");
+        }
 
-                for (xiter = 0; xiter <= xint; xiter++) {
-                    for (yiter = yint + 1; yiter > lat; yiter--) {
-                        cge = getGridEntry(xiter, yiter);
-                        pge = getGridEntry(xiter, yiter - 1);
+        this.maxChain = maxChain;
+    }
+
+    public int getMaxChainLength() {
+        return this.maxChain;
+    }
+
+    /*
+        Decides whether the full bucket of given grid entry, not shared with neighbouring entries,
+        takes an overflow page rather than a grid split around given coordinates
+
+        An overflow page costs a page read on every lookup of the bucket, a grid split costs a row
+        of the directory and one of the partitions left on the scale, of which there are fewer as
+        the grid grows. Buckets whose records all share one location are never divided by a split
+        and always chain. Other buckets chain up to maxChain pages times the share of the largest
+        scale used on the axis splitGridAt() would split, so chains grow as partitions run out,
+        and without bound once the axis is full.
+     */
+    private boolean shouldChainBucket(long lon, long lat, long x, long y) {
+        ByteBuffer gb = mapGridBucket(getGridEntry(lon, lat));
+        int version = BucketPage.version(gb);
+        long length = 0;
+        for (gb = mapOverflowBucket(gb); gb != null; gb = mapOverflowBucket(gb)) {
+            length++;
+        }
+        if (version == BucketPage.LEGACY) {
+            return false; // upgraded by a split once there is room
+        }
+
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+        int split = xint == yint ? 1 : 0;
+        if (isUniform(getGridEntryValues(split, lon, lat, x, y))) {
+            if (isUniform(getGridEntryValues(1 - split, lon, lat, x, y))) {
+                return true; // hot spot, no partition separates its records
+            }
+            split = 1 - split; // as splitGridAt() does
+        }
+
+        long used = split == 1 ? xint : yint;
+        long limit = Math.max(this.gridSize, this.maxGridSize) - 1;
+        return used >= limit || length < this.maxChain * used / limit;
+    }
+
+    private static boolean isUniform(long[] values) {
+        for (int iter = 1; iter < values.length; iter++) {
+            if (values[iter] != values[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+        Makes room in the full bucket of given grid entry with an overflow page
+     */
+    private void chainBucket(long gentry) {
+        ByteBuffer gb = mapGridBucketWrite(gentry);
+        try {
+            unmapGridBucket(chainBucketPage(gb));
+        } finally {
+            unmapGridBucket(gb);
+        }
+    }
+
+    /*
+        Splits bucket of given grid entry shared in given direction, into bucket at given reserved address
+     */
+    private void splitPairedBucket(long lon, long lat, boolean vertical, boolean forward, long naddr) {
+        if (vertical) {
+            if (forward) {
+                splitBucket(1, lon, lat, lon + 1, lat, naddr);
+            } else {
+                splitBucket(1, lon - 1, lat, lon, lat, naddr);
+            }
+        } else {
+            if (forward) {
+                splitBucket(0, lon, lat, lon, lat + 1, naddr);
+            } else {
+                splitBucket(0, lon, lat - 1, lon, lat, naddr);
+            }
+        }
+    }
+
+    /*
+        Splits grid through given grid entry, alternating longitudes and latitudes unless the
+        records of the entry all share their coordinate in the chosen direction
+     */
+    private void splitGridAt(long lon, long lat, long x, long y) {
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+        int split = xint == yint ? 1 : 0;
+
+        if (isUniform(getGridEntryValues(split, lon, lat, x, y))) {
+            split = 1 - split; // records share the coordinate, no partition separates them in this direction
+        }
+
+        splitGrid(split, lon, lat, x, y);
+    }
+
+    /*
+        Makes room for a record of given size at given coordinates in thread-safe mode
+
+        A shared bucket is split holding the grid against splits and the locks of both the full bucket
+        and the bucket reserved for the split, taken without waiting for the second so that two splits
+        never wait on each other. Only splitting the grid takes the grid exclusively. The full bucket
+        is checked again under each lock, another thread may have made room meanwhile.
+     */
+    private void makeRoom(long x, long y, long rsize) {
+        long naddr = -1;
+
+        while (true) {
+            boolean paired = true;
+            long stamp = lockGridRead();
+            try {
+                long lon = locateLongitude(x);
+                long lat = locateLatitude(y);
+                long ge = getGridEntry(lon, lat);
+                long baddr = lockBucket(ge, true);
+                try {
+                    if (hasBucketRoom(ge, rsize)) {
+                        if (naddr >= 0) {
+                            freeBucket(naddr); // reserved for a split another thread made
+                        }
+                        return;
+                    }
+
+                    boolean temp[] = hasPairedBucket(0, lon, lat);
+                    paired = temp[0];
+                    if (paired) {
+                        if (naddr < 0) {
+                            naddr = allocateBucket();
+                        }
 
-                        byte[] temp = new byte[40];
-                        this.gridDirectory.position(pge * LONGBYTES);
-                        this.gridDirectory.get(temp, 0, 40);
-                        this.gridDirectory.position(cge * LONGBYTES);
-                        this.gridDirectory.put(temp, 0, 40); // memcpy
+                        ReentrantReadWriteLock nlock = this.bucketLocks.get(naddr);
+                        if (nlock.writeLock().tryLock()) {
+                            try {
+                                splitPairedBucket(lon, lat, temp[1], temp[2], naddr);
+                            } finally {
+                                nlock.writeLock().unlock();
+                            }
+                            return;
+                        }
                     }
+                } finally {
+                    unlockBucket(baddr, true);
                 }
-            } else {
-                sum = this.gridDirectory.getLong((ge + 2) * LONGBYTES);
-                average = (sum + x) / (nrecords + 1);
+            } finally {
+                unlockGridRead(stamp);
+            }
 
-                insertGridPartition(vertical, average);
+            if (!paired) {
+                stamp = lockGridWrite();
+                try {
+                    long lon = locateLongitude(x);
+                    long lat = locateLatitude(y);
+                    long ge = getGridEntry(lon, lat);
+
+                    if (!hasBucketRoom(ge, rsize) && !hasPairedBucket(0, lon, lat)[0]) {
+                        if (shouldChainBucket(lon, lat, x, y)) {
+                            chainBucket(ge);
+                        } else {
+                            splitGridAt(lon, lat, x, y);
+                        }
+                    }
+                    if (naddr >= 0) {
+                        freeBucket(naddr);
+                    }
+                } finally {
+                    unlockGridWrite(stamp);
+                }
+                return;
+            }
 
-                for (yiter = 0; yiter <= yint; yiter++) {
-                    for (xiter = xint + 1; xiter > lon; xiter--) {
-                        cge = getGridEntry(xiter, yiter);
-                        pge = getGridEntry(xiter - 1, yiter);
+            Thread.yield(); // stripe of reserved bucket is busy, retry
+        }
+    }
+
+    /*
+        Inserts records holding remaining bytes of payloads in the grid
+        Records are grouped by bucket so each bucket is mapped and its grid entries updated once,
+        records left over by full buckets are inserted again after one split per full bucket
+     */
+    public void insertBatch(long[] xs, long[] ys, ByteBuffer[] payloads) {
+        int count = xs.length;
+        if (ys.length != count || payloads.length != count) {
+            throw new IllegalArgumentException("Invalid argument in insertBatch()");
+        }
+
+        ByteBuffer[] entries = payloads.clone(); // payloads or references to the blobs holding them
+        boolean[] blobs = new boolean[count];
+        for (int iter = 0; iter < count; iter++) {
+            if (isBlobRecord(payloads[iter].remaining())) {
+                entries[iter] = writeBlob(payloads[iter]);
+                blobs[iter] = true;
+            }
+        }
+
+        int[] order = new int[count];
+        for (int iter = 0; iter < count; iter++) {
+            order[iter] = iter;
+        }
+
+        while (count > 0) {
+            long[] keys = new long[count];
+            int nleft = 0;
+            int[] left = new int[count];
+            long[] full = new long[count]; // first leftover of each full bucket, split once each
+            int nfull = 0;
+
+            long stamp = lockGridRead();
+            try {
+                for (int iter = 0; iter < count; iter++) {
+                    int index = order[iter];
+                    long ge = getGridEntry(locateLongitude(xs[index]), locateLatitude(ys[index]));
+                    long baddr = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+                    keys[iter] = (baddr << 32) | index; // sorts by bucket, then by batch order
+                }
+                Arrays.sort(keys);
+
+                int first = 0;
+                while (first < count) {
+                    long baddr = keys[first] >>> 32;
+                    int last = first;
+                    while (last < count && keys[last] >>> 32 == baddr) {
+                        last++;
+                    }
+
+                    int index = (int) (keys[first] & 0xFFFFFFFFL);
+                    long lon = locateLongitude(xs[index]);
+                    long lat = locateLatitude(ys[index]);
+                    long ge = getGridEntry(lon, lat);
+                    int nfit = 0;
+
+                    long lbaddr = lockBucket(ge, true);
+                    try {
+                        if (!isThreadSafe() || isGroupInBucket(keys, first, last, xs, ys, lbaddr)) {
+                            nfit = insertGridRecords(ge, keys, first, last, xs, ys, entries, blobs);
+                            if (nfit < last - first) {
+                                full[nfull++] = keys[first + nfit] & 0xFFFFFFFFL;
+                            }
+                        }
+                        if (nfit > 0) {
+                            updatePairedBuckets(0, lon, lat, lbaddr);
+                        }
+                        for (int iter = first; iter < first + nfit && this.gridLog != null; iter++) {
+                            index = (int) (keys[iter] & 0xFFFFFFFFL);
+                            this.gridLog.logInsert(xs[index], ys[index], payloads[index]);
+                        }
+                    } finally {
+                        unlockBucket(lbaddr, true);
+                    }
 
-                        byte[] temp = new byte[40];
-                        this.gridDirectory.position(pge * LONGBYTES);
-                        this.gridDirectory.get(temp, 0, 40);
-                        this.gridDirectory.position(cge * LONGBYTES);
-                        this.gridDirectory.put(temp, 0, 40); // memcpy
+                    for (int iter = first + nfit; iter < last; iter++) { // bucket full or split meanwhile
+                        left[nleft++] = (int) (keys[iter] & 0xFFFFFFFFL);
                     }
+
+                    first = last;
                 }
+            } finally {
+                unlockGridRead(stamp);
             }
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: splitGrid()");
+
+            for (int iter = 0; iter < nfull; iter++) {
+                int index = (int) full[iter];
+                long rsize = entries[index].remaining();
+
+                if (isThreadSafe()) {
+                    makeRoom(xs[index], ys[index], rsize);
+                    continue;
+                }
+
+                long lon = locateLongitude(xs[index]);
+                long lat = locateLatitude(ys[index]);
+
+                if (!hasBucketRoom(getGridEntry(lon, lat), rsize)) {
+                    splitFullBucket(lon, lat, xs[index], ys[index]);
+                }
+            }
+
+            order = left;
+            count = nleft;
         }
+
+        checkpointIfFull();
     }
 
     /*
-        Updates destination entry from soure entry if sharing buckets
+        Checks if records of batch positions [first, last) of keys all still go to the bucket at
+        given address, a concurrent split may have moved some of them elsewhere
      */
-    public void updateBucket(int direction, long slon, long slat, long dlon, long dlat, long baddr) {
-        boolean compare;
-        long ge = 0; // was pointer
-        long pge = 0; // was pointer
+    private boolean isGroupInBucket(long[] keys, int first, int last, long[] xs, long[] ys, long baddr) {
+        for (int iter = first; iter < last; iter++) {
+            int index = (int) (keys[iter] & 0xFFFFFFFFL);
+            long ge = getGridEntry(locateLongitude(xs[index]), locateLatitude(ys[index]));
 
-        ge = getGridEntry(slon, slat);
-        pge = getGridEntry(dlon, dlat);
+            if (this.gridDirectory.getLong((4 + ge) * LONGBYTES) != baddr) {
+                return false;
+            }
+        }
 
-        byte[] geTemp = new byte[40];
-        byte[] pgeTemp = new byte[40];
+        return true;
+    }
 
+    /*
+        Appends entries of batch positions [first, last) of keys to the bucket of given grid entry,
+        updating bucket and grid entry statistics once, entries flagged in blobs referencing a blob
+        Returns number of records appended, records are appended in order until one does not fit
+     */
+    private int insertGridRecords(long gentry, long[] keys, int first, int last,
+                                  long[] xs, long[] ys, ByteBuffer[] entries, boolean[] blobs) {
+        ByteBuffer gbucket = null;
+        int nfit = 0;
         try {
-            this.gridDirectory.position(ge * LONGBYTES);
-            this.gridDirectory.get(geTemp, 0, 40);
-            this.gridDirectory.position(pge * LONGBYTES);
-            this.gridDirectory.get(pgeTemp, 0, 40);
-            compare = geTemp.equals(pgeTemp);
+            long nbytes = this.gridDirectory.getLong(gentry * LONGBYTES);
+            long nrecords = this.gridDirectory.getLong((1 + gentry) * LONGBYTES);
+            long sx = this.gridDirectory.getLong((2 + gentry) * LONGBYTES);
+            long sy = this.gridDirectory.getLong((3 + gentry) * LONGBYTES);
 
-            if (!compare && baddr == this.gridDirectory.getLong((4 + pge) * LONGBYTES)) {
-                this.gridDirectory.position(pge * LONGBYTES);
-                this.gridDirectory.put(geTemp, 0, 40);
-                updatePairedBuckets(direction, dlon, dlat, baddr);
+            for (int iter = first; iter < last; iter++) {
+                int index = (int) (keys[iter] & 0xFFFFFFFFL);
+                long rsize = entries[index].remaining();
+                if (gbucket == null || !BucketPage.fits(this.pageSize, BucketPage.usedBytes(gbucket), rsize)) {
+                    unmapGridBucket(gbucket);
+                    gbucket = mapBucketRoomWrite(gentry, rsize); // next page of the chain with room
+                    if (gbucket == null) {
+                        break;
+                    }
+                }
+
+                long used = BucketPage.usedBytes(gbucket);
+                appendBucketEntry(gbucket, xs[index], ys[index], entries[index], blobs[index]);
+                nbytes += BucketPage.usedBytes(gbucket) - used;
+                sx += xs[index];
+                sy += ys[index];
+                nfit++;
             }
+
+            putGridDirectory((2 + gentry) * LONGBYTES, sx);
+            putGridDirectory((3 + gentry) * LONGBYTES, sy);
+            putGridDirectory((1 + gentry) * LONGBYTES, nrecords + nfit);
+            putGridDirectory(gentry * LONGBYTES, nbytes);
         } catch (Exception e) {
             //e.printStackTrace();
-            System.out.println("Error: updateBucket()");
+            System.out.println("Error: insertGridRecords()");
         }
+
+        unmapGridBucket(gbucket);
+        return nfit;
     }
 
     /*
-        Updates paired buckets in given direction with statistics and address
+        Returns record for given coordinates, decoded by the record codec
      */
-    public void updatePairedBuckets(int direction, long lon, long lat, long baddr)
-    {
-        int error = 0;
-        long xint;
-        long yint;
+    public Object findRecord(long x, long y) {
+        ByteBuffer record = findRecordSlice(x, y);
+        if (record == null) {
+            throw new IllegalArgumentException("Invalid argument in findRecord()");
+        }
 
-        try {
-            xint = this.gridScale.getLong(1 * LONGBYTES);
-            yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error: updatePairedBuckets()");
+        return this.recordCodec.decode(record);
+    }
+
+    /*
+        Returns record for given coordinates decoded with given codec, or null if there is none
+     */
+    public <T> T findRecord(long x, long y, RecordCodec<T> codec) {
+        ByteBuffer record = findRecordSlice(x, y);
+        if (record == null) {
+            return null;
         }
 
-        if (direction >= 0) {
-            if (lon < xint) {
-                updateBucket(direction, lon, lat, lon + 1, lat, baddr);
-            }
-            if (lat < yint) {
-                updateBucket(direction, lon, lat, lon, lat + 1, baddr);
+        return codec.decode(record);
+    }
+
+    /*
+        Copies record for given coordinates into dst if it has room for it
+        Returns record size, or -1 if there is no record for given coordinates
+     */
+    public int findRecord(long x, long y, ByteBuffer dst) {
+        int rsize = -1;
+        long start = this.metrics != null ? System.nanoTime() : 0;
+
+        long stamp = lockGridRead();
+        try {
+            long ge = getGridEntry(locateLongitude(x), locateLatitude(y));
+            long baddr = lockBucket(ge, false);
+            try {
+                for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+                    long slot = findBucketSlot(gb, x, y);
+                    if (slot < 0) {
+                        continue;
+                    }
+
+                    int be = getBucketEntry(gb, slot);
+                    boolean blob = BucketPage.isBlob(gb, be);
+                    ByteBuffer reference = blob ? BucketPage.getRecord(gb, be) : null;
+                    rsize = (int) (blob ? BlobStore.length(reference) : BucketPage.getSize(gb, be));
+
+                    if (rsize <= dst.remaining()) {
+                        if (blob) {
+                            this.blobStore.read(BlobStore.position(reference), rsize, dst);
+                        } else {
+                            BucketPage.copyRecord(gb, be, dst);
+                        }
+                        if (this.metrics != null) {
+                            this.metrics.bytesCopied(rsize);
+                        }
+                    }
+                    unmapGridBucket(gb);
+                    break;
+                }
+            } finally {
+                unlockBucket(baddr, false);
             }
+        } finally {
+            unlockGridRead(stamp);
         }
 
-        if (direction <= 0) {
-            if (lon > 0) {
-                updateBucket(direction, lon, lat, lon - 1, lat, baddr);
-            }
-            if (lat > 0) {
-                updateBucket(direction, lon, lat, lon, lat - 1, baddr);
+        if (this.metrics != null) {
+            this.metrics.recordOperation(GridMetrics.FIND, start);
+        }
+        return rsize;
+    }
+
+    /*
+        Returns read-only view of record for given coordinates in its mapped bucket, or null if there is none
+        View is valid until the record is moved or deleted and never after unloadGrid() unmaps the
+        bucket, in thread-safe mode or with the bucket cache a copy is returned instead
+     */
+    public ByteBuffer findRecordSlice(long x, long y) {
+        ByteBuffer record = null;
+        long start = this.metrics != null ? System.nanoTime() : 0;
+
+        long stamp = lockGridRead();
+        try {
+            long ge = getGridEntry(locateLongitude(x), locateLatitude(y));
+            long baddr = lockBucket(ge, false);
+            try {
+                for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+                    long slot = findBucketSlot(gb, x, y);
+                    if (slot < 0) {
+                        continue;
+                    }
+
+                    int be = getBucketEntry(gb, slot);
+                    record = getBucketRecord(gb, be);
+                    if (!BucketPage.isBlob(gb, be) && (isThreadSafe() || hasBucketCache())) {
+                        ByteBuffer copy = ByteBuffer.allocate(record.remaining());
+                        copy.put(record); // memcpy
+                        copy.flip();
+                        record = copy;
+                        if (this.metrics != null) {
+                            this.metrics.bytesCopied(copy.remaining());
+                        }
+                    }
+                    record = record.asReadOnlyBuffer();
+                    unmapGridBucket(gb);
+                    break;
+                }
+            } finally {
+                unlockBucket(baddr, false);
             }
+        } finally {
+            unlockGridRead(stamp);
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordOperation(GridMetrics.FIND, start);
         }
+        return record;
     }
 
     /*
-        Divides entries of paired buckets into individual buckets
+        Returns slot of first entry with given coordinates in mapped grid bucket, or -1 if there is none
      */
-    public void splitBucket(int vertical, long slon, long slat, long dlon, long dlat) {
-        long sge;
-        long dge;
-        MappedByteBuffer sb;
-        MappedByteBuffer db;
-        long xint = this.gridScale.getLong(1 * LONGBYTES);
-        long yint = this.gridScale.getLong((1 + this.gridSize) * LONGBYTES);
-        long avgx;
-        long avgy;
-        long iter = 0;
-        long cbe;
-        long ssx;
-        long ssy;
-        long dsx;
-        long dsy;
-        long sn;
-        long dn;
-        long sbytes;
-        long dbytes;
+    public long findBucketSlot(ByteBuffer gbucket, long x, long y) {
+        return BucketPage.nextInRange(gbucket, 0, x, y, x, y);
+    }
 
-        if (slon > xint || slat > yint || dlon > xint || dlat > yint) {
-            throw new IllegalArgumentException("Invalid argument in splitBucket()");
+    /*
+        Deletes record for given coordinates, merging its bucket with a neighbouring bucket
+        once both fit together within the merge fill
+     */
+    public void deleteRecord(long x, long y) {
+        boolean merge = false;
+        long start = this.metrics != null ? System.nanoTime() : 0;
+
+        long stamp = lockGridRead();
+        try {
+            long lon = locateLongitude(x);
+            long lat = locateLatitude(y);
+            long ge = getGridEntry(lon, lat);
+            long baddr = lockBucket(ge, true);
+            try {
+                deleteGridRecord(x, y);
+                if (this.gridLog != null) {
+                    this.gridLog.logDelete(x, y);
+                }
+            } finally {
+                unlockBucket(baddr, true);
+            }
+
+            merge = findMergeBucket(lon, lat) != null;
+        } finally {
+            unlockGridRead(stamp);
         }
 
-        sge = getGridEntry(slon, slat);
-        dge = getGridEntry(dlon, dlat);
+        if (merge) {
+            mergeGridBuckets(x, y);
+        }
 
-        this.gridDirectory.putLong(dge * LONGBYTES, 0);
-        this.gridDirectory.putLong((1 + dge) * LONGBYTES, 0);
-        this.gridDirectory.putLong((2 + dge) * LONGBYTES, 0);
-        this.gridDirectory.putLong((3 + dge) * LONGBYTES, 0);
+        checkpointIfFull();
 
-        long temp = this.gridDirectory.getLong(0);
-        this.gridDirectory.putLong((4 + dge) * LONGBYTES, temp);
-        this.gridDirectory.putLong(0, temp + 1);
+        if (this.metrics != null) {
+            this.metrics.recordOperation(GridMetrics.DELETE, start);
+        }
+    }
 
-        long[] xy = getGridPartitions(dlon, dlat);
-        avgx = xy[0];
-        avgy = xy[1];
+    /*
+        Sets fill factor, bytes used over page size, that two neighbouring buckets must fit in together
+        to be merged when records are deleted, 0 never merges buckets
+     */
+    public void setMergeFill(double mergeFill) {
+        if (!(mergeFill >= 0 && mergeFill < 1)) {
+            throw new IllegalArgumentException("Invalid argument in setMergeFill()");
+        }
+
+        this.mergeFill = mergeFill;
+    }
 
-        sb = mapGridBucket(sge);
+    /*
+        Merges bucket holding given coordinates with a neighbouring bucket if they fit together,
+        then removes partitions no longer separating buckets
+     */
+    private void mergeGridBuckets(long x, long y) {
+        long stamp = lockGridWrite();
         try {
-            db = mapGridBucket(dge);
-        } catch (Exception e) {
-            unmapGridBucket(sge); // ????????????????????????????????
+            long lon = locateLongitude(x);
+            long lat = locateLatitude(y);
+            long[] sibling = findMergeBucket(lon, lat); // checked again, the grid was unlocked
+
+            if (sibling != null) {
+                long[] region = mergeBuckets(lon, lat, sibling[0], sibling[1]);
+                removeGridPartitions(region);
+            }
+        } finally {
+            unlockGridWrite(stamp);
         }
+    }
 
-        sbytes = this.gridDirectory.getLong(sge * LONGBYTES);
-        sn = this.gridDirectory.getLong((1 + sge) * LONGBYTES);
-        ssx = this.gridDirectory.getLong((2 + sge) * LONGBYTES);
-        ssy = this.gridDirectory.getLong((3 + sge) * LONGBYTES);
+    /*
+        Finds bucket sharing a whole side of the rectangle of grid entries of the bucket of given
+        grid entry, both buckets fitting together within the merge fill
+        Returns grid entry [longitude, latitude] of that bucket, or null
+     */
+    private long[] findMergeBucket(long lon, long lat) {
+        long limit = (long) ((this.pageSize - BucketPage.HEADER_BYTES) * this.mergeFill);
+        long ge = getGridEntry(lon, lat);
+        long nbytes = this.gridDirectory.getLong(ge * LONGBYTES);
+
+        if (nbytes > limit) {
+            return null; // common case, bucket still well filled
+        }
 
-        dbytes = this.gridDirectory.getLong(dge * LONGBYTES);
-        dn = this.gridDirectory.getLong((1 + dge) * LONGBYTES);
-        dsx = this.gridDirectory.getLong((2 + dge) * LONGBYTES);
-        dsy = this.gridDirectory.getLong((3 + dge) * LONGBYTES);
+        long xint = this.gridScale.getLong(1 * LONGBYTES);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+        long[] region = getBucketRegion(lon, lat);
+        long[][] candidates = {
+                {region[0] - 1, region[1]}, {region[2] + 1, region[1]},
+                {region[0], region[1] - 1}, {region[0], region[3] + 1}};
+
+        for (int iter = 0; iter < candidates.length; iter++) {
+            long clon = candidates[iter][0];
+            long clat = candidates[iter][1];
+            if (clon < 0 || clon > xint || clat < 0 || clat > yint) {
+                continue;
+            }
+
+            long[] cregion = getBucketRegion(clon, clat);
+            boolean side = iter < 2 ? cregion[1] == region[1] && cregion[3] == region[3] :
+                    cregion[0] == region[0] && cregion[2] == region[2];
+            long cbytes = this.gridDirectory.getLong(getGridEntry(clon, clat) * LONGBYTES);
+
+            if (side && nbytes + cbytes <= limit) {
+                return candidates[iter];
+            }
+        }
+
+        return null;
+    }
+
+    /*
+        Moves records of the bucket of one grid entry into the bucket of another, buckets sharing a
+        whole side, keeping the bucket of lower address for the joined rectangle and freeing the other with its overflow pages
+        Returns joined rectangle [first longitude, first latitude, last longitude, last latitude]
+     */
+    public long[] mergeBuckets(long lon, long lat, long mlon, long mlat) {
+        if (this.metrics != null) {
+            this.metrics.bucketMerge();
+        }
+        long[] region = getBucketRegion(lon, lat);
+        long[] mregion = getBucketRegion(mlon, mlat);
+        long ge = getGridEntry(lon, lat);
+        long mge = getGridEntry(mlon, mlat);
+
+        if (this.gridDirectory.getLong((4 + ge) * LONGBYTES) >
+                this.gridDirectory.getLong((4 + mge) * LONGBYTES)) {
+            long temp = ge;
+            ge = mge;
+            mge = temp;
+        }
 
+        long fbaddr = this.gridDirectory.getLong((4 + mge) * LONGBYTES);
+        long sx = this.gridDirectory.getLong((2 + ge) * LONGBYTES) +
+                this.gridDirectory.getLong((2 + mge) * LONGBYTES);
+        long sy = this.gridDirectory.getLong((3 + ge) * LONGBYTES) +
+                this.gridDirectory.getLong((3 + mge) * LONGBYTES);
+
+        List<Long> freed = new ArrayList<Long>(); // pages of the freed chain
+        ByteBuffer kb = mapGridBucketWrite(ge);
+        ByteBuffer kpage = kb;
+        ByteBuffer fb = mapGridBucket(mge);
         try {
-            if (vertical == 1) {
-                while (iter < sn) {
-                    cbe = getBucketEntry(sb, iter);
-
-                    if (sb.getLong(cbe * LONGBYTES) > avgx) {
-                        long zero = this.gridDirectory.getLong(cbe * LONGBYTES);
-                        long one = this.gridDirectory.getLong((1 + cbe) * LONGBYTES);
-                        long two = this.gridDirectory.getLong((2 + cbe) * LONGBYTES);
-                        appendBucketEntry(db, zero, one, two, cbe + 3); // how to pass in a record?
-
-                        sbytes -= (24 + two);
-                        dbytes += (24 + two);
-                        sn -= 1;
-                        dn += 1;
-                        ssx -= zero;
-                        ssy -= one;
-                        dsx += zero;
-                        dsy += one;
-
-                        deleteBucketEntry(sb, iter);
-                    } else {
-                        iter++;
+            freed.add(fbaddr);
+            for (; fb != null; fb = mapOverflowBucket(fb)) {
+                long nslots = BucketPage.slotCount(fb);
+                for (long iter = 0; iter < nslots; iter++) {
+                    int be = getBucketEntry(fb, iter);
+                    if (be != BucketPage.TOMBSTONE) {
+                        kpage = appendChainEntry(kb, kpage, BucketPage.getX(fb, be), BucketPage.getY(fb, be),
+                                BucketPage.getRecord(fb, be), BucketPage.isBlob(fb, be));
                     }
                 }
-            } else {
-                while (iter < sn) {
-                    cbe = getBucketEntry(sb, iter);
-
-                    if (sb.getLong((1 + cbe) * LONGBYTES) > avgy) {
-                        long zero = this.gridDirectory.getLong(cbe * LONGBYTES);
-                        long one = this.gridDirectory.getLong((1 + cbe) * LONGBYTES);
-                        long two = this.gridDirectory.getLong((2 + cbe) * LONGBYTES);
-                        appendBucketEntry(db, zero, one, two, cbe + 3); // how to pass in a record?
-
-                        sbytes -= (24 + two);
-                        dbytes += (24 + two);
-                        sn -= 1;
-                        dn += 1;
-                        ssx -= zero;
-                        ssy -= one;
-                        dsx += zero;
-                        dsy += one;
-
-                        deleteBucketEntry(sb, iter);
-                    } else {
-                        iter++;
-                    }
+                if (BucketPage.overflow(fb) >= 0) {
+                    freed.add(BucketPage.overflow(fb));
                 }
             }
         } catch (Exception e) {
-            unmapGridBucket(sb);
-            unmapGridBucket(db);
-            System.out.println("Error: splitBucket(), Unmapped sb and db");
+            //e.printStackTrace();
+            System.out.println("Error: mergeBuckets()");
         }
 
-        this.gridDirectory.putLong(sge * LONGBYTES, sbytes);
-        this.gridDirectory.putLong((1 + sge) * LONGBYTES, sn);
-        this.gridDirectory.putLong((2 + sge) * LONGBYTES, ssx);
-        this.gridDirectory.putLong((3 + sge) * LONGBYTES, ssy);
-
-        this.gridDirectory.putLong(dge * LONGBYTES, dbytes);
-        this.gridDirectory.putLong((1 + dge) * LONGBYTES, dn);
-        this.gridDirectory.putLong((2 + dge) * LONGBYTES, dsx);
-        this.gridDirectory.putLong((3 + dge) * LONGBYTES, dsy);
+        if (kpage != kb) {
+            unmapGridBucket(kpage);
+        }
+        unmapGridBucket(kb);
+        unmapGridBucket(fb);
+        for (long baddr : freed) {
+            freeBucket(baddr);
+        }
 
-        try {
-            long four = this.gridDirectory.getLong((4 + sge) * LONGBYTES);
-            updatePairedBuckets(1, dlon, dlat, four);
-            updatePairedBuckets(0, slon, slat, four);
-        } catch (Exception e) {
-            unmapGridBucket(sb);
-            unmapGridBucket(db);
-            System.out.println("Error: splitBucket(), Unmapped sb and db");
+        long[] usage = getChainUsage(ge);
+        putGridDirectory(ge * LONGBYTES, usage[0]);
+        putGridDirectory((1 + ge) * LONGBYTES, usage[1]);
+        putGridDirectory((2 + ge) * LONGBYTES, sx);
+        putGridDirectory((3 + ge) * LONGBYTES, sy);
+
+        long[] joined = {Math.min(region[0], mregion[0]), Math.min(region[1], mregion[1]),
+                Math.max(region[2], mregion[2]), Math.max(region[3], mregion[3])};
+        for (long xiter = joined[0]; xiter <= joined[2]; xiter++) {
+            for (long yiter = joined[1]; yiter <= joined[3]; yiter++) {
+                long cge = getGridEntry(xiter, yiter);
+                if (cge != ge) {
+                    copyGridEntry(ge, cge);
+                }
+            }
         }
+
+        return joined;
     }
 
     /*
-        Checks if entries share buckets
+        Removes partitions inside given rectangle of grid entries whose grid entries on both sides
+        share buckets all along the partition, the reverse of splitGrid()
      */
-    public boolean checkPairedBucket(long slon, long slat, long dlon, long dlat) {
-        long ge;
-        long pge;
-
-        ge = getGridEntry(slon, slat);
-        pge = getGridEntry(dlon, dlat);
+    public void removeGridPartitions(long[] region) {
+        for (long xiter = region[2]; xiter > region[0]; xiter--) {
+            if (isGridPartitionUnused(1, xiter)) {
+                deleteGridPartition(1, xiter);
+            }
+        }
 
-        if (this.gridDirectory.getLong((4 + ge) * LONGBYTES) ==
-                this.gridDirectory.getLong(4 + pge) * LONGBYTES) {
-            return true;
+        for (long yiter = region[3]; yiter > region[1]; yiter--) {
+            if (isGridPartitionUnused(0, yiter)) {
+                deleteGridPartition(0, yiter);
+            }
         }
     }
 
     /*
-        Checks if paired bucket for given bucket exists
-        Returns boolean array [isPaired, vertical, forward]
+        Checks if grid entries before and after partition at given longitude or latitude,
+        separating index - 1 and index, share buckets all along the partition
      */
-    public boolean[] hasPairedBucket(int direction, long lon, long lat) {
+    private boolean isGridPartitionUnused(int lon, long index) {
         long xint = this.gridScale.getLong(1 * LONGBYTES);
         long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
-        boolean[] ret = new boolean[3];
+        long count = lon == 1 ? yint : xint;
 
-        if (direction <= 0) {
-            if (lon > 0) {
-                if (checkPairedBucket(lon, lat, lon - 1, lat)) {
-                    ret[0] = true;
-                    ret[1] = true;
-                    return ret;
-                }
-            }
-            if (lat > 0) {
-                if (checkPairedBucket(lon, lat, lon, lat - 1)) {
-                    ret[0] = true;
-                    return ret;
-                }
+        for (long iter = 0; iter <= count; iter++) {
+            boolean paired = lon == 1 ? checkPairedBucket(index - 1, iter, index, iter) :
+                    checkPairedBucket(iter, index - 1, iter, index);
+            if (!paired) {
+                return false;
             }
         }
 
-        if (direction >= 0) {
-            ret[2] = true;
-            if (lon < xint) {
-                if (checkPairedBucket(lon, lat, lon + 1, lat)) {
-                    ret[0] = true;
-                    ret[1] = true;
-                    return ret;
-                }
-            }
-            if (lat < yint) {
-                if (checkPairedBucket( lon, lat, lon, lat + 1)) {
-                    ret[0] = true;
-                    return ret;
-                }
-            }
-        }
+        return true;
     }
 
     /*
-        Inserts new record in the grid
+        Deletes partition separating grid entries index - 1 and index at given longitude or latitude,
+        grid entries beyond it move back by one
      */
-    public void insertRecord(long x, long y, Object record, long rsize) {
-        long ge; // was pointer
-        long nbytes;
-        long nrecords;
-        long capacity;
-        long esize = 24 + rsize;
-        boolean isPaired;
-        boolean vertical;
-        boolean forward;
-        int split;
+    public void deleteGridPartition(int lon, long index) {
         long xint = this.gridScale.getLong(1 * LONGBYTES);
-        long yint = this.gridScale((1 + gridSize) * LONGBYTES);
-        split = xint == yint != 0 ? 1 : 0;
-
-        long[] lonlat = getGridLocation(x, y);
-
-        ge = getGridEntry(lonlat[0], lonlat[1]);
+        long yint = this.gridScale.getLong((1 + gridSize) * LONGBYTES);
+        long ints = lon == 1 ? xint : yint;
+        long inta = lon == 1 ? 1 : 1 + this.gridSize; // used as offset
 
-        nbytes = this.gridDirectory.getLong(ge * LONGBYTES);
-        nrecords = this.gridDirectory.getLong((1 + ge) * LONGBYTES);
-        capacity = this.pageSize - 16 - nbytes;
+        if (index < 1 || index > ints) {
+            throw new IllegalArgumentException("Invalid argument in deleteGridPartition()");
+        }
 
-        if (esize <= capacity) {
-            insertGridRecord(ge, x, y, record, rsize);
-            updatePairedBuckets(0, lon, lat, ge[4]);
+        if (lon == 1) {
+            for (long xiter = index; xiter < xint; xiter++) {
+                for (long yiter = 0; yiter <= yint; yiter++) {
+                    copyGridEntry(getGridEntry(xiter + 1, yiter), getGridEntry(xiter, yiter)); // memcpy
+                }
+            }
         } else {
-            boolean temp[] = hasPairedBucket(0, isPaired, vertical, forward, lon, lat);
-            isPaired = temp[0];
-            vertical = temp[1];
-            forward = temp[2];
-
-            if (isPaired) {
-                if (vertical) {
-                    if (forward) {
-                        splitBucket(vertical, lon, lat, lon + 1, lat);
-                    } else {
-                        splitBucket(vertical, lon - 1, lat, lon, lat);
-                    }
-                }else {
-                    if (forward != 0) {
-                        splitBucket(vertical, lon, lat, lon, lat + 1);
-                    } else {
-                        splitBucket(vertical, lon, lat - 1, lon, lat);
-                    }
+            for (long xiter = 0; xiter <= xint; xiter++) {
+                for (long yiter = index; yiter < yint; yiter++) {
+                    copyGridEntry(getGridEntry(xiter, yiter + 1), getGridEntry(xiter, yiter)); // memcpy
                 }
-            } else {
-                splitGrid(split, lon, lat, x, y);
             }
+        }
 
-            insertRecord(x, y, record, rsize);
+        // partition index - 1 of the scale separates grid entries index - 1 and index
+        for (long iter = index - 1; iter < ints - 1; iter++) {
+            putGridScale((inta + 1 + iter) * LONGBYTES,
+                    this.gridScale.getLong((inta + 2 + iter) * LONGBYTES));
         }
+        putGridScale(inta * LONGBYTES, ints - 1);
+
+        this.scaleIndex.invalidate();
     }
 
     /*
-        Returns record for given coordinates
+        Deletes record for given coordinates, the grid and its bucket must be locked in thread-safe mode
      */
-    public Object findRecord(long x, long y) {
+    private void deleteGridRecord(long x, long y) {
         int found = 0;
         long lon;
         long lat;
         long ge;
-        MappedByteBuffer gb = 0;
-        long nrecords;
-        long iter = 0;
-        long be;
-        long bex;
-        long bey;
-        long rsize;
+        long sx;
+        long sy;
+        long baddr;
+        ByteBuffer gb;
+        ByteBuffer prev = null; // page linking gb, null for the bucket page
+        long slot;
 
-        long[] lonlat = getGridLocation(x, y);
-        lon = lonlat[0];
-        lat = lonlat[1];
+        lon = locateLongitude(x);
+        lat = locateLatitude(y);
 
         try {
             ge = getGridEntry(lon, lat);
-            gb = mapGridBucket(ge);
+
+            sx = this.gridDirectory.getLong((2 + ge) * LONGBYTES);
+            sy = this.gridDirectory.getLong((3 + ge) * LONGBYTES);
+
+            baddr = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+            gb = mapBucketPage(baddr);
         } catch (Exception e) {
-            //e.printStackTrace();
-            throw new IllegalArgumentException("Invalid argument in findRecord()");
+            throw new IllegalArgumentException("Invalid argument in deleteRecord()");
         }
 
+        long paddr = -1;
         try {
-            nrecords = gb.getLong(1 * LONGBYTES);
-
-            for (iter = 0; iter < nrecords; iter++) {
-                be = getBucketEntry(gb, iter);
+            while (gb != null) {
+                slot = findBucketSlot(gb, x, y);
 
-                bex = gb.getLong(be * LONGBYTES);
-                bey = gb.getLong((1 + be) * LONGBYTES);
-                rsize = gb.getLong((2 + be) * LONGBYTES);
-
-                byte[] record = new byte[rsize];
-
-                if (bex == x && bey == y) {
+                if (slot >= 0) {
                     found = 1;
-                    gb.position((be + 3) * LONGBYTES);
-                    gb.get(record, 0, rsize);
+                    long nbytes = this.gridDirectory.getLong(ge * LONGBYTES);
+                    long nrecords = this.gridDirectory.getLong((1 + ge) * LONGBYTES);
+                    long used = BucketPage.usedBytes(gb);
+
+                    touchBucketPage(baddr);
+                    freeBlob(gb, getBucketEntry(gb, slot));
+                    deleteBucketEntry(gb, slot);
+                    putGridDirectory(ge * LONGBYTES, nbytes - used + BucketPage.usedBytes(gb));
+                    putGridDirectory((1 + ge) * LONGBYTES, nrecords - 1);
+                    putGridDirectory((2 + ge) * LONGBYTES, sx - x);
+                    putGridDirectory((3 + ge) * LONGBYTES, sy - y);
+
+                    if (prev != null && BucketPage.recordCount(gb) == 0) { // empty overflow page leaves the chain
+                        touchBucketPage(paddr);
+                        BucketPage.setOverflow(prev, BucketPage.overflow(gb));
+                        unmapGridBucket(gb);
+                        gb = null;
+                        freeBucket(baddr);
+                    }
                     break;
                 }
+
+                unmapGridBucket(prev);
+                prev = gb;
+                paddr = baddr;
+                baddr = BucketPage.overflow(gb);
+                gb = baddr < 0 ? null : mapBucketPage(baddr);
             }
         } catch (Exception e) {
-            //e.printStackTrace();
-            unmapGridBucket(gb);
-            System.out.println("Error: findRecord()");
+            System.out.println("Error: deleteRecord()");
         }
 
+        if (found != 0) {
+            long temp = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
+            updatePairedBuckets(0, lon, lat, temp);
+        }
+        unmapGridBucket(prev);
         unmapGridBucket(gb);
+
         if (found == 0) {
-            throw new IllegalArgumentException("Invalid argument in findRecord()");
+            throw new IllegalArgumentException("Invalid argument in deleteRecord()");
         }
-
-        ByteArrayInputStream in = new ByteArrayInputStream(record);
-        ObjectInputStream is = new ObjectInputStream(in);
-        return is.readObject();
     }
 
     /*
-        Deletes record for given coordinates
+        Loads records into an empty grid, see bulkLoad(Path)
+        Records are first spooled to a file, see createSpoolFile(), so the iterator is read once
      */
-    public void deleteRecord(long x, long y) {
-        int found = 0;
-        long lon;
-        long lat;
-        long ge;
-        long sx;
-        long sy;
-        MappedByteBuffer gb;
-        long nrecords;
-        long iter = 0;
-        long be;
-        long bex;
-        long bey;
-        long rsize;
-
-        long[] lonlat = getGridLocation(x, y);
-        lon = lonlat[0];
-        lat = lonlat[1];
+    public void bulkLoad(Iterator<Record> records) {
+        File spool = null;
+        long nr = 0;
 
         try {
-            ge = getGridEntry(lon, lat);
+            spool = createSpoolFile("load");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool), 1 << 20));
+            out.writeLong(0);
+            while (records.hasNext()) {
+                Record record = records.next();
+                ByteBuffer payload = record.getPayload();
+
+                out.writeLong(record.getX());
+                out.writeLong(record.getY());
+                out.writeLong(payload.remaining());
+                if (payload.hasArray()) {
+                    out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                } else {
+                    while (payload.hasRemaining()) {
+                        out.write(payload.get());
+                    }
+                }
+                nr += 1;
+            }
+            out.close();
 
-            sx = this.gridDirectory.getLong((2 + ge) * LONGBYTES);
-            sy = this.gridDirectory.getLong((3 + ge) * LONGBYTES);
+            RandomAccessFile spoolRAF = new RandomAccessFile(spool, "rw");
+            spoolRAF.writeLong(nr);
+            spoolRAF.close();
 
-            gb = mapGridBucket(ge);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Invalid argument in deleteRecord()");
+            bulkLoad(spool.toPath());
+        } catch (java.io.IOException e) {
+            //e.printStackTrace();
+            System.out.println("Error: bulkLoad()");
+        } finally {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    /*
+        Creates file for records spooled by a bulk load, next to the grid files, or in the temporary
+        directory for a grid held in memory
+     */
+    private File createSpoolFile(String suffix) throws java.io.IOException {
+        if (this.inMemory) {
+            return Files.createTempFile("grid", suffix).toFile();
+        }
+        return new File(this.gridName + suffix);
+    }
+
+    /*
+        Loads records into an empty grid from a file laid out as findRangeRecords() returns them,
+        number of records followed by x, y, record size and record of each record
+
+        A first pass samples coordinates to pick partitions so that buckets are filled to about
+        BULK_FILL, and writes the grid scale once. A second pass appends each record straight into
+        the bucket of its cell and keeps directory statistics, no record is located twice and no
+        bucket is split. Records landing in a full bucket are inserted with insertRecord() afterwards.
+        With the write-ahead log enabled the load is not logged, a crash before it completes leaves
+        a grid to be created and loaded again.
+     */
+    public void bulkLoad(Path path) {
+        long[] xsample = new long[BULK_SAMPLE];
+        long[] ysample = new long[BULK_SAMPLE];
+        File overflow = null;
+        long noverflow = 0;
+
+        if (this.gridDirectory.getLong(0) != 1 || this.gridScale.getLong(1 * LONGBYTES) != 0 ||
+                this.gridScale.getLong((1 + this.gridSize) * LONGBYTES) != 0 ||
+                this.gridDirectory.getLong((1 + getGridEntry(0, 0)) * LONGBYTES) != 0) {
+            throw new IllegalStateException("Grid is not empty in bulkLoad()");
         }
 
-        nrecords = gb[1];
+        GridLog log = this.gridLog; // bulk loads are not logged, the loaded grid is checkpointed instead
+        this.gridLog = null;
 
+        long stamp = lockGridWrite();
+        boolean locked = true;
         try {
-            for (iter = 0; iter < nrecords; iter++) {
-                be = getBucketEntry(gb, iter);
+            // first pass, sample coordinates and size the grid
+            long[] totals = sampleRecords(path, xsample, ysample);
+            long nsampled = Math.min(totals[0], BULK_SAMPLE);
+            long capacity = (long) ((this.pageSize - BucketPage.HEADER_BYTES) * BULK_FILL);
+            long nbuckets = (totals[1] + capacity - 1) / Math.max(1, capacity);
+            long nparts = Math.min((long) Math.ceil(Math.sqrt(nbuckets)) - 1, (this.maxGridSize - 1) / 2);
+            if (nparts > (this.gridSize - 1) / 2) {
+                resizeGrid(Math.min(Math.max(2 * this.gridSize, 2 * nparts + 1), this.maxGridSize));
+            }
 
-                bex = gb.getLong(be * LONGBYTES);
-                bey = gb.getLong((1 + be) * LONGBYTES);
-                rsize = gb.getLong((2 + be) * LONGBYTES);
+            long xint = writeBulkPartitions(1, xsample, (int) nsampled, nparts);
+            long yint = writeBulkPartitions(1 + this.gridSize, ysample, (int) nsampled, nparts);
+            this.scaleIndex.invalidate();
 
-                if (bex == x && bey == y) {
-                    found = 1;
-                    deleteBucketEntry(gb, iter);
-                    long temp = this.gridDirectory.getLong(ge * LONGBYTES);
-                    this.gridDirectory.putLong(ge * LONGBYTES, temp - (24 + rsize));
-                    temp = this.gridDirectory.getLong((1 + ge) * LONGBYTES);
-                    this.gridDirectory.putLong((1 + ge) * LONGBYTES, temp - 1);
-                    temp = this.gridDirectory.getLong((2 + ge) * LONGBYTES);
-                    this.gridDirectory.putLong((2 + ge) * LONGBYTES, sx - bex);
-                    temp = this.gridDirectory.getLong((3 + ge) * LONGBYTES);
-                    this.gridDirectory.putLong((3 + ge) * LONGBYTES, sy - bey);
-                    break;
+            for (long xiter = 0; xiter <= xint; xiter++) { // one bucket per grid entry, in row-major order
+                for (long yiter = 0; yiter <= yint; yiter++) {
+                    long ge = getGridEntry(xiter, yiter);
+                    long baddr = xiter * (yint + 1) + yiter;
+
+                    putGridDirectory((4 + ge) * LONGBYTES, baddr);
+                    ByteBuffer gb = mapGridBucketWrite(ge);
+                    formatBucket(gb);
+                    unmapGridBucket(gb);
                 }
             }
-        } catch (Exception e) {
-            System.out.println("Error: deleteRecord()");
-            unmapGridBucket(gb);
+            putGridDirectory(0, (xint + 1) * (yint + 1));
+            this.bucketStore.extend((xint + 1) * (yint + 1));
+
+            // second pass, fill buckets
+            overflow = createSpoolFile("overflow");
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 20));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(overflow), 1 << 20));
+            byte[] record = new byte[(int) this.pageSize];
+            long nr = in.readLong();
+
+            for (long iter = 0; iter < nr; iter++) {
+                long x = in.readLong();
+                long y = in.readLong();
+                int rsize = (int) in.readLong();
+                if (rsize > record.length) {
+                    record = new byte[rsize]; // record for the blob file
+                }
+                in.readFully(record, 0, rsize);
+
+                long ge = getGridEntry(locateLongitude(x), locateLatitude(y));
+                long nbytes = this.gridDirectory.getLong(ge * LONGBYTES);
+                boolean blob = isBlobRecord(rsize);
+
+                if (!BucketPage.fits(this.pageSize, nbytes, blob ? BlobStore.REFERENCE_BYTES : rsize)) {
+                    out.writeLong(x);
+                    out.writeLong(y);
+                    out.writeLong(rsize);
+                    out.write(record, 0, rsize);
+                    noverflow += 1;
+                    continue;
+                }
+
+                ByteBuffer entry = ByteBuffer.wrap(record, 0, rsize);
+                ByteBuffer gb = mapGridBucketWrite(ge);
+                appendBucketEntry(gb, x, y, blob ? writeBlob(entry) : entry, blob);
+
+                putGridDirectory(ge * LONGBYTES, BucketPage.usedBytes(gb));
+                putGridDirectory((1 + ge) * LONGBYTES, BucketPage.recordCount(gb));
+                putGridDirectory((2 + ge) * LONGBYTES, this.gridDirectory.getLong((2 + ge) * LONGBYTES) + x);
+                putGridDirectory((3 + ge) * LONGBYTES, this.gridDirectory.getLong((3 + ge) * LONGBYTES) + y);
+                unmapGridBucket(gb);
+            }
+            in.close();
+            out.close();
+
+            unlockGridWrite(stamp);
+            locked = false;
+
+            // records of overfull cells go through the regular insert path
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(overflow), 1 << 20));
+            for (long iter = 0; iter < noverflow; iter++) {
+                long x = in.readLong();
+                long y = in.readLong();
+                int rsize = (int) in.readLong();
+                if (rsize > record.length) {
+                    record = new byte[rsize];
+                }
+                in.readFully(record, 0, rsize);
+
+                insertRecord(x, y, ByteBuffer.wrap(record, 0, rsize));
+            }
+            in.close();
+        } catch (java.io.IOException e) {
+            //e.printStackTrace();
+            System.out.println("Error: bulkLoad()");
+        } finally {
+            if (locked) {
+                unlockGridWrite(stamp);
+            }
+            if (overflow != null) {
+                overflow.delete();
+            }
+            this.gridLog = log;
         }
 
-        if (found != 0) {
-            long temp = this.gridDirectory.getLong((4 + ge) * LONGBYTES);
-            updatePairedBuckets(0, lon, lat, temp);
+        if (log != null) {
+            checkpoint();
         }
-        unmapGridBucket(gb);
+    }
 
-        if (found == 0) {
-            throw new IllegalArgumentException("Invalid argument in deleteRecord()");
+    /*
+        Reservoir samples coordinates of records in file
+        Returns number of records and bytes they take in buckets
+     */
+    private long[] sampleRecords(Path path, long[] xsample, long[] ysample) throws java.io.IOException {
+        Random random = new Random(this.gridSize);
+        long[] totals = new long[2];
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 20));
+        long nr = in.readLong();
+
+        for (long iter = 0; iter < nr; iter++) {
+            long x = in.readLong();
+            long y = in.readLong();
+            long rsize = in.readLong();
+            in.skipBytes((int) rsize);
+
+            long slot = iter < xsample.length ? iter : (long) (random.nextDouble() * (iter + 1));
+            if (slot < xsample.length) {
+                xsample[(int) slot] = x;
+                ysample[(int) slot] = y;
+            }
+
+            totals[1] += BucketPage.entryBytes(isBlobRecord(rsize) ? BlobStore.REFERENCE_BYTES : rsize);
+        }
+        in.close();
+
+        totals[0] = nr;
+        return totals;
+    }
+
+    /*
+        Writes up to nparts partitions at quantiles of sampled coordinates, at given scale position
+        Returns number of partitions written
+     */
+    private long writeBulkPartitions(long position, long[] sample, int nsampled, long nparts) {
+        long[] sorted = Arrays.copyOf(sample, nsampled);
+        Arrays.sort(sorted);
+        long count = 0;
+
+        for (long iter = 1; iter <= nparts; iter++) {
+            long partition = sorted[(int) (iter * nsampled / (nparts + 1))];
+            long last = count == 0 ? Long.MIN_VALUE : this.gridScale.getLong((position + count) * LONGBYTES);
+
+            if (partition > last && partition < sorted[nsampled - 1]) { // partitions must increase and leave records above them
+                putGridScale((position + 1 + count) * LONGBYTES, partition);
+                count++;
+            }
+        }
+
+        putGridScale(position * LONGBYTES, count);
+        return count;
+    }
+
+    /*
+        Checks if grid entry shares its bucket with the entry before it in a range starting at (lon1, lat1),
+        the backward check of hasPairedBucket() limited to the range, so each bucket is visited once
+     */
+    public boolean isPairedInRange(long lon, long lat, long lon1, long lat1) {
+        return (lon > lon1 && checkPairedBucket(lon, lat, lon - 1, lat)) ||
+                (lat > lat1 && checkPairedBucket(lon, lat, lon, lat - 1));
+    }
+
+    /*
+        Returns cursor over records within specified coordinate range, buckets are visited lazily
+        In thread-safe mode the cursor copies records and fails if the grid is split while it is used,
+        otherwise records are views of mapped buckets, valid as those of findRecordSlice()
+     */
+    public RangeCursor findRangeCursor(long x1, long y1, long x2, long y2) {
+        return new RangeCursor(this, x1, y1, x2, y2);
+    }
+
+    /*
+        Returns stream of records within specified coordinate range, records of findRangeCursor()
+     */
+    public Stream<Record> findRangeStream(long x1, long y1, long x2, long y2) {
+        return StreamSupport.stream(findRangeCursor(x1, y1, x2, y2), false);
+    }
+
+    /*
+        Sets number of threads scanning buckets in parallel range queries
+     */
+    public void setRangeParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid argument in setRangeParallelism()");
+        }
+
+        if (this.rangePool != null) {
+            this.rangePool.shutdown();
+        }
+        this.rangePool = new ForkJoinPool(parallelism);
+    }
+
+    /*
+        Retrieves records within specified coordinate range, scanning buckets in parallel
+        Records of findRangeCursor() keep its order if ordered, otherwise they are merged as scanned
+     */
+    public List<Record> findRangeRecordsParallel(long x1, long y1, long x2, long y2, final boolean ordered) {
+        if (this.rangePool == null) {
+            setRangeParallelism(Runtime.getRuntime().availableProcessors());
+        }
+
+        long start = this.metrics != null ? System.nanoTime() : 0;
+        long stamp = lockGridRead(); // bounded scan, holds off grid splits rather than failing on them
+        final RangeCursor cursor = findRangeCursor(x1, y1, x2, y2);
+        try {
+            List<Record> found = this.rangePool.submit(new Callable<List<Record>>() {
+                public List<Record> call() {
+                    Stream<Record> records = StreamSupport.stream(cursor, true);
+                    if (!ordered) {
+                        records = records.unordered();
+                    }
+                    return records.collect(Collectors.toList());
+                }
+            }).get();
+
+            if (this.metrics != null) {
+                this.metrics.recordOperation(GridMetrics.RANGE, start);
+            }
+            return found;
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: findRangeRecordsParallel()");
+            throw new IllegalStateException("Range scan failed in findRangeRecordsParallel()");
+        } finally {
+            unlockGridRead(stamp);
         }
     }
 
     /*
-        Retrieves record within specified coordinate range
+        Retrieves records within specified coordinate range, up to dsize bytes of them or all if dsize is 0
+        Returns number of records followed by x, y, record size and record of each record, records past
+        dsize bytes are left out
+        Throws IllegalStateException if all records of a range are asked for and do not fit one array,
+        such ranges are read with findRangeCursor()
      */
     public byte[] findRangeRecords(long x1, long y1, long x2, long y2, long dsize) {
-        long lon1;
-        long lat1;
-        long lon2;
-        long lat2;
-        long iter = 0;
-        long xiter = 0;
-        long yiter = 0;
-        long ge;
-        MappedByteBuffer gb;
-        long be;
-        long nrecords;
-        long nr;
-        long bx;
-        long by;
-        long bs;
-        long rsize;
-        long rrecords = 8;
-        boolean isPaired;
-        boolean vertical;
-        boolean forward;
-        byte[] records;
-
-        long[] lonlat1 = getGridLocation(x1, y1);
-        lon1 = lonlat1[0];
-        lat1 = lonlat1[1];
-        long[] lonlat2 = getGridLocation(x2, y2);
-        lon2 = lonlat2[0];
-        lat2 = lonlat2[1];
-
-        //save
-        rsize = (lon2 - lon1 + 1) * (lat2 - lat1 + 1) * this.pageSize;
-        records = new byte[rsize];
+        if (dsize < 0) {
+            throw new IllegalArgumentException("Invalid argument in findRangeRecords()");
+        }
 
+        long limit = dsize > 0 ? Math.min(dsize, MAX_RANGE_BYTES) : MAX_RANGE_BYTES;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(out);
+        long nr = 0;
+        long start = this.metrics != null ? System.nanoTime() : 0;
+
+        long stamp = lockGridRead();
         try {
-            for (xiter = lon1; xiter <= lon2; xiter++) {
-                for (yiter = lat1; yiter <= lat2; yiter++) {
-                    ge = getGridEntry(xiter, yiter);
-                    boolean[] temp = hasPairedBucket(-1, isPaired, vertical, forward, xiter, yiter);
-                    isPaired = temp[0];
-                    vertical = temp[1];
-                    forward = temp[2];
-
-                    if (isPaired != 0 && !((xiter == lon1 && vertical != 0) || (yiter == lat1 && vertical == 0))) {
-                        continue;
+            records.writeLong(0);
+
+            RangeCursor cursor = findRangeCursor(x1, y1, x2, y2);
+            while (cursor.hasNext()) {
+                Record record = cursor.next();
+                ByteBuffer payload = record.getPayload();
+                if (out.size() + 3 * LONGBYTES + payload.remaining() > limit) {
+                    if (dsize > 0) {
+                        break; // records past dsize bytes are left out
                     }
+                    throw new IllegalStateException("Range too large for findRangeRecords(), use findRangeCursor()");
+                }
+
+                records.writeLong(record.getX());
+                records.writeLong(record.getY());
+                records.writeLong(payload.remaining());
+                if (payload.hasArray()) {
+                    records.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                } else {
+                    while (payload.hasRemaining()) {
+                        records.write(payload.get());
+                    }
+                }
+                nr += 1;
+            }
+
+            if (this.metrics != null) {
+                this.metrics.recordRangeBuckets(cursor.getBucketsRead());
+                this.metrics.bytesCopied(out.size());
+            }
+        } catch (java.io.IOException e) {
+            //e.printStackTrace();
+            System.out.println("Error: findRangeRecords()");
+        } finally {
+            unlockGridRead(stamp);
+        }
+
+        byte[] result = out.toByteArray();
+        ByteBuffer.wrap(result).putLong(0, nr);
+        if (this.metrics != null) {
+            this.metrics.recordOperation(GridMetrics.RANGE, start);
+        }
+        return result;
+    }
+
+    /*
+        Retrieves k records nearest to given coordinates, nearest first
+
+        Rings of grid cells are visited outward from the cell of the coordinates. A cell is skipped
+        if its grid partitions put it farther away than the kth nearest record found so far, and
+        the walk stops once a whole ring is. Each bucket is scanned once however many cells share it.
+     */
+    public List<Record> findNearest(long x, long y, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Invalid argument in findNearest()");
+        }
+
+        NearestHeap heap = new NearestHeap(k);
+        BitSet scanned = new BitSet();
+
+        long stamp = lockGridRead();
+        try {
+            long[][] parts = this.scaleIndex.getPartitions(this.gridScale, this.gridSize);
+            int xint = parts[0].length;
+            int yint = parts[1].length;
+            int clon = (int) GridScaleIndex.locate(parts[0], x);
+            int clat = (int) GridScaleIndex.locate(parts[1], y);
+            int nrings = Math.max(Math.max(clon, xint - clon), Math.max(clat, yint - clat));
+
+            for (int ring = 0; ring <= nrings; ring++) {
+                if (getRingDistance(parts, x, y, clon, clat, ring) >= heap.bound()) {
+                    break; // every cell of this ring and beyond is farther than the kth nearest record
+                }
 
-                    gb = mapGridBucket(ge);
-                    nrecords = gb.getLong(1 * LONGBYTES);
+                for (int lon = Math.max(0, clon - ring); lon <= Math.min(xint, clon + ring); lon++) {
+                    int step = lon == clon - ring || lon == clon + ring ? 1 : 2 * ring; // inner columns only have ring ends
 
-                    for (iter = 0; iter < nrecords; iter++) {
-                        be = getBucketEntry(gb, iter);
-                        if (error < 0) {
-                            unmapGridBucket(gb);
+                    for (int lat = clat - ring; lat <= clat + ring; lat += step) {
+                        if (lat < 0 || lat > yint || getCellDistance(parts, x, y, lon, lat) >= heap.bound()) {
+                            continue;
                         }
 
-                        bx = this.gridDirectory.getLong(be * LONGBYTES);
-                        by = this.gridDirectory.getLong((1 + be) * LONGBYTES);
-                        bs = this.gridDirectory.getLong((2 + be) * LONGBYTES);
+                        scanNearestRecords(getGridEntry(lon, lat), x, y, heap, scanned);
+                    }
+                }
+            }
+        } finally {
+            unlockGridRead(stamp);
+        }
+
+        return heap.toList();
+    }
+
+    /*
+        Offers records of bucket of given grid entry to heap of nearest records, unless already scanned
+     */
+    private void scanNearestRecords(long ge, long x, long y, NearestHeap heap, BitSet scanned) {
+        long baddr = lockBucket(ge, false);
+        try {
+            if (scanned.get((int) baddr)) {
+                return;
+            }
+            scanned.set((int) baddr);
+
+            for (ByteBuffer gb = mapGridBucket(ge); gb != null; gb = mapOverflowBucket(gb)) {
+                long nslots = BucketPage.slotCount(gb);
+
+                for (long iter = 0; iter < nslots; iter++) {
+                    int be = BucketPage.entryOffset(gb, iter);
+                    if (be == BucketPage.TOMBSTONE) {
+                        continue;
+                    }
 
-                        if (bx >= x1 != 0 && bx <= x2 != 0 && by >= y1 != 0 && by <= y2) {
-                            nr += 1;
-                            this.gridDirectory.position(be);
-                            this.gridDirectory.get(records, rrecords, 24 + bs);
-                            rrecords += (24 + bs);
-                            dsize += (24 + bs);
+                    long bx = BucketPage.getX(gb, be);
+                    long by = BucketPage.getY(gb, be);
+                    double dx = (double) bx - x;
+                    double dy = (double) by - y;
+                    double distance = dx * dx + dy * dy;
+
+                    if (heap.accepts(distance)) { // views are only created for records kept
+                        ByteBuffer record = getBucketRecord(gb, be);
+                        if (!BucketPage.isBlob(gb, be) && (isThreadSafe() || hasBucketCache())) {
+                            ByteBuffer copy = ByteBuffer.allocate(record.remaining());
+                            copy.put(record); // memcpy
+                            copy.flip();
+                            record = copy;
                         }
+                        heap.add(distance, bx, by, record.asReadOnlyBuffer());
                     }
-                    unmapGridBucket(gb);
                 }
             }
-        } catch (Exception e) {
-            //e.printStackTrace();
-            System.out.println("Error; getRangeRecords()");
+        } finally {
+            unlockBucket(baddr, false);
+        }
+    }
+
+    /*
+        Returns squared distance from given coordinates to nearest coordinates of grid cell (lon, lat),
+        the cell holds x in (parts[lon - 1], parts[lon]] and y in (parts[lat - 1], parts[lat]]
+     */
+    private static double getCellDistance(long[][] parts, long x, long y, int lon, int lat) {
+        double dx = getAxisDistance(parts[0], x, lon);
+        double dy = getAxisDistance(parts[1], y, lat);
+        return dx * dx + dy * dy;
+    }
+
+    private static double getAxisDistance(long[] axis, long value, int cell) {
+        if (cell > 0 && value <= axis[cell - 1]) {
+            return (double) axis[cell - 1] + 1 - value;
+        }
+        if (cell < axis.length && value > axis[cell]) {
+            return (double) value - axis[cell];
+        }
+        return 0;
+    }
+
+    /*
+        Returns squared distance from given coordinates to nearest cell given number of rings away
+        from cell (clon, clat), a lower bound for every cell of that ring and beyond
+     */
+    private static double getRingDistance(long[][] parts, long x, long y, int clon, int clat, int ring) {
+        if (ring == 0) {
+            return 0;
         }
 
-        records.putLong(0, nr);
-        return records;
+        double distance = Math.min(getRingAxisDistance(parts[0], x, clon, ring),
+                getRingAxisDistance(parts[1], y, clat, ring));
+        return distance * distance;
+    }
+
+    private static double getRingAxisDistance(long[] axis, long value, int cell, int ring) {
+        double distance = Double.POSITIVE_INFINITY;
+        if (cell - ring >= 0) { // cells at or below cell - ring end at axis[cell - ring]
+            distance = Math.min(distance, (double) value - axis[cell - ring]);
+        }
+        if (cell + ring <= axis.length) { // cells at or above cell + ring start after axis[cell + ring - 1]
+            distance = Math.min(distance, (double) axis[cell + ring - 1] + 1 - value);
+        }
+        return distance;
     }
 }
@@ -0,0 +1,421 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/*
+    Append-only write-ahead log kept next to the grid files
+
+    Mapped files may be written back by the operating system at any time, so the log undoes
+    rather than holds back changes. The first time a chunk of the grid scale, directory or free
+    list, or a bucket, changes after a checkpoint, its before-image is appended to the log. Record
+    inserts and deletes are appended as logical redo records, which are forced in groups of a
+    configured size or age, so that many operations share one fsync, and always before the grid
+    files are forced, which is the only time the grid writes them to disk itself. A before-image is
+    forced before its chunk or cluster first changes, since the operating system may write back the
+    changed page at any time after, later changes to it take no lock and force nothing.
+
+    Recovery restores all before-images, which brings the grid back to the last checkpoint, then
+    replays the logical records that reached the disk. A checkpoint forces the mapped files and
+    truncates the log. Buckets allocated after the last checkpoint are unreachable once the
+    directory is restored, so no before-image is kept for them.
+
+    Before-images are taken in units of large chunks and clusters of neighbouring buckets, so one
+    image serves the many changes a checkpoint interval makes nearby.
+
+    Each log record is its body length, a type byte, the body and a CRC32 of all three, a torn record
+    at the tail ends the log.
+ */
+public class GridLog {
+    public static final int SCALE = 0;
+    public static final int DIRECTORY = 1;
+    public static final int BUCKETS = 2;
+    public static final int FREELIST = 3;
+
+    public static final int CHUNK_BYTES = 64 * 1024; // before-image unit of grid scale and directory
+    public static final int BUCKET_CLUSTER = 16; // before-image unit of buckets, in buckets
+    public static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    public static final int PENDING_BYTES = 1024 * 1024; // pending records written, not forced, beyond this
+
+    private static final byte IMAGE = 1;
+    private static final byte INSERT = 2;
+    private static final byte DELETE = 3;
+    private static final int FRAME_BYTES = 1 + 4 + 4;
+
+    private final String logName;
+    private final int groupSize;
+    private final long groupNanos;
+    private RandomAccessFile logFile;
+    private FileChannel logChannel;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16); // records not yet written
+    private int npending;
+    private long lastSync;
+    private long logBytes;
+    private long bucketLimit; // buckets from this address on were unused at the last checkpoint
+    private final CRC32 crc = new CRC32();
+    private final AtomicLongArray[] touched = new AtomicLongArray[4]; // units imaged since the last checkpoint
+
+    /*
+        Creates log forcing logical records once groupSize records are pending or the oldest pending
+        record is groupMillis old, whichever comes first
+     */
+    public GridLog(String logName, int groupSize, long groupMillis) {
+        if (groupSize < 1 || groupMillis < 0) {
+            throw new IllegalArgumentException("Invalid argument in GridLog()");
+        }
+
+        this.logName = logName;
+        this.groupSize = groupSize;
+        this.groupNanos = groupMillis * 1000000L;
+        for (int file = 0; file < this.touched.length; file++) {
+            this.touched[file] = new AtomicLongArray(64);
+        }
+    }
+
+    /*
+        Opens the log for appending after the last checkpoint
+     */
+    public void open(long bucketLimit) {
+        try {
+            this.logFile = new RandomAccessFile(this.logName, "rw");
+            this.logChannel = this.logFile.getChannel();
+            this.logChannel.truncate(0);
+            this.logBytes = 0;
+            this.bucketLimit = bucketLimit;
+            this.lastSync = System.nanoTime();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: open()");
+            throw new IllegalStateException("Unable to open log " + this.logName);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (this.logFile != null) {
+                sync();
+                this.logFile.close();
+            }
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: close()");
+        }
+
+        this.logFile = null;
+        this.logChannel = null;
+    }
+
+    /*
+        Checks if the log grew enough to be worth a checkpoint
+     */
+    public boolean isFull() {
+        return this.logBytes >= CHECKPOINT_BYTES;
+    }
+
+    /*
+        Logs before-image of chunk of the grid scale, directory or free list holding given byte offset,
+        unless it was logged since the last checkpoint
+     */
+    public void touch(int file, long offset, GridStorage source) {
+        long chunk = offset / CHUNK_BYTES;
+        if (isTouched(file, chunk)) {
+            return; // fast path, already imaged
+        }
+
+        synchronized (this) {
+            if (isTouched(file, chunk)) {
+                return;
+            }
+
+            long start = chunk * CHUNK_BYTES;
+            ByteBuffer image = ByteBuffer.allocate((int) Math.min(CHUNK_BYTES, source.size() - start));
+            source.get(start, image);
+            image.flip();
+            appendImage(file, chunk, image, 0, image.remaining());
+            sync(); // image durable before the chunk changes
+            setTouched(file, chunk);
+        }
+    }
+
+    /*
+        Logs before-images of the cluster of buckets holding given bucket address,
+        unless it was logged since the last checkpoint
+     */
+    public void touchBucket(long baddr, BucketStore store) {
+        long cluster = baddr / BUCKET_CLUSTER;
+        if (baddr >= this.bucketLimit || isTouched(BUCKETS, cluster)) {
+            return; // fast path, new or already imaged
+        }
+
+        synchronized (this) {
+            if (isTouched(BUCKETS, cluster)) {
+                return;
+            }
+
+            long last = Math.min((cluster + 1) * BUCKET_CLUSTER, this.bucketLimit);
+            for (long iter = cluster * BUCKET_CLUSTER; iter < last; iter++) {
+                ByteBuffer page = store.slice(iter);
+                appendImage(BUCKETS, iter, page, 0, page.capacity());
+                store.release(page);
+            }
+
+            sync(); // images durable before the cluster changes
+            setTouched(BUCKETS, cluster);
+        }
+    }
+
+    private boolean isTouched(int file, long unit) {
+        AtomicLongArray bits = this.touched[file];
+        return unit >> 6 < bits.length() && (bits.get((int) (unit >> 6)) & (1L << unit)) != 0;
+    }
+
+    private void setTouched(int file, long unit) {
+        AtomicLongArray bits = this.touched[file];
+        if (unit >> 6 >= bits.length()) {
+            AtomicLongArray grown = new AtomicLongArray((int) Math.max(2 * bits.length(), (unit >> 6) + 1));
+            for (int iter = 0; iter < bits.length(); iter++) {
+                grown.set(iter, bits.get(iter));
+            }
+            this.touched[file] = grown;
+            bits = grown;
+        }
+
+        int word = (int) (unit >> 6);
+        bits.set(word, bits.get(word) | (1L << unit));
+    }
+
+    /*
+        Appends before-image of given bytes of source, unit is a chunk number or bucket address
+     */
+    private void appendImage(int file, long unit, ByteBuffer source, int offset, int length) {
+        ByteBuffer image = source.duplicate();
+        image.limit(offset + length);
+        image.position(offset);
+
+        ByteBuffer body = begin(IMAGE, 4 + 8 + 4 + length);
+        body.putInt(file);
+        body.putLong(unit);
+        body.putInt(length);
+        body.put(image); // memcpy
+        end();
+
+        if (this.pending.position() >= PENDING_BYTES) { // keeps images of a group off the heap
+            try {
+                write();
+            } catch (Exception e) {
+                //e.printStackTrace();
+                System.out.println("Error: appendImage()");
+                throw new IllegalStateException("Unable to write log " + this.logName);
+            }
+        }
+    }
+
+    /*
+        Logs insert of record holding remaining bytes of payload
+     */
+    public synchronized void logInsert(long x, long y, ByteBuffer payload) {
+        ByteBuffer body = begin(INSERT, 8 + 8 + 4 + payload.remaining());
+        body.putLong(x);
+        body.putLong(y);
+        body.putInt(payload.remaining());
+        body.put(payload.duplicate()); // memcpy
+        end();
+        commitGroup();
+    }
+
+    /*
+        Logs delete of record at given coordinates
+     */
+    public synchronized void logDelete(long x, long y) {
+        ByteBuffer body = begin(DELETE, 8 + 8);
+        body.putLong(x);
+        body.putLong(y);
+        end();
+        commitGroup();
+    }
+
+    /*
+        Writes pending records and forces them to disk, must be called before the grid files are forced
+     */
+    public synchronized void sync() {
+        try {
+            write();
+            this.logChannel.force(false);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: sync()");
+            throw new IllegalStateException("Unable to write log " + this.logName);
+        }
+
+        this.npending = 0;
+        this.lastSync = System.nanoTime();
+    }
+
+    /*
+        Writes pending records to the log without forcing them
+     */
+    private void write() throws java.io.IOException {
+        this.pending.flip();
+        while (this.pending.hasRemaining()) {
+            this.logChannel.write(this.pending);
+        }
+        this.pending.clear();
+    }
+
+    /*
+        Empties the log once the grid files have been forced, starting a new checkpoint interval
+     */
+    public synchronized void checkpoint(long bucketLimit) {
+        try {
+            this.pending.clear();
+            this.npending = 0;
+            this.logChannel.truncate(0);
+            this.logChannel.position(0);
+            this.logChannel.force(true);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: checkpoint()");
+            throw new IllegalStateException("Unable to truncate log " + this.logName);
+        }
+
+        for (int file = 0; file < this.touched.length; file++) {
+            this.touched[file] = new AtomicLongArray(this.touched[file].length());
+        }
+        this.logBytes = 0;
+        this.bucketLimit = bucketLimit;
+    }
+
+    /*
+        Replays log in given file onto grid, restoring before-images first and then redoing inserts
+        and deletes, the grid must be loaded without a log
+        Returns number of redone records, or -1 if there is no log
+     */
+    public static long replay(String logName, GridFile grid) {
+        File file = new File(logName);
+        if (!file.exists() || file.length() == 0) {
+            return -1;
+        }
+
+        long nredone = 0;
+        try {
+            RandomAccessFile logFile = new RandomAccessFile(file, "r");
+            ByteBuffer log = logFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, logFile.length());
+            logFile.close();
+
+            for (int pass = 0; pass < 2; pass++) {
+                log.position(0);
+
+                while (true) {
+                    int start = log.position();
+                    ByteBuffer body = next(log);
+                    if (body == null) {
+                        break;
+                    }
+
+                    byte type = log.get(start + 4);
+                    if (pass == 0 && type == IMAGE) {
+                        int unitFile = body.getInt();
+                        long unit = body.getLong();
+                        int length = body.getInt();
+                        body.limit(body.position() + length);
+                        grid.restoreImage(unitFile, unit, body);
+                    } else if (pass == 1 && type == INSERT) {
+                        long x = body.getLong();
+                        long y = body.getLong();
+                        int length = body.getInt();
+                        body.limit(body.position() + length);
+                        grid.insertRecord(x, y, body.slice());
+                        nredone++;
+                    } else if (pass == 1 && type == DELETE) {
+                        grid.deleteRecord(body.getLong(), body.getLong());
+                        nredone++;
+                    }
+                }
+            }
+
+            BucketStore.unmap(log);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: replay()");
+            throw new IllegalStateException("Unable to replay log " + logName);
+        }
+
+        return nredone;
+    }
+
+    /*
+        Returns body of record at log position, moving past it, or null at the end of the log
+     */
+    private static ByteBuffer next(ByteBuffer log) {
+        int start = log.position();
+        if (log.remaining() < FRAME_BYTES) {
+            return null;
+        }
+
+        int length = log.getInt(start);
+        if (length < 0 || length > log.remaining() - FRAME_BYTES) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer frame = log.duplicate();
+        frame.limit(start + 4 + 1 + length);
+        frame.position(start);
+        crc.update(frame);
+        if ((int) crc.getValue() != log.getInt(start + 4 + 1 + length)) {
+            return null; // torn tail
+        }
+
+        ByteBuffer body = log.duplicate();
+        body.limit(start + 4 + 1 + length);
+        body.position(start + 4 + 1);
+        log.position(start + FRAME_BYTES + length);
+        return body.slice();
+    }
+
+    /*
+        Starts record of given type, returns buffer to write its body of given length into
+     */
+    private ByteBuffer begin(byte type, int length) {
+        if (this.pending.remaining() < FRAME_BYTES + length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * this.pending.capacity(),
+                    this.pending.position() + FRAME_BYTES + length));
+            this.pending.flip();
+            grown.put(this.pending);
+            this.pending = grown;
+        }
+
+        this.pending.mark();
+        this.pending.putInt(length);
+        this.pending.put(type);
+        return this.pending;
+    }
+
+    /*
+        Ends record started by begin() with checksum of length, type and body
+     */
+    private void end() {
+        int end = this.pending.position();
+        this.pending.reset();
+        int start = this.pending.position();
+
+        this.crc.reset();
+        this.crc.update(this.pending.array(), this.pending.arrayOffset() + start, end - start);
+        this.pending.position(end);
+        this.pending.putInt((int) this.crc.getValue());
+
+        this.logBytes += this.pending.position() - start;
+    }
+
+    /*
+        Forces pending logical records once the group is complete
+     */
+    private void commitGroup() {
+        this.npending++;
+        if (this.npending >= this.groupSize || System.nanoTime() - this.lastSync >= this.groupNanos) {
+            sync();
+        }
+    }
+}
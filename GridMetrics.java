@@ -0,0 +1,246 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+    Counters and latency histograms of grid operations and of the splits, merges and bucket
+    mappings they cause
+
+    Grid operations record their latency under INSERT, FIND, DELETE and RANGE. Events are counted
+    in striped counters, so threads recording concurrently do not contend. A grid without metrics
+    holds no GridMetrics at all and pays a null check per operation.
+
+    Metrics can be registered as a platform MBean named GridFile:type=GridMetrics,name=<grid name>.
+ */
+public class GridMetrics implements GridMetricsMBean {
+    public static final int INSERT = 0;
+    public static final int FIND = 1;
+    public static final int DELETE = 2;
+    public static final int RANGE = 3;
+    public static final String[] OPERATIONS = {"insert", "find", "delete", "range"};
+
+    private final MetricHistogram[] latencies = new MetricHistogram[OPERATIONS.length];
+    private final MetricHistogram splitCascades = new MetricHistogram(); // splits made room for one insert
+    private final MetricHistogram pairedUpdates = new MetricHistogram(); // grid entries updated by one update
+    private final MetricHistogram rangeBuckets = new MetricHistogram(); // buckets read by one range query
+    private final LongAdder gridSplits = new LongAdder();
+    private final LongAdder bucketSplits = new LongAdder();
+    private final LongAdder bucketMerges = new LongAdder();
+    private final LongAdder bucketsChained = new LongAdder(); // overflow pages chained to full buckets
+    private final LongAdder bucketsMapped = new LongAdder();
+    private final LongAdder bytesCopied = new LongAdder();
+    private ObjectName objectName;
+
+    public GridMetrics() {
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            this.latencies[op] = new MetricHistogram();
+        }
+    }
+
+    /*
+        Records latency of operation started at given System.nanoTime()
+     */
+    public void recordOperation(int op, long start) {
+        this.latencies[op].record(System.nanoTime() - start);
+    }
+
+    public void recordSplitCascade(long nsplits) {
+        this.splitCascades.record(nsplits);
+    }
+
+    public void recordPairedUpdate(long nentries) {
+        this.pairedUpdates.record(nentries);
+    }
+
+    public void recordRangeBuckets(long nbuckets) {
+        this.rangeBuckets.record(nbuckets);
+    }
+
+    public void gridSplit() {
+        this.gridSplits.increment();
+    }
+
+    public void bucketSplit() {
+        this.bucketSplits.increment();
+    }
+
+    public void bucketMerge() {
+        this.bucketMerges.increment();
+    }
+
+    public void bucketChained() {
+        this.bucketsChained.increment();
+    }
+
+    public void bucketMapped() {
+        this.bucketsMapped.increment();
+    }
+
+    public void bytesCopied(long nbytes) {
+        this.bytesCopied.add(nbytes);
+    }
+
+    public MetricHistogram getLatency(int op) {
+        return this.latencies[op];
+    }
+
+    public MetricHistogram getSplitCascades() {
+        return this.splitCascades;
+    }
+
+    public MetricHistogram getPairedUpdates() {
+        return this.pairedUpdates;
+    }
+
+    public MetricHistogram getRangeBuckets() {
+        return this.rangeBuckets;
+    }
+
+    /*
+        Registers metrics as platform MBean for grid of given name
+     */
+    public void register(String gridName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("GridFile:type=GridMetrics,name=" + ObjectName.quote(gridName));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name); // grid reloaded under the same name
+            }
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: register()");
+        }
+    }
+
+    public void unregister() {
+        if (this.objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: unregister()");
+        }
+        this.objectName = null;
+    }
+
+    public long getInsertCount() {
+        return this.latencies[INSERT].getCount();
+    }
+
+    public double getInsertMeanNanos() {
+        return this.latencies[INSERT].getMean();
+    }
+
+    public long getInsertP99Nanos() {
+        return this.latencies[INSERT].getPercentile(99);
+    }
+
+    public long getInsertMaxNanos() {
+        return this.latencies[INSERT].getMax();
+    }
+
+    public long getFindCount() {
+        return this.latencies[FIND].getCount();
+    }
+
+    public double getFindMeanNanos() {
+        return this.latencies[FIND].getMean();
+    }
+
+    public long getFindP99Nanos() {
+        return this.latencies[FIND].getPercentile(99);
+    }
+
+    public long getFindMaxNanos() {
+        return this.latencies[FIND].getMax();
+    }
+
+    public long getDeleteCount() {
+        return this.latencies[DELETE].getCount();
+    }
+
+    public double getDeleteMeanNanos() {
+        return this.latencies[DELETE].getMean();
+    }
+
+    public long getDeleteP99Nanos() {
+        return this.latencies[DELETE].getPercentile(99);
+    }
+
+    public long getDeleteMaxNanos() {
+        return this.latencies[DELETE].getMax();
+    }
+
+    public long getRangeCount() {
+        return this.latencies[RANGE].getCount();
+    }
+
+    public double getRangeMeanNanos() {
+        return this.latencies[RANGE].getMean();
+    }
+
+    public long getRangeP99Nanos() {
+        return this.latencies[RANGE].getPercentile(99);
+    }
+
+    public long getRangeMaxNanos() {
+        return this.latencies[RANGE].getMax();
+    }
+
+    public long getGridSplits() {
+        return this.gridSplits.sum();
+    }
+
+    public long getBucketSplits() {
+        return this.bucketSplits.sum();
+    }
+
+    public long getBucketMerges() {
+        return this.bucketMerges.sum();
+    }
+
+    public long getBucketsChained() {
+        return this.bucketsChained.sum();
+    }
+
+    public long getMaxSplitCascade() {
+        return this.splitCascades.getMax();
+    }
+
+    public long getMaxPairedUpdate() {
+        return this.pairedUpdates.getMax();
+    }
+
+    public long getBucketsMapped() {
+        return this.bucketsMapped.sum();
+    }
+
+    public double getMeanRangeBuckets() {
+        return this.rangeBuckets.getMean();
+    }
+
+    public long getBytesCopied() {
+        return this.bytesCopied.sum();
+    }
+
+    public void reset() {
+        for (MetricHistogram latency : this.latencies) {
+            latency.reset();
+        }
+        this.splitCascades.reset();
+        this.pairedUpdates.reset();
+        this.rangeBuckets.reset();
+        this.gridSplits.reset();
+        this.bucketSplits.reset();
+        this.bucketMerges.reset();
+        this.bucketsChained.reset();
+        this.bucketsMapped.reset();
+        this.bytesCopied.reset();
+    }
+}
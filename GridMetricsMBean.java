@@ -0,0 +1,56 @@
+/*
+    Management interface of GridMetrics, latencies in nanoseconds
+ */
+public interface GridMetricsMBean {
+    long getInsertCount();
+
+    double getInsertMeanNanos();
+
+    long getInsertP99Nanos();
+
+    long getInsertMaxNanos();
+
+    long getFindCount();
+
+    double getFindMeanNanos();
+
+    long getFindP99Nanos();
+
+    long getFindMaxNanos();
+
+    long getDeleteCount();
+
+    double getDeleteMeanNanos();
+
+    long getDeleteP99Nanos();
+
+    long getDeleteMaxNanos();
+
+    long getRangeCount();
+
+    double getRangeMeanNanos();
+
+    long getRangeP99Nanos();
+
+    long getRangeMaxNanos();
+
+    long getGridSplits();
+
+    long getBucketSplits();
+
+    long getBucketMerges();
+
+    long getBucketsChained();
+
+    long getMaxSplitCascade();
+
+    long getMaxPairedUpdate();
+
+    long getBucketsMapped();
+
+    double getMeanRangeBuckets();
+
+    long getBytesCopied();
+
+    void reset();
+}
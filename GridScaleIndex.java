@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+    Caches the sorted longitude and latitude partitions of a grid scale on heap,
+    so that locating coordinates is a binary search instead of a walk over the scale
+
+    Partitions read by an optimistic reader while the scale is being split may be torn, so each
+    invalidate() starts a new generation and partitions read are only cached if no invalidate()
+    came in between. A writer invalidates when it is done changing the scale, which drops any
+    partitions cached while it was changing it.
+ */
+public class GridScaleIndex {
+    private final long LONGBYTES = Long.SIZE / 8;
+    private final AtomicReference<Generation> partitions = new AtomicReference<Generation>(new Generation(null));
+
+    /*
+        Drops cached partitions, called whenever the grid scale changes
+     */
+    public void invalidate() {
+        this.partitions.set(new Generation(null));
+    }
+
+    /*
+        Returns cached partitions, reloading them from the grid scale if stale
+     */
+    public long[][] getPartitions(GridStorage gridScale, long gridSize) {
+        Generation generation = this.partitions.get();
+        long[][] parts = generation.parts;
+        if (parts == null) {
+            parts = new long[2][];
+            parts[0] = readPartitions(gridScale, 1);
+            parts[1] = readPartitions(gridScale, 1 + gridSize);
+            this.partitions.compareAndSet(generation, new Generation(parts)); // fails if invalidated meanwhile
+        }
+
+        return parts;
+    }
+
+    /*
+        Reads partition count at given position followed by that many partitions
+     */
+    private long[] readPartitions(GridStorage gridScale, long position) {
+        int count = (int) gridScale.getLong(position * LONGBYTES);
+        long[] parts = new long[count];
+
+        for (int iter = 0; iter < count; iter++) {
+            parts[iter] = gridScale.getLong((position + 1 + iter) * LONGBYTES);
+        }
+
+        return parts;
+    }
+
+    /*
+        Returns number of partitions strictly below given value, which is its grid longitude or latitude
+     */
+    public static long locate(long[] parts, long value) {
+        int low = 0;
+        int high = parts.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (value > parts[mid]) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /*
+        Partitions cached between two invalidations, null until read
+     */
+    private static class Generation {
+        final long[][] parts;
+
+        Generation(long[][] parts) {
+            this.parts = parts;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+
+/*
+    Storage of a grid file addressed by long byte offsets, the grid scale, directory and free list
+
+    BufferStorage maps a file in one buffer, as grid files always were, SegmentedStorage maps it in
+    fixed-size segments so files may grow beyond the 2 GB a buffer can address. Both unmap their
+    file on close() rather than leaving it to garbage collection.
+
+    Buckets are deliberately not kept in a GridStorage. They are read and changed in place through
+    page views of the buckets file, which a storage copying bytes in and out cannot hand out, and
+    BucketStore maps that file in segments of its own already.
+ */
+public interface GridStorage {
+    long getLong(long offset);
+
+    void putLong(long offset, long value);
+
+    /*
+        Copies bytes at given offset into the remaining bytes of dst
+     */
+    void get(long offset, ByteBuffer dst);
+
+    /*
+        Copies remaining bytes of src to given offset
+     */
+    void put(long offset, ByteBuffer src);
+
+    /*
+        Returns bytes of the mapped file
+     */
+    long size();
+
+    void force();
+
+    /*
+        Unmaps the file, the storage must not be used afterwards
+     */
+    void close();
+}
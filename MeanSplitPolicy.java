@@ -0,0 +1,17 @@
+/*
+    Splits at the mean coordinate, as the running sums of the grid directory gave it
+
+    Cheap and fine for uniform data, but a few far away records drag the mean off the bulk of the
+    bucket, so skewed data needs more splits to spread over the same buckets.
+ */
+public class MeanSplitPolicy implements SplitPolicy {
+    public long choosePartition(long[] values, int count, long low, long high) {
+        long sum = 0;
+
+        for (int iter = 0; iter < count; iter++) {
+            sum += values[iter];
+        }
+
+        return sum / count;
+    }
+}
@@ -0,0 +1,27 @@
+import java.util.Arrays;
+
+/*
+    Splits at the median coordinate of the bucket, leaving half of its records on each side
+
+    Duplicates of the median all stay below the partition, so when the upper half would be empty the
+    largest smaller coordinate is taken instead.
+ */
+public class MedianSplitPolicy implements SplitPolicy {
+    public long choosePartition(long[] values, int count, long low, long high) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+
+        int median = (count - 1) / 2;
+        if (sorted[median] == sorted[count - 1]) {
+            int below = Arrays.binarySearch(sorted, 0, count, sorted[median]);
+            while (below > 0 && sorted[below - 1] == sorted[median]) {
+                below--;
+            }
+            if (below > 0) {
+                return sorted[below - 1];
+            }
+        }
+
+        return sorted[median];
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Histogram of non-negative values in log-linear buckets, after HdrHistogram
+
+    Values below 32 are counted exactly, larger values in 32 linear sub-buckets per power of two,
+    so reported percentiles are within about 3% of the recorded values. Recording is lock free and
+    allocates nothing, the buckets taking a fixed 15 KB.
+ */
+public class MetricHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NBUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0; // clock went backwards
+        }
+
+        this.counts.incrementAndGet(index(value));
+        this.count.incrementAndGet();
+        this.total.addAndGet(value);
+
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getTotal() {
+        return this.total.get();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : (double) this.total.get() / n;
+    }
+
+    /*
+        Returns highest value of the bucket holding given percentile of recorded values, 0 if none
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid argument in getPercentile()");
+        }
+
+        long n = 0;
+        long[] snapshot = new long[NBUCKETS];
+        for (int iter = 0; iter < NBUCKETS; iter++) {
+            snapshot[iter] = this.counts.get(iter);
+            n += snapshot[iter];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int iter = 0; iter < NBUCKETS; iter++) {
+            seen += snapshot[iter];
+            if (seen >= rank) {
+                return Math.min(highest(iter), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int iter = 0; iter < NBUCKETS; iter++) {
+            this.counts.set(iter, 0);
+        }
+        this.count.set(0);
+        this.total.set(0);
+        this.max.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int group = index / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (group - 1);
+        return lowest + (1L << (group - 1)) - 1;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+    Splits grid entry in halves of its coordinate space, as the original grid file halves its scales
+
+    Partitions do not depend on the records, so they stay aligned over the grid, but dense areas
+    are only reached by halving repeatedly. Open entries at the border of the grid are bounded by
+    the records instead.
+ */
+public class MidpointSplitPolicy implements SplitPolicy {
+    public long choosePartition(long[] values, int count, long low, long high) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (int iter = 0; iter < count; iter++) {
+            min = Math.min(min, values[iter]);
+            max = Math.max(max, values[iter]);
+        }
+
+        if (low == Long.MIN_VALUE) {
+            low = min - 1;
+        }
+        if (high == Long.MAX_VALUE) {
+            high = max;
+        }
+
+        return (low >> 1) + (high >> 1) + (low & high & 1); // (low + high) / 2 without overflow
+    }
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Bounded max-heap of the k records nearest to a point, kept in primitive arrays by squared distance
+
+    The farthest record kept is on top, so a candidate is compared against the current kth best
+    distance before its record is created.
+ */
+public class NearestHeap {
+    private final int capacity;
+    private final double[] distances;
+    private final long[] xs;
+    private final long[] ys;
+    private final ByteBuffer[] payloads;
+    private int count;
+
+    public NearestHeap(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid argument in NearestHeap()");
+        }
+
+        this.capacity = capacity;
+        this.distances = new double[capacity];
+        this.xs = new long[capacity];
+        this.ys = new long[capacity];
+        this.payloads = new ByteBuffer[capacity];
+    }
+
+    /*
+        Returns squared distance a candidate must be below to be kept, infinite until the heap is full
+     */
+    public double bound() {
+        return this.count < this.capacity ? Double.POSITIVE_INFINITY : this.distances[0];
+    }
+
+    /*
+        Checks if a record at given squared distance would be kept
+     */
+    public boolean accepts(double distance) {
+        return distance < bound();
+    }
+
+    /*
+        Adds record at given squared distance, replacing the farthest record once the heap is full
+     */
+    public void add(double distance, long x, long y, ByteBuffer payload) {
+        if (!accepts(distance)) {
+            return;
+        }
+
+        int slot;
+        if (this.count < this.capacity) {
+            slot = this.count++;
+            while (slot > 0) { // sift up
+                int parent = (slot - 1) / 2;
+                if (this.distances[parent] >= distance) {
+                    break;
+                }
+                move(parent, slot);
+                slot = parent;
+            }
+        } else {
+            slot = 0;
+            while (true) { // sift down from the replaced top
+                int child = 2 * slot + 1;
+                if (child >= this.count) {
+                    break;
+                }
+                if (child + 1 < this.count && this.distances[child + 1] > this.distances[child]) {
+                    child++;
+                }
+                if (this.distances[child] <= distance) {
+                    break;
+                }
+                move(child, slot);
+                slot = child;
+            }
+        }
+
+        this.distances[slot] = distance;
+        this.xs[slot] = x;
+        this.ys[slot] = y;
+        this.payloads[slot] = payload;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /*
+        Returns kept records, nearest first
+     */
+    public List<Record> toList() {
+        Integer[] order = new Integer[this.count];
+        for (int iter = 0; iter < this.count; iter++) {
+            order[iter] = iter;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(this.distances[a], this.distances[b]));
+
+        List<Record> records = new ArrayList<Record>(this.count);
+        for (int iter : order) {
+            records.add(new Record(this.xs[iter], this.ys[iter], this.payloads[iter]));
+        }
+        return records;
+    }
+
+    private void move(int src, int dst) {
+        this.distances[dst] = this.distances[src];
+        this.xs[dst] = this.xs[src];
+        this.ys[dst] = this.ys[src];
+        this.payloads[dst] = this.payloads[src];
+    }
+}
@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+    LZ77 compressor for record payloads in the byte layout of LZ4 blocks
+
+    A block is a run of sequences, each a token of literal and match length nibbles, extra literal
+    length bytes, the literals, a two byte little endian match offset and extra match length bytes.
+    Lengths of 15 or more continue in bytes of 255 until a smaller byte. The last sequence holds
+    literals only. Matches are found through a hash table of four byte prefixes, kept per thread.
+ */
+public class PayloadCompressor {
+    public static final int MIN_MATCH = 4;
+    public static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int HASH_BITS = 12;
+    private static final ThreadLocal<int[]> tables = new ThreadLocal<int[]>();
+    private static final ThreadLocal<byte[]> inputs = new ThreadLocal<byte[]>();
+
+    /*
+        Compresses remaining bytes of src into dst without consuming them
+        Returns compressed length, or -1 if the block would not fit in dst
+     */
+    public static int compress(ByteBuffer src, byte[] dst) {
+        int n = src.remaining();
+        byte[] in = inputs.get();
+        if (in == null || in.length < n) {
+            in = new byte[Math.max(n, 256)];
+            inputs.set(in);
+        }
+        src.duplicate().get(in, 0, n);
+
+        int[] table = tables.get();
+        if (table == null) {
+            table = new int[1 << HASH_BITS];
+            tables.set(table);
+        }
+        Arrays.fill(table, -1);
+
+        int ip = 0;
+        int anchor = 0;
+        int op = 0;
+
+        while (ip + MIN_MATCH <= n) {
+            int sequence = readInt(in, ip);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(in, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int length = MIN_MATCH;
+            while (ip + length < n && in[ref + length] == in[ip + length]) {
+                length++;
+            }
+
+            op = writeSequence(in, anchor, ip - anchor, ip - ref, length, dst, op);
+            if (op < 0) {
+                return -1;
+            }
+            ip += length;
+            anchor = ip;
+        }
+
+        return writeSequence(in, anchor, n - anchor, 0, 0, dst, op);
+    }
+
+    /*
+        Decompresses block of given length at given offset in src, appending its bytes to dst
+     */
+    public static void decompress(ByteBuffer src, int offset, int length, ByteBuffer dst) {
+        int ip = offset;
+        int end = offset + length;
+        int start = dst.position();
+
+        while (ip < end) {
+            int token = src.get(ip++) & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src.get(ip++) & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            for (int iter = 0; iter < literals; iter++) {
+                dst.put(src.get(ip++));
+            }
+            if (ip >= end) {
+                break; // last sequence holds literals only
+            }
+
+            int distance = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+            ip += 2;
+            int match = token & 15;
+            if (match == 15) {
+                int b;
+                do {
+                    b = src.get(ip++) & 0xFF;
+                    match += b;
+                } while (b == 255);
+            }
+            match += MIN_MATCH;
+
+            if (distance == 0 || dst.position() - distance < start) {
+                throw new IllegalArgumentException("Invalid argument in decompress()");
+            }
+            for (int iter = 0; iter < match; iter++) { // byte by byte, matches may overlap their output
+                dst.put(dst.get(dst.position() - distance));
+            }
+        }
+    }
+
+    /*
+        Writes sequence of literals and a match, no match if length is 0
+        Returns position after the sequence in dst, or -1 if it does not fit
+     */
+    private static int writeSequence(byte[] in, int literal, int nliterals, int distance, int length,
+                                     byte[] dst, int op) {
+        int match = length == 0 ? 0 : length - MIN_MATCH;
+        int bound = op + 1 + nliterals / 255 + 1 + nliterals + (length == 0 ? 0 : 2 + match / 255 + 1);
+        if (bound > dst.length) {
+            return -1;
+        }
+
+        dst[op++] = (byte) ((Math.min(nliterals, 15) << 4) | Math.min(match, 15));
+        op = writeLength(nliterals, dst, op);
+        System.arraycopy(in, literal, dst, op, nliterals);
+        op += nliterals;
+
+        if (length > 0) {
+            dst[op++] = (byte) distance;
+            dst[op++] = (byte) (distance >>> 8);
+            op = writeLength(match, dst, op);
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        if (length < 15) {
+            return op;
+        }
+
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] & 0xFF) | (in[pos + 1] & 0xFF) << 8 | (in[pos + 2] & 0xFF) << 16 | in[pos + 3] << 24;
+    }
+}
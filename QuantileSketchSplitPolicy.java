@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+/*
+    Splits at an approximate quantile of the bucket, found from a histogram of its coordinates
+
+    Two passes over the coordinates build a fixed histogram between their minimum and maximum, the
+    partition is interpolated inside the bin holding the quantile. Unlike MedianSplitPolicy it
+    neither sorts nor copies the coordinates, and the quantile may be moved off the median to leave
+    room on the side where inserts keep arriving, as for data loaded in increasing order.
+ */
+public class QuantileSketchSplitPolicy implements SplitPolicy {
+    public static final int BINS = 64;
+
+    private final double quantile;
+    private final long[] bins = new long[BINS];
+
+    public QuantileSketchSplitPolicy() {
+        this(0.5);
+    }
+
+    public QuantileSketchSplitPolicy(double quantile) {
+        if (!(quantile > 0 && quantile < 1)) {
+            throw new IllegalArgumentException("Invalid argument in QuantileSketchSplitPolicy()");
+        }
+
+        this.quantile = quantile;
+    }
+
+    public synchronized long choosePartition(long[] values, int count, long low, long high) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (int iter = 0; iter < count; iter++) {
+            min = Math.min(min, values[iter]);
+            max = Math.max(max, values[iter]);
+        }
+
+        double width = ((double) max - min + 1) / BINS;
+        Arrays.fill(this.bins, 0);
+        for (int iter = 0; iter < count; iter++) {
+            int bin = (int) Math.min(BINS - 1, ((double) values[iter] - min) / width);
+            this.bins[bin]++;
+        }
+
+        double rank = this.quantile * count;
+        long below = 0;
+        int bin = 0;
+        while (bin < BINS - 1 && below + this.bins[bin] < rank) {
+            below += this.bins[bin];
+            bin++;
+        }
+
+        double fraction = this.bins[bin] == 0 ? 0 : (rank - below) / this.bins[bin];
+        long partition = min + (long) ((bin + fraction) * width);
+
+        return Math.max(min, Math.min(max - 1, partition));
+    }
+}
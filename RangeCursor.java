@@ -0,0 +1,236 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+    Lazily walks grid cells of a coordinate range, visiting each bucket once
+    and returning matching records one at a time as views of the mapped bucket, which must
+    not be read once the grid is unloaded and its buckets are unmapped
+
+    Splitting hands a prefix of the remaining cells to a new cursor, whole longitudes
+    while more than one remains and latitudes of the last longitude after that.
+    Buckets are still deduplicated against the start of the whole range, so split
+    cursors can be scanned concurrently without visiting a bucket twice.
+
+    On a thread-safe grid the cursor instead copies the records of one grid entry at a time
+    under the lock of its bucket, so concurrent bucket splits neither hide nor repeat records.
+    Records are copied as well when buckets are kept in the bucket cache, which may reuse the
+    memory of a bucket once it is released.
+    A split of the grid renumbers grid entries and fails the cursor.
+ */
+public class RangeCursor implements Iterator<Record>, Spliterator<Record> {
+    private final GridFile grid;
+    private final long x1;
+    private final long y1;
+    private final long x2;
+    private final long y2;
+    private final long lon1; // start of the whole range
+    private final long lat1;
+    private long clat1; // cells left to this cursor
+    private long lon2;
+    private long lat2;
+    private long xiter;
+    private long yiter;
+    private ByteBuffer gb;
+    private long slot;
+    private long nbuckets; // buckets read so far, once per grid entry when copying
+    private Record next;
+    private final long stamp; // grid read stamp in thread-safe mode
+    private final ArrayDeque<Record> pending; // records copied from current grid entry, null unless thread-safe or cached
+
+    public RangeCursor(GridFile grid, long x1, long y1, long x2, long y2) {
+        long stamp;
+        long lon1;
+        long lat1;
+        long lon2;
+        long lat2;
+
+        do {
+            stamp = grid.beginGridRead();
+            lon1 = grid.locateLongitude(x1);
+            lat1 = grid.locateLatitude(y1);
+            lon2 = grid.locateLongitude(x2);
+            lat2 = grid.locateLatitude(y2);
+        } while (!grid.validateGridRead(stamp));
+
+        this.grid = grid;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+        this.lon1 = lon1;
+        this.lat1 = lat1;
+        this.lon2 = lon2;
+        this.lat2 = lat2;
+        this.stamp = stamp;
+        this.pending = grid.isThreadSafe() || grid.hasBucketCache() ? new ArrayDeque<Record>() : null;
+        this.clat1 = this.lat1;
+        this.xiter = this.lon1;
+        this.yiter = this.lat1;
+    }
+
+    private RangeCursor(RangeCursor parent, long lon2, long clat1, long lat2) {
+        this.grid = parent.grid;
+        this.x1 = parent.x1;
+        this.y1 = parent.y1;
+        this.x2 = parent.x2;
+        this.y2 = parent.y2;
+        this.lon1 = parent.lon1;
+        this.lat1 = parent.lat1;
+        this.clat1 = clat1;
+        this.lon2 = lon2;
+        this.lat2 = lat2;
+        this.xiter = parent.xiter;
+        this.yiter = parent.yiter;
+        this.stamp = parent.stamp;
+        this.pending = parent.pending != null ? new ArrayDeque<Record>() : null;
+    }
+
+    /*
+        Returns next matching record, or null once the range is exhausted
+     */
+    private Record advance() {
+        if (this.pending != null) {
+            return advanceCopied();
+        }
+
+        while (true) {
+            if (this.gb != null) {
+                long match = BucketPage.nextInRange(this.gb, this.slot, this.x1, this.y1, this.x2, this.y2);
+                if (match >= 0) {
+                    this.slot = match + 1;
+                    int be = BucketPage.entryOffset(this.gb, match);
+                    return new Record(BucketPage.getX(this.gb, be), BucketPage.getY(this.gb, be),
+                            this.grid.getBucketRecord(this.gb, be).asReadOnlyBuffer());
+                }
+
+                this.gb = this.grid.mapOverflowBucket(this.gb); // null at the end of the chain
+                this.slot = 0;
+                if (this.gb != null) {
+                    continue;
+                }
+            }
+
+            if (this.xiter > this.lon2) {
+                return null;
+            }
+
+            long lon = this.xiter;
+            long lat = this.yiter;
+            if (++this.yiter > this.lat2) {
+                this.yiter = this.clat1;
+                this.xiter++;
+            }
+
+            if (this.grid.isPairedInRange(lon, lat, this.lon1, this.lat1)) {
+                continue; // bucket already visited through an earlier cell
+            }
+
+            this.gb = this.grid.mapGridBucket(this.grid.getGridEntry(lon, lat));
+            this.slot = 0;
+            this.nbuckets++;
+        }
+    }
+
+    /*
+        Returns next matching record copied grid entry by grid entry, or null once the range is exhausted
+     */
+    private Record advanceCopied() {
+        while (this.pending.isEmpty()) {
+            if (this.xiter > this.lon2) {
+                return null;
+            }
+
+            long lon = this.xiter;
+            long lat = this.yiter;
+            if (++this.yiter > this.lat2) {
+                this.yiter = this.clat1;
+                this.xiter++;
+            }
+
+            this.grid.copyCellRecords(this.stamp, lon, lat, this.x1, this.y1, this.x2, this.y2, this.pending);
+            this.nbuckets++;
+        }
+
+        return this.pending.poll();
+    }
+
+    /*
+        Returns number of buckets read by this cursor, not counting cursors split from it
+     */
+    public long getBucketsRead() {
+        return this.nbuckets;
+    }
+
+    public boolean hasNext() {
+        if (this.next == null) {
+            this.next = advance();
+        }
+        return this.next != null;
+    }
+
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Record record = this.next;
+        this.next = null;
+        return record;
+    }
+
+    public boolean tryAdvance(Consumer<? super Record> action) {
+        if (!hasNext()) {
+            return false;
+        }
+
+        action.accept(next());
+        return true;
+    }
+
+    public void forEachRemaining(Consumer<? super Record> action) {
+        while (tryAdvance(action)) {
+        }
+    }
+
+    public Spliterator<Record> trySplit() {
+        if (this.gb != null || this.next != null || this.xiter > this.lon2 ||
+                (this.pending != null && !this.pending.isEmpty())) {
+            return null; // only split between cells
+        }
+
+        RangeCursor prefix;
+        if (this.yiter == this.clat1 && this.xiter < this.lon2) {
+            long mid = this.xiter + (this.lon2 - this.xiter + 1) / 2;
+            prefix = new RangeCursor(this, mid - 1, this.clat1, this.lat2);
+            this.xiter = mid;
+        } else if (this.xiter == this.lon2 && this.yiter < this.lat2) {
+            long mid = this.yiter + (this.lat2 - this.yiter + 1) / 2;
+            prefix = new RangeCursor(this, this.xiter, this.clat1, mid - 1);
+            this.yiter = mid;
+            this.clat1 = mid;
+        } else {
+            return null;
+        }
+
+        return prefix;
+    }
+
+    /*
+        Returns number of cells left, record counts are unknown until buckets are read
+     */
+    public long estimateSize() {
+        if (this.xiter > this.lon2) {
+            return 0;
+        }
+        long columns = this.lon2 - this.xiter;
+        return columns * (this.lat2 - this.clat1 + 1) + (this.lat2 - this.yiter + 1);
+    }
+
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,35 @@
+import java.nio.ByteBuffer;
+
+/*
+    Record with its coordinates, as returned by range queries
+ */
+public class Record {
+    private final long x;
+    private final long y;
+    private final ByteBuffer payload;
+
+    public Record(long x, long y, ByteBuffer payload) {
+        this.x = x;
+        this.y = y;
+        this.payload = payload;
+    }
+
+    public long getX() {
+        return this.x;
+    }
+
+    public long getY() {
+        return this.y;
+    }
+
+    /*
+        Returns view of record bytes, read-only when the record comes from a mapped bucket
+     */
+    public ByteBuffer getPayload() {
+        return this.payload.duplicate();
+    }
+
+    public int getSize() {
+        return this.payload.remaining();
+    }
+}
@@ -0,0 +1,16 @@
+import java.nio.ByteBuffer;
+
+/*
+    Converts records to and from the bytes stored in grid buckets
+ */
+public interface RecordCodec<T> {
+    /*
+        Writes record at position of dst, advancing its position
+     */
+    void encode(T record, ByteBuffer dst);
+
+    /*
+        Reads record from remaining bytes of src
+     */
+    T decode(ByteBuffer src);
+}
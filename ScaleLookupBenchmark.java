@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+    Measures cost of locating coordinates in a grid scale as the number of partitions grows,
+    comparing the linear walk over the scale with binary search over cached partitions
+ */
+public class ScaleLookupBenchmark {
+    private static final long LONGBYTES = Long.SIZE / 8;
+    private static final long SIZE = 1000;
+    private static final int LOOKUPS = 2000000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        long[] xs = new long[LOOKUPS];
+        for (int iter = 0; iter < LOOKUPS; iter++) {
+            xs[iter] = random.nextInt(Integer.MAX_VALUE);
+        }
+
+        System.out.println("partitions  linear ns/op  binary ns/op");
+        for (long nparts = 1; nparts < SIZE; nparts = Math.min(nparts * 2, SIZE - 1)) {
+            ByteBuffer scale = createScale(nparts);
+            GridStorage storage = new BufferStorage(scale);
+            GridScaleIndex index = new GridScaleIndex();
+            double linear = Double.MAX_VALUE;
+            double binary = Double.MAX_VALUE;
+            long sink = 0;
+
+            for (int round = 0; round < ROUNDS; round++) { // best of rounds, first rounds warm up the JIT
+                long start = System.nanoTime();
+                for (int iter = 0; iter < LOOKUPS; iter++) {
+                    sink += linearLocate(scale, xs[iter]);
+                }
+                linear = Math.min(linear, (System.nanoTime() - start) / (double) LOOKUPS);
+
+                start = System.nanoTime();
+                for (int iter = 0; iter < LOOKUPS; iter++) {
+                    sink += GridScaleIndex.locate(index.getPartitions(storage, SIZE)[0], xs[iter]);
+                }
+                binary = Math.min(binary, (System.nanoTime() - start) / (double) LOOKUPS);
+            }
+
+            System.out.printf("%10d  %12.2f  %12.2f  (%d)%n", nparts, linear, binary, sink & 1);
+
+            if (nparts == SIZE - 1) {
+                break;
+            }
+        }
+    }
+
+    /*
+        Creates grid scale with given number of evenly spaced longitude partitions
+     */
+    private static ByteBuffer createScale(long nparts) {
+        ByteBuffer scale = ByteBuffer.allocateDirect((int) ((2 * SIZE + 1) * LONGBYTES));
+        long step = Integer.MAX_VALUE / (nparts + 1);
+
+        scale.putLong(0, SIZE);
+        scale.putLong((int) (1 * LONGBYTES), nparts);
+        for (long iter = 0; iter < nparts; iter++) {
+            scale.putLong((int) ((2 + iter) * LONGBYTES), (iter + 1) * step);
+        }
+
+        return scale;
+    }
+
+    /*
+        Locates longitude by walking the scale, as getGridLocation() used to
+     */
+    private static long linearLocate(ByteBuffer scale, long x) {
+        long xint = scale.getLong((int) (1 * LONGBYTES));
+        long lon = 0;
+        long iter = 0;
+
+        while (iter < xint && x > scale.getLong((int) ((2 + iter) * LONGBYTES))) {
+            lon = ++iter;
+        }
+
+        return lon;
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+    Grid file mapped in segments of SEGMENT_BYTES, so it may hold more than 2 GB
+
+    Segments are a power of two of bytes and longs are aligned, so a long never straddles two
+    segments and is read with a shift and a mask. Bulk copies are split at segment boundaries.
+ */
+public class SegmentedStorage implements GridStorage {
+    public static final int SEGMENT_SHIFT = 30;
+    public static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_BYTES - 1;
+
+    private final long size;
+    private MappedByteBuffer[] segments;
+
+    /*
+        Maps given bytes of the named file, extending it if shorter
+     */
+    public SegmentedStorage(String fileName, long size) {
+        this.size = size;
+        this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            FileChannel channel = raf.getChannel();
+            for (int index = 0; index < this.segments.length; index++) {
+                long start = (long) index << SEGMENT_SHIFT;
+                this.segments[index] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                        Math.min(SEGMENT_BYTES, size - start));
+            }
+            raf.close();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            System.out.println("Error: SegmentedStorage()");
+            close();
+            throw new IllegalStateException("Unable to map grid file " + fileName);
+        }
+    }
+
+    public long getLong(long offset) {
+        return this.segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putLong(long offset, long value) {
+        this.segments[(int) (offset >>> SEGMENT_SHIFT)].putLong((int) (offset & SEGMENT_MASK), value);
+    }
+
+    public void get(long offset, ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+            ByteBuffer src = this.segments[(int) (offset >>> SEGMENT_SHIFT)].duplicate();
+            int start = (int) (offset & SEGMENT_MASK);
+            int length = Math.min(dst.remaining(), src.capacity() - start);
+            src.position(start);
+            src.limit(start + length);
+            dst.put(src); // memcpy
+            offset += length;
+        }
+    }
+
+    public void put(long offset, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            ByteBuffer dst = this.segments[(int) (offset >>> SEGMENT_SHIFT)].duplicate();
+            int start = (int) (offset & SEGMENT_MASK);
+            int length = Math.min(src.remaining(), dst.capacity() - start);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            dst.position(start);
+            dst.put(part); // memcpy
+            src.position(src.position() + length);
+            offset += length;
+        }
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    public void force() {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+    }
+
+    public void close() {
+        for (MappedByteBuffer segment : this.segments) {
+            BucketStore.unmap(segment);
+        }
+        this.segments = new MappedByteBuffer[0];
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/*
+    Stores records using Java serialization, used by the Object based record methods of GridFile
+ */
+public class SerializableCodec implements RecordCodec<Object> {
+    public void encode(Object record, ByteBuffer dst) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream os = new ObjectOutputStream(out);
+            os.writeObject(record);
+            os.close();
+            dst.put(out.toByteArray());
+        } catch (java.io.IOException e) {
+            //e.printStackTrace();
+            throw new IllegalArgumentException("Invalid argument in encode()");
+        }
+    }
+
+    public Object decode(ByteBuffer src) {
+        try {
+            byte[] record = new byte[src.remaining()];
+            src.duplicate().get(record);
+            ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(record));
+            return is.readObject();
+        } catch (Exception e) {
+            //e.printStackTrace();
+            throw new IllegalArgumentException("Invalid argument in decode()");
+        }
+    }
+}
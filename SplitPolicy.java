@@ -0,0 +1,14 @@
+/*
+    Chooses where a grid split puts its new partition
+
+    A grid entry holds coordinates in (low, high] along the split axis, low and high being the
+    neighbouring partitions or Long.MIN_VALUE and Long.MAX_VALUE at the border of the grid. The new
+    partition p gives the entries (low, p] and (p, high].
+ */
+public interface SplitPolicy {
+    /*
+        Returns partition for the first count values, the coordinates along the split axis of the
+        records in the full bucket and of the record being inserted, in no particular order
+     */
+    long choosePartition(long[] values, int count, long low, long high);
+}
@@ -0,0 +1,152 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+    Compares split policies by the grid they build for each coordinate distribution
+
+    For every distribution and policy a fresh grid is filled and reports the partitions and buckets
+    it used, the distribution of bucket fill factors in tenths of a page, and the fan-out of range
+    queries, the buckets read by a query over 1% of the coordinate space. A grid running out of
+    partitions reports how many records it took.
+
+    Usage: SplitPolicyReport [name=value ...]
+        grid=1000              grid size
+        page=4096              page size
+        record=64              maximum record size
+        records=200000         records inserted
+        ranges=200             range queries for fan-out
+        dist=uniform,...       distributions, see DataGenerator.NAMES
+        split=mean,...         policies, see NAMES
+        dir=/tmp               directory for grid files
+ */
+public class SplitPolicyReport {
+    public static final String[] NAMES = {"mean", "median", "sketch", "midpoint"};
+
+    private static final int BINS = 10;
+
+    private static long gridSize = 1000;
+    private static long pageSize = 4096;
+    private static int recordSize = 64;
+    private static int nrecords = 200000;
+    private static int nranges = 200;
+    private static String[] distributions = DataGenerator.NAMES;
+    private static String[] policies = NAMES;
+    private static String dir = System.getProperty("java.io.tmpdir");
+
+    public static void main(String[] args) {
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid argument " + arg);
+            }
+
+            if (pair[0].equals("grid")) {
+                gridSize = Long.parseLong(pair[1]);
+            } else if (pair[0].equals("page")) {
+                pageSize = Long.parseLong(pair[1]);
+            } else if (pair[0].equals("record")) {
+                recordSize = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("records")) {
+                nrecords = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("ranges")) {
+                nranges = Integer.parseInt(pair[1]);
+            } else if (pair[0].equals("dist")) {
+                distributions = pair[1].split(",");
+            } else if (pair[0].equals("split")) {
+                policies = pair[1].split(",");
+            } else if (pair[0].equals("dir")) {
+                dir = pair[1];
+            } else {
+                throw new IllegalArgumentException("Invalid argument " + arg);
+            }
+        }
+
+        System.out.printf("%-10s %-8s %6s %6s %8s %6s %8s  %s%n",
+                "dist", "split", "xint", "yint", "buckets", "fill", "fan-out", "fill factor histogram, 0.0 to 1.0");
+
+        for (String dist : distributions) {
+            for (String policy : policies) {
+                run(DataGenerator.parse(dist), policy);
+            }
+        }
+    }
+
+    /*
+        Returns split policy for given name
+     */
+    public static SplitPolicy parse(String name) {
+        if (name.equalsIgnoreCase("mean")) {
+            return new MeanSplitPolicy();
+        } else if (name.equalsIgnoreCase("median")) {
+            return new MedianSplitPolicy();
+        } else if (name.equalsIgnoreCase("sketch")) {
+            return new QuantileSketchSplitPolicy();
+        } else if (name.equalsIgnoreCase("midpoint")) {
+            return new MidpointSplitPolicy();
+        }
+        throw new IllegalArgumentException("Invalid argument in parse()");
+    }
+
+    /*
+        Fills a fresh grid with given distribution and policy and prints its report line
+     */
+    private static void run(int distribution, String policy) {
+        String name = new File(dir, "splitgrid").getPath();
+        DataGenerator generator = new DataGenerator(distribution, recordSize, 1);
+        long[] xs = new long[nrecords];
+        long[] ys = new long[nrecords];
+        generator.nextCoordinates(xs, ys);
+
+        GridFile grid = new GridFile();
+        grid.createGrid(gridSize, pageSize, name);
+        grid.loadGrid();
+        grid.setSplitPolicy(parse(policy));
+
+        try {
+            int inserted = 0;
+            try {
+                for (; inserted < nrecords; inserted++) {
+                    grid.insertRecord(xs[inserted], ys[inserted], generator.nextRecord());
+                }
+            } catch (OutOfMemoryError e) { // grid scale full
+                System.out.printf("%-10s %-8s grid full after %d records%n",
+                        DataGenerator.NAMES[distribution], policy, inserted);
+                return;
+            }
+
+            long xint = grid.locateLongitude(Long.MAX_VALUE); // partitions below any coordinate
+            long yint = grid.locateLatitude(Long.MAX_VALUE);
+            long[] bins = grid.getFillHistogram(BINS);
+            long nbuckets = 0;
+            double fill = 0;
+            for (int bin = 0; bin < BINS; bin++) {
+                nbuckets += bins[bin];
+                fill += bins[bin] * (bin + 0.5) / BINS;
+            }
+
+            Random random = new Random(2);
+            long span = Integer.MAX_VALUE / 10; // 1% of the area
+            long fanout = 0;
+            for (int iter = 0; iter < nranges; iter++) {
+                long x1 = (long) (random.nextDouble() * (Integer.MAX_VALUE - span));
+                long y1 = (long) (random.nextDouble() * (Integer.MAX_VALUE - span));
+                fanout += grid.countRangeBuckets(x1, y1, x1 + span, y1 + span);
+            }
+
+            StringBuilder histogram = new StringBuilder();
+            for (int bin = 0; bin < BINS; bin++) {
+                histogram.append(String.format(" %5.1f%%", 100.0 * bins[bin] / nbuckets));
+            }
+
+            System.out.printf("%-10s %-8s %6d %6d %8d %6.2f %8.1f %s%n", DataGenerator.NAMES[distribution], policy,
+                    xint, yint, nbuckets, fill / nbuckets, fanout / (double) nranges, histogram);
+        } finally {
+            grid.unloadGrid();
+            new File(name + "scale").delete();
+            new File(name + "directory").delete();
+            new File(name + "buckets").delete();
+            new File(name + "freelist").delete();
+        }
+    }
+}